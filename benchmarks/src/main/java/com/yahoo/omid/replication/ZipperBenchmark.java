@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.replication;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yahoo.omid.tso.TSOMessage;
+
+/**
+ * Encoding and decoding of the replicated commit stream. maxGap is the
+ * largest distance between the start timestamp of consecutive commits, it
+ * decides which of the compact formats the Zipper picks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ZipperBenchmark {
+
+   private static final int MESSAGES = 1024;
+
+   @Param({ "16", "4096", "1000000" })
+   public int maxGap;
+
+   private long[] starts;
+   private long[] commits;
+   private ChannelBuffer encoded;
+   private ChannelBuffer output;
+
+   @Setup
+   public void setup() {
+      Random rand = new Random(0);
+      starts = new long[MESSAGES];
+      commits = new long[MESSAGES];
+      long commit = 2 * maxGap;
+      for (int i = 0; i < MESSAGES; ++i) {
+         commit += 1 + (rand.nextInt(4) == 0 ? rand.nextInt(100) : 0);
+         commits[i] = commit;
+         starts[i] = commit - 1 - rand.nextInt(maxGap);
+      }
+      encoded = ChannelBuffers.dynamicBuffer();
+      Zipper zipper = new Zipper();
+      for (int i = 0; i < MESSAGES; ++i) {
+         zipper.encodeCommit(encoded, starts[i], commits[i]);
+      }
+      output = ChannelBuffers.buffer(encoded.readableBytes() * 2);
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(MESSAGES)
+   public ChannelBuffer encode() {
+      output.clear();
+      Zipper zipper = new Zipper();
+      for (int i = 0; i < MESSAGES; ++i) {
+         zipper.encodeCommit(output, starts[i], commits[i]);
+      }
+      return output;
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(MESSAGES)
+   public TSOMessage decode() {
+      encoded.readerIndex(0);
+      Zipper zipper = new Zipper();
+      TSOMessage msg = null;
+      while (encoded.readable()) {
+         msg = zipper.decodeMessage(encoded);
+      }
+      return msg;
+   }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conflict detection cost per transaction: the lookups and inserts done by
+ * the decision stage for the write set of every commit request.
+ *
+ * The native engine needs libtso-commithashmap in java.library.path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CommitHashMapBenchmark {
+
+   private static final int TRANSACTIONS = 1 << 14;
+
+   @Param({ CommitHashMap.OFFHEAP, CommitHashMap.NATIVE })
+   public String engine;
+
+   @Param({ "1", "10", "100" })
+   public int rows;
+
+   @Param({ "8", "32" })
+   public int keySize;
+
+   @Param({ "1000000" })
+   public int capacity;
+
+   private CommitHashMap map;
+   private RowKey[][] writeSets;
+   private int next;
+   private long timestamp;
+   private long largestDeleted;
+
+   @Setup
+   public void setup() {
+      map = CommitHashMap.create(engine, capacity, TSOState.LOAD_FACTOR);
+      Random rand = new Random(0);
+      writeSets = new RowKey[TRANSACTIONS][];
+      byte[] table = "benchmark-table".getBytes();
+      for (int i = 0; i < TRANSACTIONS; ++i) {
+         writeSets[i] = new RowKey[rows];
+         for (int j = 0; j < rows; ++j) {
+            byte[] row = new byte[keySize];
+            rand.nextBytes(row);
+            writeSets[i][j] = new RowKey(row, table);
+         }
+      }
+      // populate the map so lookups walk real buckets
+      for (int i = 0; i < TRANSACTIONS; ++i) {
+         commitNext();
+      }
+   }
+
+   private RowKey[] nextWriteSet() {
+      RowKey[] writeSet = writeSets[next];
+      next = (next + 1) & (TRANSACTIONS - 1);
+      return writeSet;
+   }
+
+   private long commitNext() {
+      long start = ++timestamp;
+      long commit = ++timestamp;
+      long result = map.checkAndPut(nextWriteSet(), start, commit, largestDeleted);
+      if (result != CommitHashMap.CONFLICT) {
+         largestDeleted = result;
+      }
+      return result;
+   }
+
+   @Benchmark
+   public long get() {
+      RowKey[] writeSet = nextWriteSet();
+      long max = 0;
+      for (RowKey r : writeSet) {
+         max = Math.max(max, map.get(r));
+      }
+      return max;
+   }
+
+   @Benchmark
+   public long put() {
+      RowKey[] writeSet = nextWriteSet();
+      long commit = ++timestamp;
+      long max = largestDeleted;
+      for (RowKey r : writeSet) {
+         max = Math.max(max, map.put(r, commit, largestDeleted));
+      }
+      largestDeleted = max;
+      return max;
+   }
+
+   @Benchmark
+   public long checkAndPut() {
+      return commitNext();
+   }
+}
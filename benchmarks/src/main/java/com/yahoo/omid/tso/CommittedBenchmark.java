@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The client side commit cache, looked up by every validRead() that can be
+ * answered without asking the TSO.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CommittedBenchmark {
+
+   private static final int TRANSACTIONS = 1 << 20;
+
+   private Committed committed;
+   private long timestamp;
+   private long lookup;
+
+   @Setup
+   public void setup() {
+      committed = new Committed();
+      for (int i = 0; i < TRANSACTIONS; ++i) {
+         commit();
+      }
+   }
+
+   private void commit() {
+      long start = ++timestamp;
+      long commit = ++timestamp;
+      committed.commit(start, commit);
+   }
+
+   @Benchmark
+   public long getCommit() {
+      lookup = (lookup + 7) % timestamp;
+      return committed.getCommit(lookup + 1);
+   }
+
+   @Benchmark
+   public long commitAndRaise() {
+      commit();
+      if ((timestamp & 0xffff) == 0) {
+         committed.raiseLargestDeletedTransaction(timestamp - TRANSACTIONS);
+      }
+      return timestamp;
+   }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deserialization of the rows of a commit request, and the hashing done by
+ * the client for every row it writes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RowKeyBenchmark {
+
+   @Param({ "1", "10", "100" })
+   public int rows;
+
+   @Param({ "8", "32" })
+   public int keySize;
+
+   private byte[][] rowIds;
+   private byte[] table;
+   private ChannelBuffer serialized;
+   private int size;
+
+   @Setup
+   public void setup() throws IOException {
+      Random rand = new Random(0);
+      table = "benchmark-table".getBytes();
+      rowIds = new byte[rows][];
+      serialized = ChannelBuffers.dynamicBuffer();
+      DataOutputStream out = new DataOutputStream(new ChannelBufferOutputStream(serialized));
+      for (int i = 0; i < rows; ++i) {
+         byte[] row = new byte[keySize];
+         rand.nextBytes(row);
+         rowIds[i] = row;
+         new RowKey(row, table).writeObject(out);
+      }
+      out.flush();
+      size = RowKey.serializedSize(serialized, 0, rows);
+   }
+
+   @Benchmark
+   public RowKey[] readObjects() {
+      serialized.readerIndex(0);
+      return RowKey.readObjects(serialized, rows, size);
+   }
+
+   @Benchmark
+   public int hashNewKeys() {
+      int h = 0;
+      for (byte[] row : rowIds) {
+         h ^= new RowKey(row, table).hashCode();
+      }
+      return h;
+   }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tracking of uncommitted transactions: every operation commits a whole
+ * bucket of timestamps, leaving one in abortEvery open, and then raises the
+ * largest deleted timestamp past it so the open ones are aborted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class UncommitedBenchmark {
+
+   @Param({ "10", "100", "10000" })
+   public int abortEvery;
+
+   private Uncommited uncommited;
+   private long timestamp;
+   private long lastAborted;
+
+   private final Uncommited.AbortVisitor visitor = new Uncommited.AbortVisitor() {
+      @Override
+      public void aborted(long id) {
+         lastAborted = id;
+      }
+   };
+
+   @Setup
+   public void setup() {
+      timestamp = 0;
+      uncommited = new Uncommited(timestamp);
+   }
+
+   @Benchmark
+   public int commitAndRaise() {
+      long first = timestamp + 1;
+      long last = timestamp + Bucket.getBucketSize();
+      for (long ts = first; ts <= last; ++ts) {
+         if (ts % abortEvery != 0) {
+            uncommited.commit(ts);
+         }
+      }
+      timestamp = last;
+      return uncommited.raiseLargestDeletedTransaction(last, visitor);
+   }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso.serialization;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yahoo.omid.tso.RowKey;
+import com.yahoo.omid.tso.TSOMessage;
+import com.yahoo.omid.tso.messages.CommitRequest;
+
+/**
+ * Server side decoding of a stream of commit requests, as received from a
+ * client connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TSODecoderBenchmark {
+
+   private static final int MESSAGES = 256;
+
+   @Param({ "1", "10", "100" })
+   public int rows;
+
+   @Param({ "false", "true" })
+   public boolean lengthPrefixed;
+
+   private TSODecoder decoder;
+   private ChannelBuffer encoded;
+
+   @Setup
+   public void setup() throws Exception {
+      Random rand = new Random(0);
+      byte[] table = "benchmark-table".getBytes();
+      encoded = ChannelBuffers.dynamicBuffer();
+      TSOEncoder encoder = new TSOEncoder(lengthPrefixed);
+      for (int i = 0; i < MESSAGES; ++i) {
+         RowKey[] keys = new RowKey[rows];
+         for (int j = 0; j < rows; ++j) {
+            byte[] row = new byte[8];
+            rand.nextBytes(row);
+            keys[j] = new RowKey(row, table);
+         }
+         ChannelBuffer frame = (ChannelBuffer) encoder.encode(null, null, new CommitRequest(i, keys));
+         encoded.writeBytes(frame);
+      }
+      decoder = new TSODecoder(null, lengthPrefixed);
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(MESSAGES)
+   public TSOMessage decode() throws Exception {
+      encoded.readerIndex(0);
+      TSOMessage msg = null;
+      while (encoded.readable()) {
+         msg = (TSOMessage) decoder.decode(null, null, encoded);
+      }
+      return msg;
+   }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of the half aborted transactions known by a client, checked by
+ * validRead() for every version read.
+ * 
+ * It is an open addressing table with linear probing over primitive longs,
+ * so lookups neither box nor lock: they run from any number of threads
+ * against the current table, published through a volatile field. Updates
+ * come from the replication stream and are serialized. Timestamps are
+ * positive: 0 marks a free slot and -1 a removed one.
+ */
+class AbortedSet {
+
+   private static final long FREE = 0;
+   private static final long REMOVED = -1;
+   private static final float LOAD_FACTOR = 0.5f;
+
+   private volatile AtomicLongArray table;
+   private int size;
+   /**
+    * live plus removed entries, they both lengthen the probes
+    */
+   private int used;
+   private int threshold;
+   private final int minCapacity;
+
+   AbortedSet(int initialCapacity) {
+      minCapacity = tableSize(initialCapacity);
+      table = allocate(minCapacity);
+   }
+
+   private static int tableSize(int entries) {
+      int needed = Math.max((int) (entries / LOAD_FACTOR), 2);
+      int capacity = Integer.highestOneBit(needed);
+      return capacity < needed ? capacity << 1 : capacity;
+   }
+
+   private AtomicLongArray allocate(int capacity) {
+      threshold = (int) (capacity * LOAD_FACTOR);
+      used = size;
+      return new AtomicLongArray(capacity);
+   }
+
+   private static int slot(long startTimestamp, int mask) {
+      long h = startTimestamp * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32)) & mask;
+   }
+
+   boolean contains(long startTimestamp) {
+      if (startTimestamp <= 0) {
+         return false;
+      }
+      AtomicLongArray t = table;
+      int mask = t.length() - 1;
+      for (int i = slot(startTimestamp, mask);; i = (i + 1) & mask) {
+         long key = t.get(i);
+         if (key == startTimestamp) {
+            return true;
+         } else if (key == FREE) {
+            return false;
+         }
+      }
+   }
+
+   synchronized boolean add(long startTimestamp) {
+      return insert(startTimestamp);
+   }
+
+   /**
+    * Adds count timestamps of startTimestamps, from offset on
+    */
+   synchronized void addAll(long[] startTimestamps, int offset, int count) {
+      for (int i = offset; i < offset + count; ++i) {
+         insert(startTimestamps[i]);
+      }
+   }
+
+   synchronized boolean remove(long startTimestamp) {
+      if (startTimestamp <= 0) {
+         return false;
+      }
+      AtomicLongArray t = table;
+      int mask = t.length() - 1;
+      for (int i = slot(startTimestamp, mask);; i = (i + 1) & mask) {
+         long key = t.get(i);
+         if (key == startTimestamp) {
+            t.set(i, REMOVED);
+            size--;
+            return true;
+         } else if (key == FREE) {
+            return false;
+         }
+      }
+   }
+
+   synchronized int size() {
+      return size;
+   }
+
+   synchronized void clear() {
+      size = 0;
+      table = allocate(minCapacity);
+   }
+
+   private boolean insert(long startTimestamp) {
+      if (startTimestamp <= 0) {
+         return false;
+      }
+      AtomicLongArray t = table;
+      int mask = t.length() - 1;
+      int removed = -1;
+      int i = slot(startTimestamp, mask);
+      for (;; i = (i + 1) & mask) {
+         long key = t.get(i);
+         if (key == startTimestamp) {
+            return false;
+         } else if (key == FREE) {
+            break;
+         } else if (key == REMOVED && removed < 0) {
+            removed = i;
+         }
+      }
+      if (removed >= 0) {
+         t.set(removed, startTimestamp);
+      } else {
+         t.set(i, startTimestamp);
+         used++;
+      }
+      size++;
+      if (used > threshold) {
+         rehash();
+      }
+      return true;
+   }
+
+   /**
+    * Builds a new table without the removed entries and publishes it, the
+    * lookups on the old one still complete
+    */
+   private void rehash() {
+      AtomicLongArray old = table;
+      AtomicLongArray t = allocate(Math.max(tableSize(size * 2), minCapacity));
+      int mask = t.length() - 1;
+      for (int j = 0; j < old.length(); ++j) {
+         long key = old.get(j);
+         if (key != FREE && key != REMOVED) {
+            int i = slot(key, mask);
+            while (t.get(i) != FREE) {
+               i = (i + 1) & mask;
+            }
+            t.set(i, key);
+         }
+      }
+      table = t;
+   }
+}
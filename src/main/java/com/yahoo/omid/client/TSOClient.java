@@ -18,19 +18,19 @@ package com.yahoo.omid.client;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.conf.Configuration;
 import org.jboss.netty.bootstrap.ClientBootstrap;
@@ -49,14 +49,19 @@ import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.yahoo.omid.replication.ReplicationBatch;
 import com.yahoo.omid.replication.Zipper;
 import com.yahoo.omid.replication.ZipperState;
 import com.yahoo.omid.tso.Committed;
 import com.yahoo.omid.tso.RowKey;
 import com.yahoo.omid.tso.TSOMessage;
+import com.yahoo.omid.tso.messages.AbortRangeRequest;
 import com.yahoo.omid.tso.messages.AbortRequest;
 import com.yahoo.omid.tso.messages.AbortedTransactionReport;
+import com.yahoo.omid.tso.messages.BulkAbortedTransactionReport;
 import com.yahoo.omid.tso.messages.CleanedTransactionReport;
+import com.yahoo.omid.tso.messages.BatchCommitQueryRequest;
+import com.yahoo.omid.tso.messages.BatchCommitQueryResponse;
 import com.yahoo.omid.tso.messages.CommitQueryRequest;
 import com.yahoo.omid.tso.messages.CommitQueryResponse;
 import com.yahoo.omid.tso.messages.CommitRequest;
@@ -64,6 +69,8 @@ import com.yahoo.omid.tso.messages.CommitResponse;
 import com.yahoo.omid.tso.messages.CommittedTransactionReport;
 import com.yahoo.omid.tso.messages.FullAbortRequest;
 import com.yahoo.omid.tso.messages.LargestDeletedTimestampReport;
+import com.yahoo.omid.tso.messages.TimestampBatchRequest;
+import com.yahoo.omid.tso.messages.TimestampBatchResponse;
 import com.yahoo.omid.tso.messages.TimestampRequest;
 import com.yahoo.omid.tso.messages.TimestampResponse;
 import com.yahoo.omid.tso.serialization.TSODecoder;
@@ -81,13 +88,41 @@ public class TSOClient extends SimpleChannelHandler {
    private Queue<CreateCallback> createCallbacks;
    private Map<Long, CommitCallback> commitCallbacks;
    private Map<Long, List<CommitQueryCallback>> isCommittedCallbacks;
+   private Map<Long, List<BatchCommitQueryOp>> batchQueries;
    
-   private Committed committed = new Committed();
-   private Set<Long> aborted = Collections.synchronizedSet(new HashSet<Long>(1000));
+   private final Committed committed;
+   private final AbortedSet aborted = new AbortedSet(1000);
    private long largestDeletedTimestamp;
    private long connectionTimestamp = 0;
    private boolean hasConnectionTimestamp = false;
 
+   /*
+    * Start timestamps fetched in batches, handed out by getNewTimestamp when
+    * tso.timestamp.batch is larger than 1. The ones not handed out yet are
+    * [nextPrefetched, endPrefetched). All guarded by prefetchLock.
+    *
+    * A prefetched timestamp is thrown away once it is older than
+    * prefetchMaxAge, or when a read-your-writes transaction starts and it is
+    * older than the commit of a transaction of this client that wrote
+    * something (prefetchFloor). The thrown away ranges [first, end) wait in
+    * abandoned until they are aborted on the TSO, otherwise they would stay
+    * uncommitted forever.
+    */
+   private int timestampBatch;
+   private long prefetchMaxAge;
+   private long prefetchedAt;
+   private long prefetchFloor = 0;
+   private boolean readYourWrites;
+   private boolean floorWaiting = false;
+   private final List<long[]> abandoned = new ArrayList<long[]>();
+   private boolean lengthPrefixedFrames;
+   private boolean bulkReplication;
+   private final Object prefetchLock = new Object();
+   private long nextPrefetched = 0;
+   private long endPrefetched = 0;
+   private boolean batchRequested = false;
+   private Queue<CreateCallback> batchCallbacks = new ArrayDeque<CreateCallback>();
+
    private ChannelFactory factory;
    private ClientBootstrap bootstrap;
    private Channel channel;
@@ -177,6 +212,33 @@ public class TSOClient extends SimpleChannelHandler {
       }
    }
 
+   private class TimestampBatchOp implements Op {
+      private int count;
+
+      TimestampBatchOp(int count) {
+         this.count = count;
+      }
+
+      public void execute(Channel channel) {
+         try {
+            ChannelFuture f = channel.write(new TimestampBatchRequest(count));
+            f.addListener(new ChannelFutureListener() {
+                  public void operationComplete(ChannelFuture future) {
+                     if (!future.isSuccess()) {
+                        error(new IOException("Error writing to socket"));
+                     }
+                  }
+               });
+         } catch (Exception e) {
+            error(e);
+         }
+      }
+
+      public void error(Exception e) {
+         failPrefetch(e);
+      }
+   }
+
    private class CommitQueryOp implements Op {
       long startTimestamp;
       long pendingWriteTimestamp;
@@ -223,6 +285,72 @@ public class TSOClient extends SimpleChannelHandler {
       }
    }
 
+   private class BatchCommitQueryOp implements Op {
+      long startTimestamp;
+      long[] pendingWriteTimestamps;
+      int count;
+      BatchCommitQueryCallback cb;
+
+      BatchCommitQueryOp(long startTimestamp, long[] pendingWriteTimestamps, int count, BatchCommitQueryCallback cb) {
+         this.startTimestamp = startTimestamp;
+         this.pendingWriteTimestamps = pendingWriteTimestamps;
+         this.count = count;
+         this.cb = cb;
+      }
+
+      /**
+       * A transaction may have several batches in flight, the reply is
+       * matched by its query timestamps
+       */
+      boolean answeredBy(BatchCommitQueryResponse r) {
+         if (r.count != count) {
+            return false;
+         }
+         for (int i = 0; i < count; ++i) {
+            if (r.queryTimestamps[i] != pendingWriteTimestamps[i]) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      public void execute(Channel channel) {
+         try {
+            synchronized(batchQueries) {
+               List<BatchCommitQueryOp> ops = batchQueries.get(startTimestamp);
+               if (ops == null) {
+                  ops = new ArrayList<BatchCommitQueryOp>(1);
+                  batchQueries.put(startTimestamp, ops);
+               }
+               ops.add(this);
+            }
+
+            BatchCommitQueryRequest qr = new BatchCommitQueryRequest(startTimestamp, pendingWriteTimestamps, count);
+            ChannelFuture f = channel.write(qr);
+            f.addListener(new ChannelFutureListener() {
+                  public void operationComplete(ChannelFuture future) {
+                     if (!future.isSuccess()) {
+                        error(new IOException("Error writing to socket"));
+                     }
+                  }
+               });
+         } catch (Exception e) {
+            error(e);
+         }
+      }
+
+      public void error(Exception e) {
+         synchronized(batchQueries) {
+            List<BatchCommitQueryOp> ops = batchQueries.get(startTimestamp);
+            if (ops != null && ops.remove(this) && ops.isEmpty()) {
+               batchQueries.remove(startTimestamp);
+            }
+         }
+
+         cb.error(e);
+      }
+   }
+
    private class CommitOp implements Op  {
       long transactionId;
       RowKey[] rows;
@@ -231,7 +359,7 @@ public class TSOClient extends SimpleChannelHandler {
       CommitOp(long transactionid, RowKey[] rows, CommitCallback cb) throws IOException {
          this.transactionId = transactionid;
          this.rows = rows;
-         this.cb = cb;
+         this.cb = rows != null && rows.length > 0 ? new WriteCommitCallback(cb) : cb;
       }
 
       public void execute(Channel channel) {
@@ -267,6 +395,53 @@ public class TSOClient extends SimpleChannelHandler {
       }
    }
 
+   /**
+    * Raises the floor of the next read-your-writes transactions to the commit
+    * of a transaction that wrote something
+    */
+   private class WriteCommitCallback implements CommitCallback {
+      private final CommitCallback cb;
+
+      WriteCommitCallback(CommitCallback cb) {
+         this.cb = cb;
+      }
+
+      public void complete(Result res, long commitTimestamp) {
+         if (res == Result.OK) {
+            synchronized (prefetchLock) {
+               prefetchFloor = Math.max(prefetchFloor, commitTimestamp);
+            }
+         }
+         cb.complete(res, commitTimestamp);
+      }
+
+      public void error(Exception e) {
+         cb.error(e);
+      }
+   }
+
+   /**
+    * Throws away the rest of a prefetched batch once it gets too old
+    */
+   private class PrefetchExpiry extends TimerTask {
+      private final long end;
+
+      PrefetchExpiry(long end) {
+         this.end = end;
+      }
+
+      public void run() {
+         synchronized (prefetchLock) {
+            if (endPrefetched != end) {
+               // a newer batch
+               return;
+            }
+            dropPrefetched(end);
+         }
+         abortAbandoned();
+      }
+   }
+
    private class AbortCompleteOp implements Op {
       long transactionId;
       AbortCompleteCallback cb;
@@ -313,6 +488,7 @@ public class TSOClient extends SimpleChannelHandler {
 
       commitCallbacks = Collections.synchronizedMap(new HashMap<Long, CommitCallback>());
       isCommittedCallbacks = Collections.synchronizedMap(new HashMap<Long, List<CommitQueryCallback>>());
+      batchQueries = Collections.synchronizedMap(new HashMap<Long, List<BatchCommitQueryOp>>());
       createCallbacks = new ConcurrentLinkedQueue<CreateCallback>();
       channel = null;
       
@@ -338,6 +514,16 @@ public class TSOClient extends SimpleChannelHandler {
       int port = conf.getInt("tso.port", 1234);
       max_retries = conf.getInt("tso.max_retries", 100);
       retry_delay_ms = conf.getInt("tso.retry_delay_ms", 1000);
+      timestampBatch = conf.getInt("tso.timestamp.batch", 1);
+      prefetchMaxAge = conf.getInt("tso.timestamp.batch.max_age_ms", 100);
+      // whether getNewTimestamp(cb) skips the prefetched timestamps older than the last write commit
+      readYourWrites = conf.getBoolean("tso.timestamp.batch.readYourWrites", true);
+      // must match omid.lengthPrefixedFrames on the TSO
+      lengthPrefixedFrames = conf.getBoolean("tso.lengthPrefixedFrames", false);
+      // the replication reports are applied in bulk, without reaching processMessage
+      bulkReplication = conf.getBoolean("tso.replication.bulkDecode", true);
+      // buckets of the commit cache, 128KB each
+      committed = new Committed(conf.getInt("tso.committed.buckets", 1 << 15));
 
       if (host == null) {
          throw new IOException("tso.host missing from configuration");
@@ -390,7 +576,201 @@ public class TSOClient extends SimpleChannelHandler {
    }
 
    public void getNewTimestamp(CreateCallback cb) throws IOException {
-      withConnection(new NewTimestampOp(cb));
+      getNewTimestamp(cb, readYourWrites);
+   }
+
+   /**
+    * @return whether getNewTimestamp(cb) starts read-your-writes transactions,
+    *         tso.timestamp.batch.readYourWrites
+    */
+   public boolean isReadYourWrites() {
+      return readYourWrites;
+   }
+
+   /**
+    * @param readYourWrites
+    *           if the transaction must see the writes of the transactions of
+    *           this client committed before, otherwise a prefetched timestamp
+    *           older than them can be used, which is still a consistent
+    *           snapshot
+    */
+   public void getNewTimestamp(CreateCallback cb, boolean readYourWrites) throws IOException {
+      if (timestampBatch <= 1) {
+         withConnection(new NewTimestampOp(cb));
+         return;
+      }
+      long timestamp = 0;
+      boolean request = false;
+      boolean dropped;
+      synchronized (prefetchLock) {
+         dropped = dropStalePrefetched();
+         if (readYourWrites && nextPrefetched < prefetchFloor && nextPrefetched < endPrefetched) {
+            dropPrefetched(prefetchFloor);
+            dropped = true;
+         }
+         if (nextPrefetched < endPrefetched) {
+            timestamp = nextPrefetched++;
+         } else {
+            batchCallbacks.add(cb);
+            floorWaiting |= readYourWrites;
+            request = !batchRequested;
+            batchRequested = true;
+         }
+      }
+      if (dropped) {
+         abortAbandoned();
+      }
+      if (timestamp != 0) {
+         cb.complete(timestamp);
+      } else if (request) {
+         requestBatch(timestampBatch);
+      }
+   }
+
+   /**
+    * Asks the TSO for count start timestamps in one round trip. They are
+    * handed out by the next calls to getNewTimestamp. Does nothing if there
+    * are prefetched timestamps left or a batch is already on its way.
+    */
+   public void prefetchTimestamps(int count) {
+      boolean dropped;
+      synchronized (prefetchLock) {
+         dropped = dropStalePrefetched();
+         if (batchRequested || nextPrefetched < endPrefetched) {
+            return;
+         }
+         batchRequested = true;
+      }
+      if (dropped) {
+         abortAbandoned();
+      }
+      requestBatch(count);
+   }
+
+   private void requestBatch(int count) {
+      try {
+         withConnection(new TimestampBatchOp(count));
+      } catch (IOException e) {
+         failPrefetch(e);
+      }
+   }
+
+   /**
+    * Hands out the timestamps of a batch to the waiting callbacks, keeping the
+    * rest for the next calls to getNewTimestamp
+    */
+   private void prefetched(long first, int count) {
+      CreateCallback[] ready;
+      long start;
+      long end;
+      boolean left;
+      int waiting;
+      synchronized (prefetchLock) {
+         batchRequested = false;
+         dropPrefetched(Long.MAX_VALUE);
+         nextPrefetched = first;
+         endPrefetched = end = first + count;
+         prefetchedAt = System.nanoTime();
+         if (floorWaiting) {
+            // a transaction of this client may have committed while the batch was on its way
+            dropPrefetched(prefetchFloor);
+            floorWaiting = false;
+         }
+         start = nextPrefetched;
+         ready = new CreateCallback[(int) Math.min(batchCallbacks.size(), endPrefetched - nextPrefetched)];
+         for (int i = 0; i < ready.length; ++i) {
+            ready[i] = batchCallbacks.poll();
+         }
+         nextPrefetched += ready.length;
+         left = nextPrefetched < endPrefetched;
+         waiting = batchCallbacks.size();
+         if (waiting > 0) {
+            batchRequested = true;
+         }
+      }
+      abortAbandoned();
+      for (int i = 0; i < ready.length; ++i) {
+         ready[i].complete(start + i);
+      }
+      if (left) {
+         retryTimer.schedule(new PrefetchExpiry(end), prefetchMaxAge);
+      }
+      if (waiting > 0) {
+         requestBatch(Math.max(timestampBatch, waiting));
+      }
+   }
+
+   /**
+    * Throws away the prefetched timestamps under upTo. Must be called
+    * holding prefetchLock.
+    */
+   private void dropPrefetched(long upTo) {
+      long end = Math.min(endPrefetched, upTo);
+      if (nextPrefetched < end) {
+         abandoned.add(new long[] { nextPrefetched, end });
+         nextPrefetched = end;
+      }
+   }
+
+   /**
+    * Throws away the prefetched timestamps if they are too old, in case
+    * their PrefetchExpiry didn't run yet. Must be called holding
+    * prefetchLock.
+    * 
+    * @return true if any was thrown away
+    */
+   private boolean dropStalePrefetched() {
+      if (nextPrefetched < endPrefetched
+            && System.nanoTime() - prefetchedAt > TimeUnit.MILLISECONDS.toNanos(prefetchMaxAge)) {
+         dropPrefetched(endPrefetched);
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Aborts the thrown away timestamps on the TSO, one message per range. No
+    * transaction wrote anything with them, so they are cleaned right away.
+    * If there is no connection they wait for the next one.
+    */
+   private void abortAbandoned() {
+      Channel ch;
+      synchronized (state) {
+         ch = state == State.CONNECTED ? channel : null;
+      }
+      if (ch == null) {
+         return;
+      }
+      List<long[]> ranges;
+      synchronized (prefetchLock) {
+         if (abandoned.isEmpty()) {
+            return;
+         }
+         ranges = new ArrayList<long[]>(abandoned);
+         abandoned.clear();
+      }
+      for (long[] range : ranges) {
+         ch.write(new AbortRangeRequest(range[0], range[1]));
+      }
+   }
+
+   /**
+    * Drops the prefetched timestamps and fails the callbacks waiting for them.
+    * The dropped timestamps are aborted once connected again.
+    */
+   private void failPrefetch(Exception e) {
+      List<CreateCallback> failed;
+      synchronized (prefetchLock) {
+         failed = new ArrayList<CreateCallback>(batchCallbacks);
+         batchCallbacks.clear();
+         batchRequested = false;
+         floorWaiting = false;
+         dropPrefetched(Long.MAX_VALUE);
+         nextPrefetched = endPrefetched = 0;
+      }
+      for (CreateCallback cb : failed) {
+         cb.error(e);
+      }
    }
    
    public void isCommitted(long startTimestamp, long pendingWriteTimestamp, CommitQueryCallback cb)
@@ -398,6 +778,14 @@ public class TSOClient extends SimpleChannelHandler {
       withConnection(new CommitQueryOp(startTimestamp, pendingWriteTimestamp, cb));
    }
 
+   /**
+    * Asks about the first count pendingWriteTimestamps in a single request
+    */
+   public void isCommitted(long startTimestamp, long[] pendingWriteTimestamps, int count,
+         BatchCommitQueryCallback cb) throws IOException {
+      withConnection(new BatchCommitQueryOp(startTimestamp, pendingWriteTimestamps, count, cb));
+   }
+
    public void abort(long transactionId) throws IOException {
        withConnection(new AbortOp(transactionId));
    }
@@ -413,9 +801,9 @@ public class TSOClient extends SimpleChannelHandler {
    @Override
    synchronized
    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) {
-      e.getChannel().getPipeline().addFirst("decoder", new TSODecoder(new Zipper()));
+      e.getChannel().getPipeline().addFirst("decoder", new TSODecoder(new Zipper(), false, bulkReplication));
       e.getChannel().getPipeline().addAfter("decoder", "encoder",
-                                            new TSOEncoder());
+                                            new TSOEncoder(lengthPrefixedFrames));
    }
 
    /**
@@ -436,10 +824,11 @@ public class TSOClient extends SimpleChannelHandler {
          o.execute(channel);
          o = queuedOps.poll();
       }
+      abortAbandoned();
    }
    
    private void clearState() {
-       committed = new Committed();
+       committed.clear();
        aborted.clear();
        largestDeletedTimestamp = 0;
        connectionTimestamp = 0;
@@ -465,25 +854,58 @@ public class TSOClient extends SimpleChannelHandler {
                cqb.error(new IOException("Channel Disconnected"));
             }
          }
+         for (List<BatchCommitQueryOp> ops : batchQueries.values()) {
+            for (BatchCommitQueryOp op : ops) {
+               op.cb.error(new IOException("Channel Disconnected"));
+            }
+         }
          createCallbacks.clear();
          commitCallbacks.clear();
          isCommittedCallbacks.clear();
+         batchQueries.clear();
+         // prefetched timestamps are only valid with the state of this connection
+         failPrefetch(new IOException("Channel Disconnected"));
          connectIfNeeded();
       }
    }
 
-   public boolean validRead(long transaction, long startTimestamp) throws IOException {
+   /**
+    * @return the local cache of commit timestamps, for its metrics
+    */
+   public Committed getCommitted() {
+      return committed;
+   }
+
+   static final int INVALID_READ = 0;
+   static final int VALID_READ = 1;
+   static final int UNKNOWN_READ = -1;
+
+   /**
+    * Answers validRead() with the local knowledge only
+    * 
+    * @return VALID_READ, INVALID_READ or UNKNOWN_READ if the TSO has to be
+    *         asked
+    */
+   int localValidRead(long transaction, long startTimestamp) {
       if (transaction == startTimestamp)
-         return true;
+         return VALID_READ;
       if (aborted.contains(transaction)) 
-         return false;
+         return INVALID_READ;
       long commitTimestamp = committed.getCommit(transaction);
       if (commitTimestamp != -1)
-         return commitTimestamp <= startTimestamp;
-      if (hasConnectionTimestamp && transaction > connectionTimestamp)
-         return transaction <= largestDeletedTimestamp;
+         return commitTimestamp <= startTimestamp ? VALID_READ : INVALID_READ;
+      if (hasConnectionTimestamp && transaction > connectionTimestamp
+            && transaction > committed.getOverflowTimestamp())
+         return transaction <= largestDeletedTimestamp ? VALID_READ : INVALID_READ;
       if (transaction <= largestDeletedTimestamp)
-         return true;
+         return VALID_READ;
+      return UNKNOWN_READ;
+   }
+
+   public boolean validRead(long transaction, long startTimestamp) throws IOException {
+      int local = localValidRead(transaction, startTimestamp);
+      if (local != UNKNOWN_READ)
+         return local == VALID_READ;
       askedTSO++;
       SyncCommitQueryCallback cb = new SyncCommitQueryCallback();
       isCommitted(startTimestamp, transaction, cb);
@@ -494,7 +916,81 @@ public class TSOClient extends SimpleChannelHandler {
       }
       return cb.isCommitted();
    }
+
+   /**
+    * Like validRead() for the first count transactions, but the ones that
+    * can't be answered locally are sent to the TSO together, so there is at
+    * most one round trip
+    * 
+    * @return whether the read of each transaction is valid
+    */
+   public boolean[] validReads(long[] transactions, int count, long startTimestamp) throws IOException {
+      boolean[] valid = new boolean[count];
+      int[] unknown = null;
+      int nUnknown = 0;
+      for (int i = 0; i < count; ++i) {
+         int local = localValidRead(transactions[i], startTimestamp);
+         if (local == UNKNOWN_READ) {
+            if (unknown == null) {
+               unknown = new int[count - i];
+            }
+            unknown[nUnknown++] = i;
+         } else {
+            valid[i] = local == VALID_READ;
+         }
+      }
+      if (nUnknown == 1) {
+         valid[unknown[0]] = validRead(transactions[unknown[0]], startTimestamp);
+      } else if (nUnknown > 1) {
+         askedTSO++;
+         long[] queries = new long[nUnknown];
+         for (int i = 0; i < nUnknown; ++i) {
+            queries[i] = transactions[unknown[i]];
+         }
+         SyncBatchCommitQueryCallback cb = new SyncBatchCommitQueryCallback();
+         isCommitted(startTimestamp, queries, nUnknown, cb);
+         try {
+            cb.await();
+         } catch (InterruptedException e) {
+            throw new IOException("Commit query didn't complete", e);
+         }
+         if (cb.getException() != null) {
+            throw new IOException("Commit query failed", cb.getException());
+         }
+         boolean[] committed = cb.getCommitted();
+         for (int i = 0; i < nUnknown; ++i) {
+            valid[unknown[i]] = committed[i];
+         }
+      }
+      return valid;
+   }
    
+   /**
+    * Applies the replicated TSO state, reported one by one or in batches
+    */
+   private ReplicationBatch.Visitor replicationApplier = new ReplicationBatch.Visitor() {
+      @Override
+      public void committed(long startTimestamp, long commitTimestamp) {
+         committed.commit(startTimestamp, commitTimestamp);
+      }
+
+      @Override
+      public void halfAborted(long startTimestamp) {
+         aborted.add(startTimestamp);
+      }
+
+      @Override
+      public void fullAborted(long startTimestamp) {
+         aborted.remove(startTimestamp);
+      }
+
+      @Override
+      public void largestDeletedTimestamp(long largestDeletedTimestamp) {
+         TSOClient.this.largestDeletedTimestamp = largestDeletedTimestamp;
+         committed.raiseLargestDeletedTransaction(largestDeletedTimestamp);
+      }
+   };
+
    /**
     * When a message is received, handle it based on its type
     */
@@ -527,6 +1023,13 @@ public class TSOClient extends SimpleChannelHandler {
             return;
          }
          cb.complete(timestamp);
+      } else if (msg instanceof TimestampBatchResponse) {
+         TimestampBatchResponse r = (TimestampBatchResponse) msg;
+         if (!hasConnectionTimestamp || r.first < connectionTimestamp) {
+            hasConnectionTimestamp = true;
+            connectionTimestamp = r.first;
+         }
+         prefetched(r.first, r.count);
       } else if (msg instanceof CommitQueryResponse) {
          CommitQueryResponse r = (CommitQueryResponse)msg;
          if (r.commitTimestamp != 0) {
@@ -545,21 +1048,57 @@ public class TSOClient extends SimpleChannelHandler {
          for (CommitQueryCallback cb : cbs) {
             cb.complete(r.committed);
          }
+      } else if (msg instanceof BatchCommitQueryResponse) {
+         BatchCommitQueryResponse r = (BatchCommitQueryResponse) msg;
+         for (int i = 0; i < r.count; ++i) {
+            if (r.commitTimestamps[i] != 0) {
+               committed.commit(r.queryTimestamps[i], r.commitTimestamps[i]);
+            } else if (r.committed[i]) {
+               committed.commit(r.queryTimestamps[i], largestDeletedTimestamp);
+            }
+         }
+         BatchCommitQueryOp op = null;
+         synchronized (batchQueries) {
+            List<BatchCommitQueryOp> ops = batchQueries.get(r.startTimestamp);
+            if (ops != null) {
+               for (int i = 0; i < ops.size(); ++i) {
+                  if (ops.get(i).answeredBy(r)) {
+                     op = ops.remove(i);
+                     break;
+                  }
+               }
+               if (ops.isEmpty()) {
+                  batchQueries.remove(r.startTimestamp);
+               }
+            }
+         }
+         if (op == null) {
+            LOG.error("Received a batch commit query response for a nonexisting request");
+            return;
+         }
+         op.cb.complete(r.committed);
+      } else if (msg instanceof ReplicationBatch) {
+         ((ReplicationBatch) msg).apply(replicationApplier);
+         return;
       } else if (msg instanceof CommittedTransactionReport) {
          CommittedTransactionReport ctr = (CommittedTransactionReport) msg;
-         committed.commit(ctr.startTimestamp, ctr.commitTimestamp);
+         replicationApplier.committed(ctr.startTimestamp, ctr.commitTimestamp);
       } else if (msg instanceof CleanedTransactionReport) {
           CleanedTransactionReport r = (CleanedTransactionReport) msg;
-         aborted.remove(r.startTimestamp);
+         replicationApplier.fullAborted(r.startTimestamp);
       } else if (msg instanceof AbortedTransactionReport) {
          AbortedTransactionReport r = (AbortedTransactionReport) msg;
-         aborted.add(r.startTimestamp);
+         replicationApplier.halfAborted(r.startTimestamp);
+      } else if (msg instanceof BulkAbortedTransactionReport) {
+         BulkAbortedTransactionReport r = (BulkAbortedTransactionReport) msg;
+         aborted.addAll(r.startTimestamps, r.offset, r.count);
       } else if (msg instanceof LargestDeletedTimestampReport) {
          LargestDeletedTimestampReport r = (LargestDeletedTimestampReport) msg;
-         largestDeletedTimestamp = r.largestDeletedTimestamp;
-         committed.raiseLargestDeletedTransaction(r.largestDeletedTimestamp);
+         replicationApplier.largestDeletedTimestamp(r.largestDeletedTimestamp);
       } else if (msg instanceof ZipperState) {
-         // ignore
+         // the TSO replicates its state from this point on, either because
+         // we just connected or because we fell too far behind
+         clearState();
       } else {
          LOG.error("Unknown message received " +  msg);
       }
@@ -618,6 +1157,7 @@ public class TSOClient extends SimpleChannelHandler {
          }
          createCallbacks.clear();
       }
+      failPrefetch(e);
 
       synchronized(commitCallbacks) {
          for (CommitCallback cb : commitCallbacks.values()) {
@@ -634,8 +1174,24 @@ public class TSOClient extends SimpleChannelHandler {
          } 
          isCommittedCallbacks.clear();
       }      
+
+      synchronized(batchQueries) {
+         for (List<BatchCommitQueryOp> ops : batchQueries.values()) {
+            for (BatchCommitQueryOp op : ops) {
+               op.cb.error(e);
+            }
+         }
+         batchQueries.clear();
+      }
    }
 
+   /**
+    * Hook called with every message received once the client handled it.
+    * With tso.replication.bulkDecode (the default) the consecutive
+    * replication reports are decoded into a ReplicationBatch that is
+    * applied to the client state directly, so those reports never reach
+    * it; only the ones decoded one by one do.
+    */
    protected void processMessage(TSOMessage msg) {
    }
 
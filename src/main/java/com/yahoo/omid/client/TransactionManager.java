@@ -64,9 +64,21 @@ public class TransactionManager {
     * @throws TransactionException
     */
    public TransactionState beginTransaction() throws TransactionException {
+      return beginTransaction(tsoclient.isReadYourWrites());
+   }
+
+   /**
+    * Starts a new transaction, like {@link #beginTransaction()}.
+    *
+    * @param readYourWrites if false the transaction may not see the writes of the ones this client
+    *        committed before, which lets it start from a prefetched timestamp (tso.timestamp.batch)
+    * @return Opaque object which identifies one transaction.
+    * @throws TransactionException
+    */
+   public TransactionState beginTransaction(boolean readYourWrites) throws TransactionException {
       SyncCreateCallback cb = new SyncCreateCallback();
       try {
-         tsoclient.getNewTimestamp(cb);
+         tsoclient.getNewTimestamp(cb, readYourWrites);
          cb.await();
       } catch (Exception e) {
          throw new TransactionException("Could not get new timestamp", e);
@@ -19,11 +19,14 @@ package com.yahoo.omid.client;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HConstants;
@@ -210,6 +213,8 @@ public class TransactionalTable extends HTable {
       }
 
       long startTimestamp = transactionState.getStartTimestamp();
+      // Commit state of the timestamps the client doesn't know about, asked all at once
+      Map<Long, Boolean> resolved = resolveReads(transactionState, kvs);
       // Filtered kvs
       List<KeyValue> filtered = new ArrayList<KeyValue>();
       // Map from column to older uncommitted timestamp
@@ -241,7 +246,11 @@ public class TransactionalTable extends HTable {
             continue;
          }
          versionsProcessed++;
-         if (transactionState.tsoclient.validRead(kv.getTimestamp(), startTimestamp)) {
+         Boolean valid = resolved.get(kv.getTimestamp());
+         if (valid == null) {
+            valid = transactionState.tsoclient.validRead(kv.getTimestamp(), startTimestamp);
+         }
+         if (valid) {
             // Valid read, add it to result unless it's a delete
             if (kv.getValueLength() > 0) {
                filtered.add(kv);
@@ -269,6 +278,57 @@ public class TransactionalTable extends HTable {
       return filtered;
    }
 
+   /**
+    * Looks for the versions filter() will check whose validity the client
+    * can't decide locally, up to the first locally valid version of each
+    * column, and resolves all of them with a single query to the TSO.
+    * 
+    * @return the validity of the resolved timestamps
+    */
+   private Map<Long, Boolean> resolveReads(TransactionState transactionState, List<KeyValue> kvs) throws IOException {
+      TSOClient tsoclient = transactionState.tsoclient;
+      long startTimestamp = transactionState.getStartTimestamp();
+      Set<Long> unknown = null;
+      ColumnWrapper lastColumn = new ColumnWrapper(null, null);
+      boolean validRead = true;
+      for (KeyValue kv : kvs) {
+         ColumnWrapper currentColumn = new ColumnWrapper(kv.getFamily(), kv.getQualifier());
+         if (!currentColumn.equals(lastColumn)) {
+            validRead = false;
+            lastColumn = currentColumn;
+         }
+         if (validRead) {
+            continue;
+         }
+         switch (tsoclient.localValidRead(kv.getTimestamp(), startTimestamp)) {
+         case TSOClient.VALID_READ:
+            validRead = true;
+            break;
+         case TSOClient.UNKNOWN_READ:
+            if (unknown == null) {
+               unknown = new LinkedHashSet<Long>();
+            }
+            unknown.add(kv.getTimestamp());
+            break;
+         }
+      }
+      // a single one is asked by filter() itself
+      if (unknown == null || unknown.size() < 2) {
+         return Collections.emptyMap();
+      }
+      long[] transactions = new long[unknown.size()];
+      int count = 0;
+      for (Long transaction : unknown) {
+         transactions[count++] = transaction;
+      }
+      boolean[] valid = tsoclient.validReads(transactions, count, startTimestamp);
+      Map<Long, Boolean> resolved = new HashMap<Long, Boolean>(count * 2);
+      for (int i = 0; i < count; ++i) {
+         resolved.put(transactions[i], valid[i]);
+      }
+      return resolved;
+   }
+
    protected class ClientScanner extends HTable.ClientScanner {
       private TransactionState state;
       private int maxVersions;
@@ -16,47 +16,85 @@
 
 package com.yahoo.omid.replication;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
-
+/**
+ * A segment of the replication ring. The writer appends messages and
+ * publishes how far readers can read; once full, it links the next segment
+ * and never writes to this one again.
+ * 
+ * Segments are reference counted: the writer holds the one it writes to,
+ * every reader holds the one it is reading, every pending channel write
+ * holds the segments its data was sliced from, and a full segment holds the
+ * next one, so they are released in order.
+ */
 public class ReadersAwareBuffer {
    private static final Log LOG = LogFactory.getLog(ReadersAwareBuffer.class);
 
-   private static final int CAPACITY = 1024*1024;
+   /**
+    * Size of the segments, in bytes
+    */
+   static int CAPACITY = 1024*1024;
+   static {
+      try {
+         CAPACITY = Integer.valueOf(System.getProperty("omid.replicationBufferSize"));
+      } catch (Exception e) {
+         // ignore, usedefault
+      }
+   };
    
    public ChannelBuffer buffer;
-   private int pendingReaders = 0;
-   private boolean scheduledForPool;
+
+   /**
+    * bytes readers can read, only written by the writer
+    */
+   volatile int published;
+
+   /**
+    * set by the writer once it moves to the next segment, published is final
+    * by then
+    */
+   volatile ReadersAwareBuffer next;
+
+   private final AtomicInteger references = new AtomicInteger();
    
-   public static long nBuffers;
+   /**
+    * Segments allocated so far
+    */
+   public static final AtomicLong nBuffers = new AtomicLong();
 
    public ReadersAwareBuffer() {
-      nBuffers++;
-      LOG.warn("Allocated buffer");
+      long allocated = nBuffers.incrementAndGet();
+      if (LOG.isDebugEnabled()) {
+         LOG.debug("Allocated buffer " + allocated);
+      }
       buffer = ChannelBuffers.directBuffer(CAPACITY);
    }
    
-   public synchronized void increaseReaders() {
-      pendingReaders++;
+   public void retain() {
+      references.incrementAndGet();
    }
    
-   public synchronized void decreaseReaders() {
-      pendingReaders--;
-   }
-
-   public synchronized boolean isReadyForPool() {
-       return scheduledForPool && pendingReaders == 0;
-   }
-
-   public synchronized void scheduleForPool() {
-       scheduledForPool = true;
+   /**
+    * @return true if it was the last reference
+    */
+   public boolean release() {
+      return references.decrementAndGet() == 0;
    }
 
-   public synchronized void reset() {
-       pendingReaders = 0;
-       scheduledForPool = false;
+   /**
+    * Prepares the segment to be written again, held by the writer
+    */
+   public void reset() {
+      buffer.clear();
+      published = 0;
+      next = null;
+      references.set(1);
    }
 }
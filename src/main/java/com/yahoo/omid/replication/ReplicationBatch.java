@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.replication;
+
+/**
+ * Replication messages decoded in bulk by a client, see
+ * {@link Zipper#decodeBulk(org.jboss.netty.buffer.ChannelBuffer, ReplicationBatch)}.
+ * 
+ * They are kept in primitive arrays, in the order they were received, instead
+ * of allocating one message object for each of them.
+ */
+public class ReplicationBatch {
+
+   /**
+    * Applies the messages of a batch
+    */
+   public interface Visitor {
+      void committed(long startTimestamp, long commitTimestamp);
+
+      void halfAborted(long startTimestamp);
+
+      void fullAborted(long startTimestamp);
+
+      void largestDeletedTimestamp(long largestDeletedTimestamp);
+   }
+
+   private static final byte COMMITTED = 0;
+   private static final byte HALF_ABORTED = 1;
+   private static final byte FULL_ABORTED = 2;
+   private static final byte LARGEST_DELETED = 3;
+
+   private byte[] types;
+   private long[] first;
+   private long[] second;
+   private int size = 0;
+
+   public ReplicationBatch() {
+      this(64);
+   }
+
+   public ReplicationBatch(int capacity) {
+      types = new byte[capacity];
+      first = new long[capacity];
+      second = new long[capacity];
+   }
+
+   public int size() {
+      return size;
+   }
+
+   public void apply(Visitor visitor) {
+      for (int i = 0; i < size; ++i) {
+         switch (types[i]) {
+         case COMMITTED:
+            visitor.committed(first[i], second[i]);
+            break;
+         case HALF_ABORTED:
+            visitor.halfAborted(first[i]);
+            break;
+         case FULL_ABORTED:
+            visitor.fullAborted(first[i]);
+            break;
+         case LARGEST_DELETED:
+            visitor.largestDeletedTimestamp(first[i]);
+            break;
+         }
+      }
+   }
+
+   void addCommitted(long startTimestamp, long commitTimestamp) {
+      add(COMMITTED, startTimestamp, commitTimestamp);
+   }
+
+   void addHalfAborted(long startTimestamp) {
+      add(HALF_ABORTED, startTimestamp, 0);
+   }
+
+   void addFullAborted(long startTimestamp) {
+      add(FULL_ABORTED, startTimestamp, 0);
+   }
+
+   void addLargestDeletedTimestamp(long largestDeletedTimestamp) {
+      add(LARGEST_DELETED, largestDeletedTimestamp, 0);
+   }
+
+   private void add(byte type, long a, long b) {
+      if (size == types.length) {
+         int capacity = size * 2;
+         byte[] newTypes = new byte[capacity];
+         long[] newFirst = new long[capacity];
+         long[] newSecond = new long[capacity];
+         System.arraycopy(types, 0, newTypes, 0, size);
+         System.arraycopy(first, 0, newFirst, 0, size);
+         System.arraycopy(second, 0, newSecond, 0, size);
+         types = newTypes;
+         first = newFirst;
+         second = newSecond;
+      }
+      types[size] = type;
+      first[size] = a;
+      second[size] = b;
+      size++;
+   }
+}
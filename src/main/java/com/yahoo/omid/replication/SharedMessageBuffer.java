@@ -16,10 +16,18 @@
 
 package com.yahoo.omid.replication;
 
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
@@ -31,35 +39,148 @@ import org.jboss.netty.channel.Channels;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Replication log shared by all the clients: a single writer appends to a
+ * chain of segments (see {@link ReadersAwareBuffer}) and every client reads
+ * it through its own ReadingBuffer cursor.
+ * 
+ * Writes must be serialized by the caller. Readers never take the writer
+ * lock: they read up to the volatile published index of their segment and
+ * follow the link to the next one, so flushing a client only contends with
+ * other flushes of the same client.
+ * 
+ * Clients get their deltas when they ask for a timestamp. In push mode a
+ * flusher thread also streams them to the clients every PUSH_INTERVAL, or as
+ * soon as PUSH_BYTES are pending, so read mostly clients keep up too.
+ * 
+ * Memory is bounded: at most POOL_SIZE free segments are kept for reuse, and
+ * once more than MAX_BUFFERS segments are in use the clients that are behind
+ * and can't take more data are dropped from the log. They are bootstrapped
+ * again from a new ZipperState on their next timestamp request, see
+ * {@link ReadingBuffer#claimSync()}.
+ */
 public class SharedMessageBuffer {
 
     private static final Logger LOG = LoggerFactory.getLogger(SharedMessageBuffer.class);
 
     private static final int MAX_MESSAGE_SIZE = 30;
 
-    ReadersAwareBuffer pastBuffer = new ReadersAwareBuffer();
-    ReadersAwareBuffer currentBuffer = new ReadersAwareBuffer();
+    /**
+     * Checks of a commit in progress before blocking on it
+     */
+    private static final int COMMIT_SPINS = 1000;
+
+    /**
+     * Bound of every wait for a commit in progress, in milliseconds
+     */
+    private static final long COMMIT_WAIT_MILLIS = 1;
+
+    /**
+     * Latency target of push mode, in microseconds. 0 disables it.
+     */
+    public static int PUSH_INTERVAL = 0;
+    static {
+        try {
+            PUSH_INTERVAL = Integer.valueOf(System.getProperty("omid.replicationPushInterval"));
+        } catch (Exception e) {
+            // ignore, usedefault
+        }
+    };
+
+    /**
+     * Bytes written since the last push that wake up the push flusher before
+     * the interval expires
+     */
+    public static int PUSH_BYTES = 16 * 1024;
+    static {
+        try {
+            PUSH_BYTES = Integer.valueOf(System.getProperty("omid.replicationPushBytes"));
+        } catch (Exception e) {
+            // ignore, usedefault
+        }
+    };
+
+    /**
+     * Free segments kept for reuse
+     */
+    public static int POOL_SIZE = 16;
+    static {
+        try {
+            POOL_SIZE = Integer.valueOf(System.getProperty("omid.replicationPoolSize"));
+        } catch (Exception e) {
+            // ignore, usedefault
+        }
+    };
+
+    /**
+     * Segments in use above which laggard clients are resynced
+     */
+    public static int MAX_BUFFERS = 64;
+    static {
+        try {
+            MAX_BUFFERS = Integer.valueOf(System.getProperty("omid.replicationMaxBuffers"));
+        } catch (Exception e) {
+            // ignore, usedefault
+        }
+    };
+
+    /**
+     * Flushes the readers left behind in full segments, outside of the writer
+     */
+    private static final ExecutorService stragglerFlusher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            t.setName("Replication Straggler Flusher");
+            return t;
+        }
+    });
+
+    BlockingQueue<ReadersAwareBuffer> bufferPool = new LinkedBlockingQueue<ReadersAwareBuffer>(POOL_SIZE);
+    private final AtomicInteger liveBuffers = new AtomicInteger();
+    private final AtomicLong resyncs = new AtomicLong();
+    ReadersAwareBuffer currentBuffer = newBuffer();
     ChannelBuffer writeBuffer = currentBuffer.buffer;
-    BlockingQueue<ReadersAwareBuffer> bufferPool = new LinkedBlockingQueue<ReadersAwareBuffer>();
     Zipper zipper = new Zipper();
-    Set<ReadingBuffer> readingBuffers = new TreeSet<SharedMessageBuffer.ReadingBuffer>();
+    Map<Channel, ReadingBuffer> readingBuffers = new ConcurrentHashMap<Channel, ReadingBuffer>();
+    private final AtomicBoolean stragglerFlushScheduled = new AtomicBoolean();
+    private volatile Thread pushFlusher;
+    private int unpushedBytes = 0;
 
-    public class ReadingBuffer implements Comparable<ReadingBuffer> {
-        private ChannelBuffer readBuffer;
-        private int readerIndex = 0;
+    /**
+     * Odd while a commit is in progress: its commit timestamp may be
+     * allocated but not written yet. Only changed by the writer.
+     */
+    private volatile long commitSequence = 0;
+    private final AtomicInteger commitWaiters = new AtomicInteger();
+    private final Object commitLock = new Object();
+
+    public class ReadingBuffer {
         private ReadersAwareBuffer readingBuffer;
+        private int readerIndex = 0;
         private ChannelHandlerContext ctx;
         private Channel channel;
+        private boolean needsSync = true;
+        private volatile boolean synced = false;
 
         private ReadingBuffer(ChannelHandlerContext ctx) {
             this.channel = ctx.getChannel();
             this.ctx = ctx;
         }
 
-        public void initializeIndexes() {
+        /**
+         * Starts reading at the current end of the log, must be called by the
+         * writer
+         */
+        public synchronized void initializeIndexes() {
+            if (readingBuffer != null) {
+                release(readingBuffer);
+            }
+            needsSync = false;
+            currentBuffer.retain();
             this.readingBuffer = currentBuffer;
-            this.readBuffer = readingBuffer.buffer;
-            this.readerIndex = readBuffer.writerIndex();
+            this.readerIndex = currentBuffer.published;
         }
 
         /**
@@ -72,39 +193,118 @@ public class SharedMessageBuffer {
          *            It registers some callbacks on it
          * @return the deltaSO for the associated client
          */
-        public ChannelBuffer flush(ChannelFuture future) {
-            int readable = readBuffer.readableBytes() - readerIndex;
-
-            if (readable == 0 && readingBuffer != pastBuffer) {
+        public synchronized ChannelBuffer flush(ChannelFuture future) {
+            if (readingBuffer == null) {
                 return ChannelBuffers.EMPTY_BUFFER;
             }
-
-            ChannelBuffer deltaSO = readBuffer.slice(readerIndex, readable);
-            addFinishedWriteListener(future, readingBuffer);
-            readingBuffer.increaseReaders();
-            readerIndex += readable;
-            if (readingBuffer == pastBuffer) {
-                readingBuffer = currentBuffer;
-                readBuffer = readingBuffer.buffer;
+            ChannelBuffer deltaSO = ChannelBuffers.EMPTY_BUFFER;
+            for (;;) {
+                // read the link first, published is final once it is set
+                ReadersAwareBuffer next = readingBuffer.next;
+                int readable = readingBuffer.published - readerIndex;
+                if (readable > 0) {
+                    ChannelBuffer slice = readingBuffer.buffer.slice(readerIndex, readable);
+                    readingBuffer.retain();
+                    addFinishedWriteListener(future, readingBuffer);
+                    readerIndex += readable;
+                    deltaSO = deltaSO.readable() ? ChannelBuffers.wrappedBuffer(deltaSO, slice) : slice;
+                }
+                if (next == null) {
+                    return deltaSO;
+                }
+                next.retain();
+                release(readingBuffer);
+                readingBuffer = next;
                 readerIndex = 0;
-                readable = readBuffer.readableBytes();
-                deltaSO = ChannelBuffers.wrappedBuffer(deltaSO, readBuffer.slice(readerIndex, readable));
-                addFinishedWriteListener(future, readingBuffer);
-                readingBuffer.increaseReaders();
-                readerIndex += readable;
             }
+        }
 
-            return deltaSO;
+        /**
+         * Writes the pending part of the log to the client. Flushes of the same
+         * client are serialized, so it gets the log in order.
+         */
+        public synchronized void flush() {
+            ChannelFuture future = Channels.future(channel);
+            ChannelBuffer cb = flush(future);
+            if (cb.readable()) {
+                Channels.write(ctx, future, cb);
+            }
+        }
+
+        /**
+         * A new client, or one that was dropped from the log, has to be sent
+         * a ZipperState and have its indexes initialized before getting any
+         * deltas. The caller holds the ReadingBuffer lock until it is done.
+         * 
+         * @return true if the client has to be (re)bootstrapped
+         */
+        public synchronized boolean claimSync() {
+            boolean claimed = needsSync;
+            needsSync = false;
+            return claimed;
+        }
+
+        /**
+         * Lets the background flushes send the deltas to this client, once it
+         * is ready to apply them
+         */
+        public void setSynced() {
+            synced = true;
+        }
+
+        private synchronized void push() {
+            if (synced && readingBuffer != null && channel.isWritable()
+                    && (readingBuffer.next != null || readingBuffer.published > readerIndex)) {
+                flush();
+            }
+        }
+
+        /**
+         * Checked by the bootstrap of the client, holding the ReadingBuffer
+         * lock, to stop streaming to it once it was dropped from the log
+         * 
+         * @return true if the client was dropped and has to be bootstrapped
+         *         again
+         */
+        public synchronized boolean isDropped() {
+            return needsSync;
+        }
+
+        /**
+         * Flushes a client left behind in a full segment. If it can't take
+         * more data and too many segments are in use, it is dropped from the
+         * log instead of keeping them alive. That includes clients still
+         * being bootstrapped, which hold their segments from the start of the
+         * bootstrap and can't be flushed until it is over.
+         */
+        private synchronized void catchUp(boolean overLimit) {
+            if (readingBuffer == null || readingBuffer.next == null) {
+                return;
+            }
+            if (synced && channel.isWritable()) {
+                flush();
+            } else if (overLimit && !channel.isWritable()) {
+                LOG.warn("Resyncing laggard client " + channel + (synced ? "" : " during its bootstrap"));
+                release(readingBuffer);
+                readingBuffer = null;
+                synced = false;
+                needsSync = true;
+                resyncs.incrementAndGet();
+            }
+        }
+
+        private synchronized void close() {
+            if (readingBuffer != null) {
+                release(readingBuffer);
+                readingBuffer = null;
+            }
         }
 
         private void addFinishedWriteListener(ChannelFuture future, final ReadersAwareBuffer buffer) {
             future.addListener(new ChannelFutureListener() {
                 @Override
                 public void operationComplete(ChannelFuture future) throws Exception {
-                    buffer.decreaseReaders();
-                    if (buffer.isReadyForPool()) {
-                        bufferPool.add(buffer);
-                    }
+                    release(buffer);
                 }
             });
         }
@@ -112,50 +312,150 @@ public class SharedMessageBuffer {
         public ZipperState getZipperState() {
             return zipper.getZipperState();
         }
+    }
 
-        @Override
-        public int compareTo(ReadingBuffer o) {
-            return this.channel.compareTo(o.channel);
+    public ReadingBuffer getReadingBuffer(ChannelHandlerContext ctx) {
+        ReadingBuffer rb = new ReadingBuffer(ctx);
+        readingBuffers.put(ctx.getChannel(), rb);
+        return rb;
+    }
+
+    public void removeReadingBuffer(ChannelHandlerContext ctx) {
+        ReadingBuffer rb = readingBuffers.remove(ctx.getChannel());
+        if (rb != null) {
+            rb.close();
         }
+    }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof ReadingBuffer))
-                return false;
-            ReadingBuffer buf = (ReadingBuffer) obj;
-            return this.channel.equals(buf.channel);
+    /**
+     * Marks the start of a commit, before its commit timestamp is allocated
+     */
+    public void beginCommit() {
+        commitSequence++;
+    }
+
+    /**
+     * Marks the end of a commit, after it was written to the log
+     */
+    public void endCommit() {
+        commitSequence++;
+        if (commitWaiters.get() > 0) {
+            synchronized (commitLock) {
+                commitLock.notifyAll();
+            }
         }
+    }
 
+    /**
+     * Waits for the commit in progress, if any, to be written. Called after
+     * allocating a start timestamp, every commit with a smaller commit
+     * timestamp is in the log once it returns.
+     * 
+     * A commit only holds the writer for a few microseconds, so it spins
+     * briefly before blocking. Blocked threads are woken by endCommit, and
+     * they check again every COMMIT_WAIT_MILLIS in any case.
+     */
+    public void awaitCommitInProgress() {
+        long sequence = commitSequence;
+        if ((sequence & 1) == 0) {
+            return;
+        }
+        for (int i = 0; i < COMMIT_SPINS; ++i) {
+            if (commitSequence != sequence) {
+                return;
+            }
+        }
+        boolean interrupted = false;
+        commitWaiters.incrementAndGet();
+        try {
+            synchronized (commitLock) {
+                while (commitSequence == sequence) {
+                    try {
+                        commitLock.wait(COMMIT_WAIT_MILLIS);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } finally {
+            commitWaiters.decrementAndGet();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
-    public ReadingBuffer getReadingBuffer(ChannelHandlerContext ctx) {
-        ReadingBuffer rb = new ReadingBuffer(ctx);
-        readingBuffers.add(rb);
-        return rb;
+    /**
+     * Starts pushing the deltas to the clients, see PUSH_INTERVAL
+     */
+    public synchronized void startPushFlusher() {
+        if (pushFlusher != null) {
+            return;
+        }
+        Thread t = new Thread(new PushFlusher());
+        t.setDaemon(true);
+        t.setName("Replication Push Flusher");
+        pushFlusher = t;
+        t.start();
     }
 
-    public void removeReadingBuffer(ChannelHandlerContext ctx) {
-        readingBuffers.remove(new ReadingBuffer(ctx));
+    public synchronized void stopPushFlusher() {
+        Thread t = pushFlusher;
+        pushFlusher = null;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    private class PushFlusher implements Runnable {
+        @Override
+        public void run() {
+            long interval = TimeUnit.MICROSECONDS.toNanos(PUSH_INTERVAL);
+            while (pushFlusher == Thread.currentThread()) {
+                LockSupport.parkNanos(this, interval);
+                // one write per client with everything pending
+                for (ReadingBuffer rb : readingBuffers.values()) {
+                    rb.push();
+                }
+            }
+        }
     }
 
     public void writeCommit(long startTimestamp, long commitTimestamp) {
         checkBufferSpace();
         zipper.encodeCommit(writeBuffer, startTimestamp, commitTimestamp);
+        publish();
     }
 
     public void writeHalfAbort(long startTimestamp) {
         checkBufferSpace();
         zipper.encodeHalfAbort(writeBuffer, startTimestamp);
+        publish();
     }
 
     public void writeFullAbort(long startTimestamp) {
         checkBufferSpace();
         zipper.encodeFullAbort(writeBuffer, startTimestamp);
+        publish();
     }
 
     public void writeLargestIncrease(long largestTimestamp) {
         checkBufferSpace();
         zipper.encodeLargestIncrease(writeBuffer, largestTimestamp);
+        publish();
+    }
+
+    private void publish() {
+        int end = writeBuffer.writerIndex();
+        unpushedBytes += end - currentBuffer.published;
+        currentBuffer.published = end;
+        if (unpushedBytes >= PUSH_BYTES) {
+            unpushedBytes = 0;
+            Thread t = pushFlusher;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
     }
 
     private void checkBufferSpace() {
@@ -164,25 +464,76 @@ public class SharedMessageBuffer {
         }
     }
 
+    private ReadersAwareBuffer newBuffer() {
+        ReadersAwareBuffer buffer = bufferPool.poll();
+        if (buffer == null) {
+            buffer = new ReadersAwareBuffer();
+        }
+        liveBuffers.incrementAndGet();
+        buffer.reset();
+        return buffer;
+    }
+
     private void nextBuffer() {
         LOG.debug("Switching buffers");
 
-        // mark past buffer as scheduled for pool when all pending operations finish
-        pastBuffer.scheduleForPool();
+        ReadersAwareBuffer full = currentBuffer;
+        ReadersAwareBuffer next = newBuffer();
+        // held by the full segment until it is released
+        next.retain();
+        full.next = next;
+        currentBuffer = next;
+        writeBuffer = next.buffer;
+        release(full);
 
-        for (final ReadingBuffer rb : readingBuffers) {
-            if (rb.readingBuffer == pastBuffer) {
-                ChannelFuture future = Channels.future(rb.channel);
-                ChannelBuffer cb = rb.flush(future);
-                Channels.write(rb.ctx, future, cb);
-            }
+        // readers still in the full segment keep it and the following ones
+        // alive, flush them so they move on
+        if (!readingBuffers.isEmpty() && stragglerFlushScheduled.compareAndSet(false, true)) {
+            stragglerFlusher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    stragglerFlushScheduled.set(false);
+                    boolean overLimit = liveBuffers.get() > MAX_BUFFERS;
+                    for (ReadingBuffer rb : readingBuffers.values()) {
+                        rb.catchUp(overLimit);
+                    }
+                }
+            });
         }
+    }
 
-        pastBuffer = currentBuffer;
-        currentBuffer = bufferPool.poll();
-        if (currentBuffer == null) {
-            currentBuffer = new ReadersAwareBuffer();
+    /**
+     * Drops a reference, returning the segment and the ones it was keeping
+     * alive to the pool. Segments that don't fit in the pool are left to the
+     * GC.
+     */
+    private void release(ReadersAwareBuffer buffer) {
+        while (buffer != null && buffer.release()) {
+            ReadersAwareBuffer next = buffer.next;
+            liveBuffers.decrementAndGet();
+            bufferPool.offer(buffer);
+            buffer = next;
         }
-        writeBuffer = currentBuffer.buffer;
+    }
+
+    /**
+     * @return segments in use, by the writer, the readers or pending writes
+     */
+    public int getLiveBuffers() {
+        return liveBuffers.get();
+    }
+
+    /**
+     * @return free segments in the pool
+     */
+    public int getPooledBuffers() {
+        return bufferPool.size();
+    }
+
+    /**
+     * @return clients dropped from the log for falling behind so far
+     */
+    public long getResyncs() {
+        return resyncs.get();
     }
 }
@@ -211,6 +211,14 @@ public class Zipper {
    }
 
    private CommittedTransactionReport decodeCommittedTransactionReport(byte high, ChannelBuffer aInputStream) {
+      decodeCommit(high, aInputStream);
+      return new CommittedTransactionReport(lastStartTimestamp, lastCommitTimestamp);
+   }
+
+   /**
+    * Decodes the commit report into lastStartTimestamp and lastCommitTimestamp
+    */
+   private void decodeCommit(byte high, ChannelBuffer aInputStream) {
       long startTimestamp = 0;
       long commitTimestamp = 0;
       if (high >= 0) {
@@ -266,8 +274,101 @@ public class Zipper {
 
       lastStartTimestamp = startTimestamp;
       lastCommitTimestamp = commitTimestamp;
+   }
+
+   /**
+    * Decodes the commit, abort and largest deleted timestamp reports at the
+    * start of the buffer into the batch, without allocating an object for
+    * each of them. It stops at the first other message, or at an incomplete
+    * one, which are left for {@link #decodeMessage(ChannelBuffer)}.
+    * 
+    * @return the number of reports decoded
+    */
+   public int decodeBulk(ChannelBuffer buffer, ReplicationBatch batch) {
+      int decoded = 0;
+      while (buffer.readable()) {
+         byte type = buffer.getByte(buffer.readerIndex());
+         int length = reportLength(type);
+         if (length == 0 || buffer.readableBytes() < length) {
+            break;
+         }
+         buffer.skipBytes(1);
+         if ((type & 0xE0) == 0x40) { // 010x xxxx
+            lastHalfAbortedTimestamp += extractAbortedDifference(type);
+            batch.addHalfAborted(lastHalfAbortedTimestamp);
+         } else if ((type & 0xE0) == 0x60) { // 011x xxxx
+            lastFullAbortedTimestamp += extractAbortedDifference(type);
+            batch.addFullAborted(lastFullAbortedTimestamp);
+         } else {
+            switch (type) {
+            case TSOMessage.AbortedTransactionReport:
+               lastHalfAbortedTimestamp = buffer.readLong();
+               batch.addHalfAborted(lastHalfAbortedTimestamp);
+               break;
+            case TSOMessage.AbortedTransactionReportByte:
+               lastHalfAbortedTimestamp += buffer.readByte();
+               batch.addHalfAborted(lastHalfAbortedTimestamp);
+               break;
+            case TSOMessage.CleanedTransactionReport:
+               lastFullAbortedTimestamp = buffer.readLong();
+               batch.addFullAborted(lastFullAbortedTimestamp);
+               break;
+            case TSOMessage.CleanedTransactionReportByte:
+               lastFullAbortedTimestamp += buffer.readByte();
+               batch.addFullAborted(lastFullAbortedTimestamp);
+               break;
+            case TSOMessage.LargestDeletedTimestampReport:
+               batch.addLargestDeletedTimestamp(buffer.readLong());
+               break;
+            default:
+               decodeCommit(type, buffer);
+               batch.addCommitted(lastStartTimestamp, lastCommitTimestamp);
+            }
+         }
+         decoded++;
+      }
+      return decoded;
+   }
 
-      return new CommittedTransactionReport(startTimestamp, commitTimestamp);
+   /**
+    * @return the size of the report starting with type, or 0 if it is not
+    *         one decodeBulk handles
+    */
+   private static int reportLength(byte type) {
+      if ((type & 0x80) == 0) { // 0xxx xxxx, one byte commit or abort
+         return 1;
+      } else if ((type & 0xC0) == 0x80) { // 10xx xxxx
+         return 2;
+      }
+      switch (type) {
+      case TSOMessage.CommittedTransactionReportByteByte:
+         return 1 + 1 + 1;
+      case TSOMessage.CommittedTransactionReportShortByte:
+         return 1 + 2 + 1;
+      case TSOMessage.CommittedTransactionReportIntegerByte:
+         return 1 + 4 + 1;
+      case TSOMessage.CommittedTransactionReportLongByte:
+         return 1 + 8 + 1;
+      case TSOMessage.CommittedTransactionReportByteShort:
+         return 1 + 1 + 2;
+      case TSOMessage.CommittedTransactionReportShortShort:
+         return 1 + 2 + 2;
+      case TSOMessage.CommittedTransactionReportIntegerShort:
+         return 1 + 4 + 2;
+      case TSOMessage.CommittedTransactionReportLongShort:
+         return 1 + 8 + 2;
+      case TSOMessage.CommittedTransactionReport:
+         return 1 + 8 + 8;
+      case TSOMessage.AbortedTransactionReport:
+      case TSOMessage.CleanedTransactionReport:
+      case TSOMessage.LargestDeletedTimestampReport:
+         return 1 + 8;
+      case TSOMessage.AbortedTransactionReportByte:
+      case TSOMessage.CleanedTransactionReportByte:
+         return 1 + 1;
+      default:
+         return 0;
+      }
    }
 
 }
@@ -17,8 +17,6 @@
 
 package com.yahoo.omid.tso;
 import java.util.BitSet;
-import java.util.Set;
-import java.util.TreeSet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,31 +43,46 @@ public class Bucket {
    }
 
 
-   public Set<Long> abortAllUncommited() {
-      Set<Long> result = abortUncommited(BUCKET_SIZE - 1);
+   /**
+    * Aborts every uncommitted transaction of the bucket, reporting them to
+    * the visitor
+    * 
+    * @return the number of aborted transactions
+    */
+   public int abortAllUncommited(Uncommited.AbortVisitor visitor) {
+      int result = abortUncommited(BUCKET_SIZE - 1, visitor);
       closed = true;
       return result;
    }
 
-   public synchronized Set<Long> abortUncommited(long id) {
+   /**
+    * Aborts the uncommitted transactions up to id, reporting them to the
+    * visitor in increasing order. The scan walks the clear bits of the bucket
+    * and allocates nothing.
+    * 
+    * @return the number of aborted transactions
+    */
+   public synchronized int abortUncommited(long id, Uncommited.AbortVisitor visitor) {
       int lastCommited = (int) (id % BUCKET_SIZE);
       
-      Set<Long> aborted = new TreeSet<Long>();
       if (allCommited()) {
-         return aborted;
+         return 0;
       }
 
       LOG.trace("Performing scanning...");
       
+      long base = ((long)position) * BUCKET_SIZE;
+      int count = 0;
       for (int i = transactions.nextClearBit(firstUncommited); i >= 0
             && i <= lastCommited; i = transactions.nextClearBit(i + 1)) {
-         aborted.add(((long)position) * BUCKET_SIZE + i);
          commit(i);
+         visitor.aborted(base + i);
+         count++;
       }
       
       firstUncommited = lastCommited + 1;
 
-      return aborted;
+      return count;
    }
 
    public synchronized void commit(long id) {
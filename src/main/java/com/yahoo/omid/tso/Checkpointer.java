@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.tso;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.yahoo.omid.tso.persistence.Checkpoint;
+import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
+import com.yahoo.omid.tso.persistence.LoggerException;
+import com.yahoo.omid.tso.persistence.LoggerException.Code;
+import com.yahoo.omid.tso.persistence.LoggerProtocol;
+
+/**
+ * Writes checkpoints of the TSO state in the background, see
+ * {@link Checkpoint}. The state lock is only taken to read a few fields,
+ * the commit table is copied while the commits go on.
+ */
+class Checkpointer implements Runnable {
+
+   private static final Log LOG = LogFactory.getLog(Checkpointer.class);
+
+   /**
+    * Time between checkpoints, in seconds. 0 disables them.
+    */
+   static int INTERVAL = 60;
+   static {
+      try {
+         INTERVAL = Integer.valueOf(System.getProperty("omid.checkpointInterval"));
+      } catch (Exception e) {
+         // ignore, usedefault
+      }
+   };
+
+   /**
+    * Commit table slots copied at once
+    */
+   private static final int CHUNK = 4096;
+
+   private final TSOState state;
+   private final File dir;
+   private long lastId = -1;
+
+   private AddRecordCallback markerCallback = new AddRecordCallback() {
+      @Override
+      public void addRecordComplete(int rc, Object ctx) {
+         if (rc != Code.OK) {
+            // the checkpoint can't be found from the WAL, it will be pruned
+            LOG.warn("Failed to log checkpoint " + ctx + ": " + LoggerException.getMessage(rc));
+         }
+      }
+   };
+
+   Checkpointer(TSOState state, File dir) {
+      this.state = state;
+      this.dir = dir;
+   }
+
+   @Override
+   public void run() {
+      try {
+         checkpoint();
+      } catch (Throwable e) {
+         LOG.error("Error while writing a checkpoint to " + dir, e);
+      }
+   }
+
+   void checkpoint() throws IOException {
+      long id;
+      synchronized (state) {
+         id = state.getSO().get();
+      }
+      if (id == lastId) {
+         // no timestamps given since the last one, nothing changed
+         return;
+      }
+      Checkpoint.Writer writer = new Checkpoint.Writer(dir, id);
+      try {
+         // everything logged before the marker is in the state copied below
+         WALBuffer marker = WALBuffer.get();
+         marker.writeByte(LoggerProtocol.CHECKPOINT);
+         marker.writeLong(id);
+         state.addRecord(marker, markerCallback, id);
+
+         writer.writeHalfAborted(state.hashmap.halfAborted.toArray(Long.MAX_VALUE));
+         CommitHashMap hashmap = state.hashmap;
+         int slots = hashmap.commitSlots();
+         long[] starts = new long[CHUNK];
+         long[] commits = new long[CHUNK];
+         for (int from = 0; from < slots; from += CHUNK) {
+            int n = Math.min(CHUNK, slots - from);
+            if (n < CHUNK) {
+               starts = new long[n];
+               commits = new long[n];
+            }
+            hashmap.copyCommits(from, starts, commits);
+            for (int i = 0; i < n; ++i) {
+               if (starts[i] != 0) {
+                  writer.writeCommit(starts[i], commits[i]);
+               }
+            }
+         }
+
+         // read after the copy, it covers the commits evicted meanwhile
+         long maxTimestamp;
+         long largestDeletedTimestamp;
+         synchronized (state) {
+            maxTimestamp = state.getSO().getMaxTimestamp();
+            largestDeletedTimestamp = state.largestDeletedTimestamp;
+         }
+         writer.finish(maxTimestamp, largestDeletedTimestamp);
+         lastId = id;
+      } catch (IOException e) {
+         writer.abort();
+         throw e;
+      }
+   }
+}
@@ -16,72 +16,44 @@
 
 package com.yahoo.omid.tso;
 
-import java.util.Collections;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
-import org.jboss.netty.util.internal.ConcurrentHashMap;
-
 /**
  * A hash map that uses byte[] for the key rather than longs.
  * 
  * Change it to lazyly clean the old entries, i.e., upon a hit This would reduce
  * the mem access benefiting from cache locality
  * 
+ * There are two engines: the JNI one ({@link NativeCommitHashMap}) and a pure
+ * Java one keeping its tables off-heap ({@link OffHeapCommitHashMap}).
+ * 
  * @author maysam
  */
 
-class CommitHashMap {
-
-   native void init(int initialCapacity, int maxCommits, float loadFactor);
-
-   native static long gettotalput();
-
-   native static long gettotalget();
+abstract class CommitHashMap implements ConflictTable {
 
-   native static long gettotalwalkforput();
-
-   native static long gettotalwalkforget();
-
-   // Load the library
-   static {
-      System.loadLibrary("tso-commithashmap");
-   }
+   static final String NATIVE = "native";
+   static final String OFFHEAP = "offheap";
 
    /**
-    * Constructs a new, empty hashtable with a default capacity and load factor,
-    * which is <code>1000</code> and <code>0.75</code> respectively.
+    * Creates a map with the given engine, "native" or "offheap"
     */
-   public CommitHashMap() {
-      this(1000, 0.75f);
-   }
-
-   /**
-    * Constructs a new, empty hashtable with the specified initial capacity and
-    * default load factor, which is <code>0.75</code>.
-    * 
-    * @param initialCapacity
-    *           the initial capacity of the hashtable.
-    * @throws IllegalArgumentException
-    *            if the initial capacity is less than zero.
-    */
-   public CommitHashMap(int initialCapacity) {
-      this(initialCapacity, 0.75f);
+   static CommitHashMap create(String engine, int initialCapacity, float loadFactor) {
+      if (OFFHEAP.equals(engine)) {
+         return new OffHeapCommitHashMap(initialCapacity, loadFactor);
+      } else if (NATIVE.equals(engine)) {
+         return new NativeCommitHashMap(initialCapacity, loadFactor);
+      }
+      throw new IllegalArgumentException("Unknown CommitHashMap engine: " + engine);
    }
 
    /**
-    * Constructs a new, empty hashtable with the specified initial capacity and
-    * the specified load factor.
-    * 
-    * @param initialCapacity
-    *           the initial capacity of the hashtable.
-    * @param loadFactor
-    *           the load factor of the hashtable.
     * @throws IllegalArgumentException
     *            if the initial capacity is less than zero, or if the load
     *            factor is nonpositive.
+    * @return the capacity to use
     */
-   public CommitHashMap(int initialCapacity, float loadFactor) {
+   static int checkCapacity(int initialCapacity, float loadFactor) {
       if (initialCapacity < 0) {
          throw new IllegalArgumentException("Illegal Capacity: " + initialCapacity);
       }
@@ -91,10 +63,7 @@ class CommitHashMap {
       if (initialCapacity == 0) {
          initialCapacity = 1;
       }
-      
-      //assuming the worst case that each transaction modifies a value, this is the right size because it is proportional to the hashmap size
-      int txnCommitArraySize = (int) (initialCapacity * loadFactor);
-      this.init(initialCapacity, txnCommitArraySize, loadFactor);
+      return initialCapacity;
    }
 
    /**
@@ -111,7 +80,7 @@ class CommitHashMap {
     *         hashtable.
     * @see #put(int, Object)
     */
-   native long get(byte[] rowId, byte[] tableId, int hash);
+   public abstract long get(byte[] rowId, byte[] tableId, int hash);
 
    /**
     * Maps the specified <code>key</code> to the specified <code>value</code> in
@@ -131,7 +100,15 @@ class CommitHashMap {
     *            if the key is <code>null</code>. return true if the vlaue is
     *            replaced
     */
-   native long put(byte[] rowId, byte[] tableId, long value, int hash, long largestDeletedTimestamp);
+   public abstract long put(byte[] rowId, byte[] tableId, long value, int hash, long largestDeletedTimestamp);
+
+   public long get(RowKey row) {
+      return get(row.getRow(), row.getTable(), row.hashCode());
+   }
+
+   public long put(RowKey row, long value, long largestDeletedTimestamp) {
+      return put(row.getRow(), row.getTable(), value, row.hashCode(), largestDeletedTimestamp);
+   }
 
    /**
     * Returns the commit timestamp 
@@ -139,12 +116,56 @@ class CommitHashMap {
     * @param   startTimestamp   the transaction start timestamp
     * @return  commit timestamp if such mapping exist, 0 otherwise
     */
-   native long getCommittedTimestamp(long startTimestamp);
-   native long setCommitted(long startTimestamp, long commitTimestamp, long largestDeletedTimestamp);
+   abstract long getCommittedTimestamp(long startTimestamp);
+   abstract long setCommitted(long startTimestamp, long commitTimestamp, long largestDeletedTimestamp);
+
+   /**
+    * @return the number of slots of the commit table
+    */
+   abstract int commitSlots();
+
+   /**
+    * Copies the slots [from, from + startTimestamps.length) of the commit
+    * table, empty ones have a 0 start timestamp. It can run concurrently with
+    * setCommitted, so a slot being written can be copied half way.
+    */
+   abstract void copyCommits(int from, long[] startTimestamps, long[] commitTimestamps);
+
+   /**
+    * Returned by checkAndPut when the transaction conflicts
+    */
+   static final long CONFLICT = -1;
+
+   /**
+    * Checks the write-write conflicts of all the rows of a transaction and, if
+    * there are none, maps all of them to the commit timestamp. The rows are
+    * left untouched if there is a conflict.
+    * 
+    * Engines override it to do the whole transaction in one call.
+    * 
+    * @return CONFLICT if any row was committed after startTimestamp, or could
+    *         have been and was already recycled; otherwise the largest deleted
+    *         timestamp after inserting the rows
+    */
+   long checkAndPut(RowKey[] rows, long startTimestamp, long commitTimestamp, long largestDeletedTimestamp) {
+      for (RowKey r : rows) {
+         long value = get(r);
+         if (value != 0 && value > startTimestamp) {
+            return CONFLICT;
+         } else if (value == 0 && largestDeletedTimestamp > startTimestamp) {
+            return CONFLICT;
+         }
+      }
+      long result = largestDeletedTimestamp;
+      for (RowKey r : rows) {
+         result = Math.max(result, put(r, commitTimestamp, largestDeletedTimestamp));
+      }
+      return result;
+   }
    
    // set of half aborted transactions
    // TODO: set the initial capacity in a smarter way
-   Set<AbortedTransaction> halfAborted = Collections.newSetFromMap(new ConcurrentHashMap<AbortedTransaction, Boolean>(10000));
+   HalfAbortedSet halfAborted = new HalfAbortedSet(10000);
 
    private AtomicLong abortedSnapshot = new AtomicLong();
 
@@ -154,17 +175,17 @@ class CommitHashMap {
 
    // add a new half aborted transaction
    void setHalfAborted(long startTimestamp) {
-      halfAborted.add(new AbortedTransaction(startTimestamp, abortedSnapshot.get()));
+      halfAborted.add(startTimestamp, abortedSnapshot.get());
    }
 
    // call when a half aborted transaction is fully aborted
    void setFullAborted(long startTimestamp) {
-      halfAborted.remove(new AbortedTransaction(startTimestamp, 0));
+      halfAborted.remove(startTimestamp);
    }
 
    // query to see if a transaction is half aborted
    boolean isHalfAborted(long startTimestamp) {
-      return halfAborted.contains(new AbortedTransaction(startTimestamp, 0));
+      return halfAborted.contains(startTimestamp);
    }
 }
 
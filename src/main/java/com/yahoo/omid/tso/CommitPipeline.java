@@ -0,0 +1,348 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.channel.Channels;
+
+import com.yahoo.omid.tso.TSOHandler.ChannelandMessage;
+import com.yahoo.omid.tso.messages.AbortRangeRequest;
+import com.yahoo.omid.tso.messages.AbortRequest;
+import com.yahoo.omid.tso.messages.BatchCommitQueryRequest;
+import com.yahoo.omid.tso.messages.CommitQueryRequest;
+import com.yahoo.omid.tso.messages.CommitRequest;
+import com.yahoo.omid.tso.messages.CommitResponse;
+import com.yahoo.omid.tso.messages.FullAbortRequest;
+
+/**
+ * Staged commit engine for the TSO.
+ *
+ * Netty threads only publish the requests into a ring buffer. Three single
+ * threaded stages, connected by lock-free rings, do the rest:
+ *
+ * 1. Decision stage: conflict checking and commit timestamp assignment. Both have
+ *    to happen atomically with respect to other commits (a commit timestamp
+ *    must be installed in the conflict map before the next request is
+ *    checked), so they share a stage. Being the only writer of the TSO
+ *    state, it takes the state lock once per drained window instead of once
+ *    per request, and decisions are exactly the ones of the locked handler
+ *    because requests are processed one by one in arrival order.
+ *    Requests are decided in windows (group commit): the stage optionally
+ *    waits GROUP_COMMIT_WINDOW for more requests, reserves the timestamps of
+ *    the whole window at once and serializes all its decisions in a single
+ *    WAL append.
+ * 2. WAL stage: appends the serialized decisions to the WAL batch and hands
+ *    it to the StateLogger when it is full or the flush timeout expires.
+ *    It is the only owner of the pending batch (TSOState.toWAL and
+ *    TSOState.nextBatch) and uses it without the state lock, so in this
+ *    mode every other writer goes through the decision stage instead.
+ * 3. Reply stage: sends commit replies once their batch is durable, and
+ *    commit query replies as soon as they are decided.
+ *
+ * Timestamp requests don't go through the pipeline, the lock-free
+ * TimestampOracle serves them from the Netty threads.
+ */
+class CommitPipeline {
+
+   private static final Log LOG = LogFactory.getLog(CommitPipeline.class);
+
+   static int RING_SIZE = 1 << 16;
+   static {
+      try {
+         RING_SIZE = Integer.valueOf(System.getProperty("omid.pipelineRingSize"));
+      } catch (Exception e) {
+         // ignore, usedefault
+      }
+   };
+
+   /**
+    * Group commit window, in microseconds. Once a request arrives the decision
+    * stage waits up to this long for more requests before deciding them all
+    * together. 0 decides whatever is queued right away.
+    */
+   static int GROUP_COMMIT_WINDOW = 0;
+   static {
+      try {
+         GROUP_COMMIT_WINDOW = Integer.valueOf(System.getProperty("omid.groupCommitWindow"));
+      } catch (Exception e) {
+         // ignore, usedefault
+      }
+   };
+
+   /**
+    * Maximum number of requests decided while holding the state lock
+    */
+   static final int MAX_WINDOW = 1024;
+
+   private static final long IDLE_WAIT = 100; // in ms
+
+   /**
+    * Output of the decision stage for one window of requests
+    */
+   static class DecidedBatch {
+      /**
+       * Wakes up the WAL stage when the logger becomes idle
+       */
+      static final DecidedBatch IDLE = new DecidedBatch(null, null);
+
+      WALBuffer wal;
+      List<ChannelandMessage> replies;
+
+      DecidedBatch(WALBuffer wal, List<ChannelandMessage> replies) {
+         this.wal = wal;
+         this.replies = replies;
+      }
+   }
+
+   private final TSOHandler handler;
+   private final TSOState sharedState;
+
+   private final RingBuffer<ChannelandMessage> requests;
+   private final RingBuffer<DecidedBatch> decided;
+   private final RingBuffer<ChannelandMessage> replies;
+
+   private ExecutorService stages;
+   private volatile boolean finish;
+
+   CommitPipeline(TSOHandler handler, TSOState sharedState) {
+      this.handler = handler;
+      this.sharedState = sharedState;
+      this.requests = new RingBuffer<ChannelandMessage>(RING_SIZE);
+      this.decided = new RingBuffer<DecidedBatch>(RING_SIZE / MAX_WINDOW + 1);
+      this.replies = new RingBuffer<ChannelandMessage>(RING_SIZE);
+   }
+
+   void start() {
+      this.stages = Executors.newFixedThreadPool(3, new ThreadFactory() {
+         private int count = 0;
+         private final String[] names = { "Decision Stage", "WAL Stage", "Reply Stage" };
+
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(Thread.currentThread().getThreadGroup(), r);
+            t.setDaemon(true);
+            t.setName(names[count++ % names.length]);
+            return t;
+         }
+      });
+      stages.execute(new DecisionStage());
+      stages.execute(new WALStage());
+      stages.execute(new ReplyStage());
+      handler.batcher.setIdleListener(new WALBatcher.IdleListener() {
+         @Override
+         public void idle() {
+            // if the ring is full the WAL stage is busy anyway
+            decided.offer(DecidedBatch.IDLE);
+         }
+      });
+   }
+
+   void stop() {
+      finish = true;
+      if (stages != null) {
+         stages.shutdownNow();
+      }
+   }
+
+   /**
+    * Called from the Netty threads
+    */
+   void publish(ChannelandMessage request) {
+      try {
+         requests.put(request);
+      } catch (InterruptedException e) {
+         LOG.warn("Interrupted while publishing " + request.msg);
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Called from the StateLogger callback once a batch is durable
+    */
+   void reply(List<ChannelandMessage> batch) {
+      try {
+         for (ChannelandMessage cam : batch) {
+            replies.put(cam);
+         }
+      } catch (InterruptedException e) {
+         LOG.warn("Interrupted while dispatching replies");
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private class DecisionStage implements Runnable {
+      @Override
+      public void run() {
+         List<ChannelandMessage> window = new ArrayList<ChannelandMessage>(MAX_WINDOW);
+         List<ChannelandMessage> immediate = new ArrayList<ChannelandMessage>();
+         WALBuffer toWAL = WALBuffer.get();
+         try {
+            while (!finish) {
+               ChannelandMessage first = requests.poll(IDLE_WAIT, TimeUnit.MILLISECONDS);
+               if (first == null) {
+                  continue;
+               }
+               window.add(first);
+               requests.drainTo(window, MAX_WINDOW - 1);
+               if (GROUP_COMMIT_WINDOW > 0) {
+                  fillWindow(window);
+               }
+
+               List<ChannelandMessage> toLog = new ArrayList<ChannelandMessage>(window.size());
+               synchronized (sharedState) {
+                  // at most one timestamp per request, reserve their range at once
+                  handler.reserveTimestamps(window.size());
+                  for (ChannelandMessage cam : window) {
+                     decide(cam, toWAL, toLog, immediate);
+                  }
+               }
+               window.clear();
+
+               // replies not waiting for the WAL go out right away, outside the lock
+               for (ChannelandMessage cam : immediate) {
+                  replies.put(cam);
+               }
+               immediate.clear();
+
+               if (toWAL.size() > 0 || !toLog.isEmpty()) {
+                  decided.put(new DecidedBatch(toWAL, toLog));
+                  toWAL = WALBuffer.get();
+               }
+            }
+         } catch (InterruptedException e) {
+            // stop asked
+         }
+      }
+
+      /**
+       * Keeps adding requests to the window until it is full or the group
+       * commit window elapses
+       */
+      private void fillWindow(List<ChannelandMessage> window) throws InterruptedException {
+         long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(GROUP_COMMIT_WINDOW);
+         while (window.size() < MAX_WINDOW) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+               break;
+            }
+            ChannelandMessage cam = requests.poll(remaining, TimeUnit.NANOSECONDS);
+            if (cam == null) {
+               break;
+            }
+            window.add(cam);
+            requests.drainTo(window, MAX_WINDOW - window.size());
+         }
+      }
+
+      private void decide(ChannelandMessage cam, WALBuffer toWAL, List<ChannelandMessage> toLog,
+            List<ChannelandMessage> immediate) {
+         if (cam.msg instanceof CommitRequest) {
+            CommitResponse reply = handler.decideCommit((CommitRequest) cam.msg, toWAL);
+            toLog.add(new ChannelandMessage(cam.ctx, reply));
+         } else if (cam.msg instanceof FullAbortRequest) {
+            handler.decideFullAbort((FullAbortRequest) cam.msg, toWAL);
+         } else if (cam.msg instanceof AbortRequest) {
+            handler.decideAbort((AbortRequest) cam.msg, toWAL);
+         } else if (cam.msg instanceof AbortRangeRequest) {
+            handler.decideAbortRange((AbortRangeRequest) cam.msg, toWAL);
+         } else if (cam.msg instanceof CommitQueryRequest) {
+            immediate.add(new ChannelandMessage(cam.ctx, handler.decideCommitQuery((CommitQueryRequest) cam.msg)));
+         } else if (cam.msg instanceof BatchCommitQueryRequest) {
+            immediate.add(new ChannelandMessage(cam.ctx, handler.decideCommitQuery((BatchCommitQueryRequest) cam.msg)));
+         }
+      }
+   }
+
+   /**
+    * Only thread touching sharedState.toWAL and sharedState.nextBatch once
+    * the pipeline is started, see TSOHandler.flush()
+    */
+   private class WALStage implements Runnable {
+      @Override
+      public void run() {
+         WALBatcher batcher = handler.batcher;
+         long deadline = System.nanoTime() + batcher.getFlushDeadline();
+         try {
+            while (!finish) {
+               long remaining = deadline - System.nanoTime();
+               DecidedBatch batch = remaining > 0 ? decided.poll(remaining, TimeUnit.NANOSECONDS) : decided.poll();
+               if (batch != null) {
+                  if (batch != DecidedBatch.IDLE) {
+                     sharedState.toWAL.write(batch.wal);
+                     sharedState.nextBatch.addAll(batch.replies);
+                     batch.wal.release();
+                  }
+                  if (sharedState.hasPendingRecords() && batcher.shouldFlush(sharedState.toWAL.size())) {
+                     flush();
+                     deadline = System.nanoTime() + batcher.getFlushDeadline();
+                  }
+               }
+               if (System.nanoTime() - deadline >= 0) {
+                  if (sharedState.nextBatch.size() > 0) {
+                     if (LOG.isTraceEnabled()) {
+                        LOG.trace("Flushing log batch.");
+                     }
+                     flush();
+                  }
+                  deadline = System.nanoTime() + batcher.getFlushDeadline();
+               }
+            }
+         } catch (InterruptedException e) {
+            // stop asked
+         }
+      }
+
+      private void flush() {
+         if (LOG.isTraceEnabled()) {
+            LOG.trace("Adding record, size: " + sharedState.toWAL.size());
+         }
+         sharedState.addRecord(sharedState.toWAL,
+               handler.batcher.track(sharedState.toWAL.size(), handler.replyCallback), sharedState.nextBatch);
+         sharedState.nextBatch = new ArrayList<ChannelandMessage>(sharedState.nextBatch.size() + 5);
+         sharedState.toWAL = WALBuffer.get();
+      }
+   }
+
+   private class ReplyStage implements Runnable {
+      @Override
+      public void run() {
+         try {
+            while (!finish) {
+               ChannelandMessage cam = replies.poll(IDLE_WAIT, TimeUnit.MILLISECONDS);
+               if (cam == null) {
+                  continue;
+               }
+               if (cam.msg instanceof CommitResponse) {
+                  Channels.write(cam.ctx, Channels.succeededFuture(cam.ctx.getChannel()), cam.msg);
+               } else {
+                  cam.ctx.getChannel().write(cam.msg);
+               }
+            }
+         } catch (InterruptedException e) {
+            // stop asked
+         }
+      }
+   }
+}
@@ -18,51 +18,196 @@
 package com.yahoo.omid.tso;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Commit timestamps replicated by the TSO, used by the clients to answer
+ * validRead() without asking it.
+ * 
+ * The transactions are kept in buckets of consecutive start timestamps, in a
+ * ring of a fixed number of buckets, so memory is bounded. Lookups are lock
+ * free and can run from any number of threads. commit() and
+ * raiseLargestDeletedTransaction() are lock free too, and are called by the
+ * thread applying the replication stream.
+ * 
+ * Buckets are dropped when the largest deleted timestamp moves past them. If
+ * the ring wraps around before, the older bucket is dropped and
+ * {@link #getOverflowTimestamp()} tells up to where commits may be missing,
+ * instead of answering for a different transaction of the same slot.
+ */
 public class Committed {
    
    private static final int BKT_NUMBER = 1<<15;
 
-   private CommitBucket buckets[] = new CommitBucket[BKT_NUMBER];
-   private int firstCommitedBucket = 0;
-   private int lastOpenedBucket = 0;
+   private final AtomicReferenceArray<CommitBucket> buckets;
+   private final AtomicInteger liveBuckets = new AtomicInteger();
+
+   /**
+    * Buckets before this one were dropped by raiseLargestDeletedTransaction
+    */
+   private volatile long firstBucket = 0;
+
+   private final AtomicLong overflow = new AtomicLong();
+
+   private final StripedCounter hits = new StripedCounter();
+   private final StripedCounter misses = new StripedCounter();
 
    public Committed() {
+      this(BKT_NUMBER);
+   }
+
+   /**
+    * @param maxBuckets
+    *           size of the ring, each bucket takes
+    *           CommitBucket.BUCKET_SIZE * 8 bytes
+    */
+   public Committed(int maxBuckets) {
+      buckets = new AtomicReferenceArray<CommitBucket>(maxBuckets);
    }
 
-   public synchronized void commit(long id, long timestamp) {
-      int position = getPosition(id);
-      CommitBucket bucket = buckets[position];
-      if (bucket == null) {
-         bucket = new CommitBucket();
-         buckets[position] = bucket;
-         lastOpenedBucket = position;
+   public void commit(long id, long timestamp) {
+      long index = id / CommitBucket.BUCKET_SIZE;
+      if (index < firstBucket) {
+         // already deleted by the TSO
+         return;
+      }
+      int position = getPosition(index);
+      for (;;) {
+         CommitBucket bucket = buckets.get(position);
+         if (bucket != null && bucket.index == index) {
+            bucket.commit(id, timestamp);
+            return;
+         }
+         if (bucket != null && bucket.index > index) {
+            // the slot already belongs to newer transactions
+            raiseOverflow(id);
+            return;
+         }
+         CommitBucket newBucket = new CommitBucket(index);
+         newBucket.commit(id, timestamp);
+         if (buckets.compareAndSet(position, bucket, newBucket)) {
+            if (bucket == null) {
+               liveBuckets.incrementAndGet();
+            } else {
+               raiseOverflow((bucket.index + 1) * CommitBucket.BUCKET_SIZE - 1);
+            }
+            return;
+         }
       }
-      bucket.commit(id, timestamp);
    }
    
+   /**
+    * @return the commit timestamp of the transaction, or -1 if it is unknown
+    */
    public long getCommit(long id) {
-      CommitBucket bucket = buckets[getPosition(id)];
-      if (bucket == null) {
-         return -1;
+      long index = id / CommitBucket.BUCKET_SIZE;
+      CommitBucket bucket = buckets.get(getPosition(index));
+      long commit = bucket != null && bucket.index == index ? bucket.getCommit(id) : -1;
+      if (commit == -1) {
+         misses.increment();
+      } else {
+         hits.increment();
       }
-      return bucket.getCommit(id);
+      return commit;
    }
    
+   /**
+    * Drops the buckets of the transactions before the bucket of id
+    */
    public void raiseLargestDeletedTransaction(long id) {
-      int maxBucket = getPosition(id);
-      for (; firstCommitedBucket != maxBucket && firstCommitedBucket != lastOpenedBucket;
-            firstCommitedBucket = (firstCommitedBucket + 1) % BKT_NUMBER) {
-         buckets[firstCommitedBucket] = null;
+      long last = id / CommitBucket.BUCKET_SIZE;
+      long first = firstBucket;
+      if (last <= first) {
+         return;
+      }
+      firstBucket = last;
+      // no more than one turn of the ring
+      for (long index = Math.max(first, last - buckets.length()); index < last; ++index) {
+         int position = getPosition(index);
+         CommitBucket bucket = buckets.get(position);
+         if (bucket != null && bucket.index < last && buckets.compareAndSet(position, bucket, null)) {
+            liveBuckets.decrementAndGet();
+         }
       }
    }
+
+   /**
+    * Forgets everything, for a new replication stream
+    */
+   public void clear() {
+      for (int i = 0; i < buckets.length(); ++i) {
+         buckets.set(i, null);
+      }
+      liveBuckets.set(0);
+      firstBucket = 0;
+      overflow.set(0);
+   }
+
+   /**
+    * @return the largest start timestamp whose commit may have been dropped
+    *         because the ring was full, 0 if none
+    */
+   public long getOverflowTimestamp() {
+      return overflow.get();
+   }
+
+   private void raiseOverflow(long id) {
+      long current;
+      do {
+         current = overflow.get();
+      } while (current < id && !overflow.compareAndSet(current, id));
+   }
    
-   private int getPosition(long id) {
-      return ((int) (id / CommitBucket.getBucketSize())) % BKT_NUMBER;
+   private int getPosition(long index) {
+      return (int) (index % buckets.length());
    }
    
+   /**
+    * @return memory used, in bytes
+    */
    public long getSize() {
-       return BKT_NUMBER * 8 + (lastOpenedBucket - firstCommitedBucket) * CommitBucket.BUCKET_SIZE * 8;
+       return buckets.length() * 8L + liveBuckets.get() * CommitBucket.BUCKET_SIZE * 8;
+   }
+
+   /**
+    * @return lookups that found the commit timestamp
+    */
+   public long getHits() {
+      return hits.get();
+   }
+
+   /**
+    * @return lookups of unknown transactions
+    */
+   public long getMisses() {
+      return misses.get();
+   }
+
+   /**
+    * Counter updated from many threads, striped so they don't contend on a
+    * single cache line
+    */
+   private static class StripedCounter {
+      private static final int STRIPES = 16;
+      private static final int PADDING = 8; // longs per cache line
+
+      private final AtomicLongArray counts = new AtomicLongArray(STRIPES * PADDING);
+
+      void increment() {
+         int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+         counts.incrementAndGet(stripe * PADDING);
+      }
+
+      long get() {
+         long sum = 0;
+         for (int i = 0; i < STRIPES; ++i) {
+            sum += counts.get(i * PADDING);
+         }
+         return sum;
+      }
    }
 }
 
@@ -70,18 +215,26 @@ class CommitBucket {
      
    static final long BUCKET_SIZE = 1<<14;
 
-   private long transactions [] = new long [(int)BUCKET_SIZE];
+   /**
+    * Position of the bucket in the timestamp space, id / BUCKET_SIZE
+    */
+   final long index;
+
+   private final AtomicLongArray transactions;
 
-   public CommitBucket() {
-      Arrays.fill(transactions, -1);
+   public CommitBucket(long index) {
+      this.index = index;
+      long[] empty = new long[(int) BUCKET_SIZE];
+      Arrays.fill(empty, -1);
+      this.transactions = new AtomicLongArray(empty);
    }
 
    public long getCommit(long id) {
-      return transactions[(int) (id % BUCKET_SIZE)];
+      return transactions.get((int) (id % BUCKET_SIZE));
    }
 
    public void commit(long id, long timestamp) {
-      transactions[(int) (id % BUCKET_SIZE)] = timestamp;
+      transactions.set((int) (id % BUCKET_SIZE), timestamp);
    }
 
    public static long getBucketSize() {
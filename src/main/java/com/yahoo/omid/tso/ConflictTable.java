@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+/**
+ * Table of recently committed rows used for write-write conflict detection.
+ *
+ * Entries are kept until they become older than the table threshold, when
+ * they can be recycled. Recycling an entry raises the largest deleted
+ * timestamp, below which the table can't answer anymore.
+ *
+ * Implementations are not thread safe.
+ */
+interface ConflictTable {
+
+   /**
+    * @return the commit timestamp of the last transaction that wrote the row,
+    *         or 0 if the row is not in the table
+    */
+   long get(byte[] rowId, byte[] tableId, int hash);
+
+   /**
+    * Records that the row was committed with the given timestamp, possibly
+    * recycling an old entry.
+    *
+    * @return the largest deleted timestamp after the insertion, i.e. the
+    *         maximum of largestDeletedTimestamp and the commit timestamp of
+    *         the recycled entry
+    */
+   long put(byte[] rowId, byte[] tableId, long value, int hash, long largestDeletedTimestamp);
+
+   /**
+    * Same as {@link #get(byte[], byte[], int)}, reading the ids in place
+    */
+   long get(RowKey row);
+
+   /**
+    * Same as {@link #put(byte[], byte[], long, int, long)}, reading the ids
+    * in place
+    */
+   long put(RowKey row, long value, long largestDeletedTimestamp);
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Set of half aborted transactions, keyed by start timestamp, storing the
+ * aborted snapshot each one was added in.
+ * 
+ * It is an open addressing table with linear probing kept in a direct
+ * buffer, so neither lookups nor inserts allocate and millions of entries
+ * add no load to the garbage collector. Timestamps are positive: 0 marks a
+ * free slot and -1 a removed one.
+ */
+class HalfAbortedSet {
+
+   private static final int ENTRY_SIZE = 16;
+   private static final long FREE = 0;
+   private static final long REMOVED = -1;
+   private static final float LOAD_FACTOR = 0.5f;
+
+   /**
+    * start timestamp (8) | snapshot (8)
+    */
+   private ByteBuffer table;
+   private int mask;
+   private int size;
+   /**
+    * live plus removed entries, they both lengthen the probes
+    */
+   private int used;
+   private int threshold;
+   private final int minCapacity;
+
+   HalfAbortedSet(int initialCapacity) {
+      minCapacity = tableSize(initialCapacity);
+      allocate(minCapacity);
+   }
+
+   private static int tableSize(int entries) {
+      int needed = Math.max((int) (entries / LOAD_FACTOR), 2);
+      int capacity = Integer.highestOneBit(needed);
+      return capacity < needed ? capacity << 1 : capacity;
+   }
+
+   private void allocate(int capacity) {
+      table = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE).order(ByteOrder.nativeOrder());
+      mask = capacity - 1;
+      threshold = (int) (capacity * LOAD_FACTOR);
+      used = size;
+   }
+
+   private int slot(long startTimestamp) {
+      long h = startTimestamp * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32)) & mask;
+   }
+
+   /**
+    * @return the offset of the entry holding startTimestamp, or -1
+    */
+   private int find(long startTimestamp) {
+      for (int i = slot(startTimestamp);; i = (i + 1) & mask) {
+         long key = table.getLong(i * ENTRY_SIZE);
+         if (key == startTimestamp) {
+            return i * ENTRY_SIZE;
+         } else if (key == FREE) {
+            return -1;
+         }
+      }
+   }
+
+   /**
+    * Adds a transaction, keeping the snapshot of the first add if it was
+    * already there
+    * 
+    * @return true if it wasn't in the set
+    */
+   synchronized boolean add(long startTimestamp, long snapshot) {
+      if (startTimestamp <= 0) {
+         // never handed out by the oracle
+         return false;
+      }
+      int reuse = -1;
+      int i = slot(startTimestamp);
+      for (;; i = (i + 1) & mask) {
+         long key = table.getLong(i * ENTRY_SIZE);
+         if (key == startTimestamp) {
+            return false;
+         } else if (key == FREE) {
+            break;
+         } else if (key == REMOVED && reuse < 0) {
+            reuse = i;
+         }
+      }
+      if (reuse >= 0) {
+         i = reuse;
+      } else {
+         used++;
+      }
+      table.putLong(i * ENTRY_SIZE, startTimestamp);
+      table.putLong(i * ENTRY_SIZE + 8, snapshot);
+      size++;
+      if (used > threshold) {
+         rehash();
+      }
+      return true;
+   }
+
+   synchronized boolean remove(long startTimestamp) {
+      if (startTimestamp <= 0) {
+         return false;
+      }
+      int entry = find(startTimestamp);
+      if (entry < 0) {
+         return false;
+      }
+      table.putLong(entry, REMOVED);
+      size--;
+      return true;
+   }
+
+   synchronized boolean contains(long startTimestamp) {
+      return startTimestamp > 0 && find(startTimestamp) >= 0;
+   }
+
+   synchronized int size() {
+      return size;
+   }
+
+   /**
+    * Copies out the start timestamps added in a snapshot older than the given
+    * one, Long.MAX_VALUE returns all of them
+    */
+   synchronized long[] toArray(long beforeSnapshot) {
+      long[] result = new long[size];
+      int n = 0;
+      for (int entry = 0; entry < table.capacity(); entry += ENTRY_SIZE) {
+         long key = table.getLong(entry);
+         if (key > 0 && table.getLong(entry + 8) < beforeSnapshot) {
+            result[n++] = key;
+         }
+      }
+      if (n < result.length) {
+         long[] trimmed = new long[n];
+         System.arraycopy(result, 0, trimmed, 0, n);
+         result = trimmed;
+      }
+      return result;
+   }
+
+   /**
+    * Grows the table, or just drops the removed entries if they were most of
+    * the used ones
+    */
+   private void rehash() {
+      ByteBuffer old = table;
+      allocate(Math.max(tableSize(size * 2), minCapacity));
+      for (int entry = 0; entry < old.capacity(); entry += ENTRY_SIZE) {
+         long key = old.getLong(entry);
+         if (key > 0) {
+            int i = slot(key);
+            while (table.getLong(i * ENTRY_SIZE) != FREE) {
+               i = (i + 1) & mask;
+            }
+            table.putLong(i * ENTRY_SIZE, key);
+            table.putLong(i * ENTRY_SIZE + 8, old.getLong(entry + 8));
+         }
+      }
+   }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+/**
+ * Java version of the native CommitHashMap row table, so that several
+ * instances can live in the same process.
+ *
+ * It keeps the same recycling policy: every insertion gets an order, and an
+ * entry is old once more than threshold insertions happened after it. Instead
+ * of chaining buckets it uses linear probing over parallel arrays. Slots are
+ * never emptied, so a lookup can stop at the first empty slot, and a put
+ * always finds an empty or old slot because at most threshold entries are
+ * young.
+ */
+class HeapConflictTable implements ConflictTable {
+
+   private final int capacity;
+   private final int threshold;
+   private long largestOrder = 1;
+
+   private final long[] orders;
+   private final int[] hashes;
+   private final long[] values;
+   // row id followed by table id
+   private final byte[][] keys;
+   private final int[] rowLengths;
+   private final int[] keyLengths;
+
+   HeapConflictTable(int capacity, float loadFactor) {
+      if (capacity <= 0) {
+         throw new IllegalArgumentException("Illegal Capacity: " + capacity);
+      }
+      if (loadFactor <= 0 || loadFactor >= 1) {
+         throw new IllegalArgumentException("Illegal Load: " + loadFactor);
+      }
+      this.capacity = capacity;
+      this.threshold = (int) (capacity * loadFactor);
+      this.orders = new long[capacity];
+      this.hashes = new int[capacity];
+      this.values = new long[capacity];
+      this.keys = new byte[capacity][];
+      this.rowLengths = new int[capacity];
+      this.keyLengths = new int[capacity];
+   }
+
+   @Override
+   public long get(byte[] rowId, byte[] tableId, int hash) {
+      return get(rowId, 0, rowId.length, tableId, 0, tableId.length, hash);
+   }
+
+   @Override
+   public long get(RowKey row) {
+      return get(row.rowArray(), row.rowOffset(), row.rowLength(), row.tableArray(), row.tableOffset(),
+            row.tableLength(), row.hashCode());
+   }
+
+   private long get(byte[] rowId, int rowOffset, int rowLength, byte[] tableId, int tableOffset, int tableLength,
+         int hash) {
+      int index = (hash & 0x7FFFFFFF) % capacity;
+      for (int i = 0; i < capacity; ++i) {
+         if (orders[index] == 0) {
+            // empty, the row can't be further
+            break;
+         }
+         if (matches(index, rowId, rowOffset, rowLength, tableId, tableOffset, tableLength, hash)) {
+            return values[index];
+         }
+         if (++index == capacity) {
+            index = 0;
+         }
+      }
+      return 0;
+   }
+
+   @Override
+   public long put(byte[] rowId, byte[] tableId, long value, int hash, long largestDeletedTimestamp) {
+      return put(rowId, 0, rowId.length, tableId, 0, tableId.length, value, hash, largestDeletedTimestamp);
+   }
+
+   @Override
+   public long put(RowKey row, long value, long largestDeletedTimestamp) {
+      return put(row.rowArray(), row.rowOffset(), row.rowLength(), row.tableArray(), row.tableOffset(),
+            row.tableLength(), value, row.hashCode(), largestDeletedTimestamp);
+   }
+
+   private long put(byte[] rowId, int rowOffset, int rowLength, byte[] tableId, int tableOffset, int tableLength,
+         long value, int hash, long largestDeletedTimestamp) {
+      int index = (hash & 0x7FFFFFFF) % capacity;
+      for (;;) {
+         boolean isOld = orders[index] == 0 ? true : largestOrder - orders[index] > threshold;
+         if (isOld) {
+            if (values[index] > largestDeletedTimestamp) {
+               largestDeletedTimestamp = values[index];
+            }
+            setKey(index, rowId, rowOffset, rowLength, tableId, tableOffset, tableLength);
+            hashes[index] = hash;
+            values[index] = value;
+            orders[index] = ++largestOrder;
+            return largestDeletedTimestamp;
+         }
+         if (matches(index, rowId, rowOffset, rowLength, tableId, tableOffset, tableLength, hash)) {
+            values[index] = value;
+            orders[index] = ++largestOrder;
+            return largestDeletedTimestamp;
+         }
+         if (++index == capacity) {
+            index = 0;
+         }
+      }
+   }
+
+   private boolean matches(int index, byte[] rowId, int rowOffset, int rowLength, byte[] tableId, int tableOffset,
+         int tableLength, int hash) {
+      if (hashes[index] != hash || rowLengths[index] != rowLength
+            || keyLengths[index] != rowLength + tableLength) {
+         return false;
+      }
+      byte[] key = keys[index];
+      for (int i = 0; i < rowLength; ++i) {
+         if (key[i] != rowId[rowOffset + i]) {
+            return false;
+         }
+      }
+      for (int i = 0, j = rowLength; i < tableLength; ++i, ++j) {
+         if (key[j] != tableId[tableOffset + i]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private void setKey(int index, byte[] rowId, int rowOffset, int rowLength, byte[] tableId, int tableOffset,
+         int tableLength) {
+      int length = rowLength + tableLength;
+      byte[] key = keys[index];
+      if (key == null || key.length < length) {
+         // not reusable
+         key = new byte[length];
+         keys[index] = key;
+      }
+      System.arraycopy(rowId, rowOffset, key, 0, rowLength);
+      System.arraycopy(tableId, tableOffset, key, rowLength, tableLength);
+      rowLengths[index] = rowLength;
+      keyLengths[index] = length;
+   }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+import java.util.Arrays;
+
+/**
+ * CommitHashMap backed by the JNI library built from src/main/native
+ * 
+ * @author maysam
+ */
+
+class NativeCommitHashMap extends CommitHashMap {
+
+   native void init(int initialCapacity, int maxCommits, float loadFactor);
+
+   native static long gettotalput();
+
+   native static long gettotalget();
+
+   native static long gettotalwalkforput();
+
+   native static long gettotalwalkforget();
+
+   // Load the library
+   static {
+      System.loadLibrary("tso-commithashmap");
+   }
+
+   /**
+    * Constructs a new, empty hashtable with a default capacity and load factor,
+    * which is <code>1000</code> and <code>0.75</code> respectively.
+    */
+   public NativeCommitHashMap() {
+      this(1000, 0.75f);
+   }
+
+   /**
+    * Constructs a new, empty hashtable with the specified initial capacity and
+    * default load factor, which is <code>0.75</code>.
+    * 
+    * @param initialCapacity
+    *           the initial capacity of the hashtable.
+    * @throws IllegalArgumentException
+    *            if the initial capacity is less than zero.
+    */
+   public NativeCommitHashMap(int initialCapacity) {
+      this(initialCapacity, 0.75f);
+   }
+
+   /**
+    * Constructs a new, empty hashtable with the specified initial capacity and
+    * the specified load factor.
+    * 
+    * @param initialCapacity
+    *           the initial capacity of the hashtable.
+    * @param loadFactor
+    *           the load factor of the hashtable.
+    * @throws IllegalArgumentException
+    *            if the initial capacity is less than zero, or if the load
+    *            factor is nonpositive.
+    */
+   public NativeCommitHashMap(int initialCapacity, float loadFactor) {
+      initialCapacity = checkCapacity(initialCapacity, loadFactor);
+      
+      //assuming the worst case that each transaction modifies a value, this is the right size because it is proportional to the hashmap size
+      int txnCommitArraySize = (int) (initialCapacity * loadFactor);
+      this.init(initialCapacity, txnCommitArraySize, loadFactor);
+      this.maxCommits = txnCommitArraySize;
+   }
+
+   private int maxCommits;
+
+   @Override
+   public native long get(byte[] rowId, byte[] tableId, int hash);
+
+   @Override
+   public native long put(byte[] rowId, byte[] tableId, long value, int hash, long largestDeletedTimestamp);
+
+   @Override
+   native long getCommittedTimestamp(long startTimestamp);
+
+   @Override
+   native long setCommitted(long startTimestamp, long commitTimestamp, long largestDeletedTimestamp);
+
+   @Override
+   int commitSlots() {
+      return maxCommits;
+   }
+
+   @Override
+   native void copyCommits(int from, long[] startTimestamps, long[] commitTimestamps);
+
+   // scratch space for checkAndPut, the map is single threaded
+   private byte[][] rowIds = new byte[32][];
+   private byte[][] tableIds = new byte[32][];
+   private int[] slices = new int[32 * 5];
+
+   /**
+    * Checks and installs all the rows in a single JNI call, prefetching their
+    * buckets first. The ids are passed in place, as regions of their arrays.
+    */
+   @Override
+   long checkAndPut(RowKey[] rows, long startTimestamp, long commitTimestamp, long largestDeletedTimestamp) {
+      if (rowIds.length < rows.length) {
+         int size = Math.max(rows.length, rowIds.length * 2);
+         rowIds = new byte[size][];
+         tableIds = new byte[size][];
+         slices = new int[size * 5];
+      }
+      for (int i = 0; i < rows.length; ++i) {
+         RowKey r = rows[i];
+         rowIds[i] = r.rowArray();
+         tableIds[i] = r.tableArray();
+         slices[5 * i] = r.rowOffset();
+         slices[5 * i + 1] = r.rowLength();
+         slices[5 * i + 2] = r.tableOffset();
+         slices[5 * i + 3] = r.tableLength();
+         slices[5 * i + 4] = r.hashCode();
+      }
+      long result = checkAndPut(rows.length, rowIds, tableIds, slices, startTimestamp, commitTimestamp,
+            largestDeletedTimestamp);
+      // don't keep the requests alive
+      Arrays.fill(rowIds, 0, rows.length, null);
+      Arrays.fill(tableIds, 0, rows.length, null);
+      return result;
+   }
+
+   native long checkAndPut(int count, byte[][] rowIds, byte[][] tableIds, int[] slices, long startTimestamp,
+         long commitTimestamp, long largestDeletedTimestamp);
+}
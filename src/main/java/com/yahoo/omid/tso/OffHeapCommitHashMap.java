@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pure Java CommitHashMap. Both the row table and the commit table live in
+ * direct buffers, so it doesn't need the native library, adds no load to the
+ * garbage collector and its probe loops can be inlined by the JIT.
+ */
+class OffHeapCommitHashMap extends CommitHashMap {
+
+   private static final int COMMIT_SIZE = 16;
+
+   private final OffHeapConflictTable rows;
+
+   /**
+    * start timestamp (8) | commit timestamp (8), indexed by start timestamp
+    */
+   private final ByteBuffer commitTable;
+   private final int maxCommits;
+
+   /**
+    * Constructs a new, empty hashtable with the specified initial capacity and
+    * the specified load factor.
+    * 
+    * @param initialCapacity
+    *           the initial capacity of the hashtable.
+    * @param loadFactor
+    *           the load factor of the hashtable.
+    * @throws IllegalArgumentException
+    *            if the initial capacity is less than zero, or if the load
+    *            factor is nonpositive.
+    */
+   OffHeapCommitHashMap(int initialCapacity, float loadFactor) {
+      initialCapacity = checkCapacity(initialCapacity, loadFactor);
+      this.rows = new OffHeapConflictTable(initialCapacity, loadFactor);
+      // same size as the native one
+      this.maxCommits = Math.max((int) (initialCapacity * loadFactor), 1);
+      this.commitTable = ByteBuffer.allocateDirect(maxCommits * COMMIT_SIZE).order(ByteOrder.nativeOrder());
+   }
+
+   @Override
+   public long get(byte[] rowId, byte[] tableId, int hash) {
+      return rows.get(rowId, tableId, hash);
+   }
+
+   @Override
+   public long put(byte[] rowId, byte[] tableId, long value, int hash, long largestDeletedTimestamp) {
+      return rows.put(rowId, tableId, value, hash, largestDeletedTimestamp);
+   }
+
+   @Override
+   public long get(RowKey row) {
+      return rows.get(row);
+   }
+
+   @Override
+   public long put(RowKey row, long value, long largestDeletedTimestamp) {
+      return rows.put(row, value, largestDeletedTimestamp);
+   }
+
+   @Override
+   long checkAndPut(RowKey[] rows, long startTimestamp, long commitTimestamp, long largestDeletedTimestamp) {
+      return this.rows.checkAndPut(rows, startTimestamp, commitTimestamp, largestDeletedTimestamp);
+   }
+
+   @Override
+   long getCommittedTimestamp(long startTimestamp) {
+      int entry = (int) (startTimestamp % maxCommits) * COMMIT_SIZE;
+      if (commitTable.getLong(entry) == startTimestamp) {
+         return commitTable.getLong(entry + 8);
+      }
+      // there is not such entry in the array, either deleted or never entered
+      return 0;
+   }
+
+   @Override
+   long setCommitted(long startTimestamp, long commitTimestamp, long largestDeletedTimestamp) {
+      int entry = (int) (startTimestamp % maxCommits) * COMMIT_SIZE;
+      long commit = commitTable.getLong(entry + 8);
+      if (commitTable.getLong(entry) != startTimestamp && commit > largestDeletedTimestamp) {
+         largestDeletedTimestamp = commit;
+      }
+      commitTable.putLong(entry, startTimestamp);
+      commitTable.putLong(entry + 8, commitTimestamp);
+      return largestDeletedTimestamp;
+   }
+
+   @Override
+   int commitSlots() {
+      return maxCommits;
+   }
+
+   @Override
+   void copyCommits(int from, long[] startTimestamps, long[] commitTimestamps) {
+      for (int i = 0; i < startTimestamps.length; ++i) {
+         int entry = (from + i) * COMMIT_SIZE;
+         startTimestamps[i] = commitTable.getLong(entry);
+         commitTimestamps[i] = commitTable.getLong(entry + 8);
+      }
+   }
+}
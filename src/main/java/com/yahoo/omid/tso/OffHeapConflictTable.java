@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Row table kept in a direct buffer, with the same recycling policy as the
+ * native one (see {@link HeapConflictTable}).
+ *
+ * Slots are 32 bytes, two per cache line, probed linearly:
+ *
+ * <pre>
+ * order (8) | commit timestamp (8) | key fingerprint (8) | hash (4) | unused (4)
+ * </pre>
+ *
+ * Keys are not stored, rows are identified by their hash and a 64 bit
+ * fingerprint of row and table id. Two rows with the same hash and
+ * fingerprint would share an entry, whose value is the latest commit of
+ * either of them, so a collision can only produce a spurious conflict, never
+ * hide one.
+ */
+class OffHeapConflictTable implements ConflictTable {
+
+   static final int SLOT_SIZE = 32;
+
+   private static final int ORDER = 0;
+   private static final int VALUE = 8;
+   private static final int FINGERPRINT = 16;
+   private static final int HASH = 24;
+
+   private final ByteBuffer table;
+   private final int capacity;
+   private final int threshold;
+   private long largestOrder = 1;
+
+   OffHeapConflictTable(int capacity, float loadFactor) {
+      if (capacity <= 0 || capacity > Integer.MAX_VALUE / SLOT_SIZE) {
+         throw new IllegalArgumentException("Illegal Capacity: " + capacity);
+      }
+      if (loadFactor <= 0 || loadFactor >= 1) {
+         throw new IllegalArgumentException("Illegal Load: " + loadFactor);
+      }
+      this.capacity = capacity;
+      this.threshold = (int) (capacity * loadFactor);
+      // allocateDirect zeroes the memory, so all slots start empty
+      this.table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE).order(ByteOrder.nativeOrder());
+   }
+
+   @Override
+   public long get(byte[] rowId, byte[] tableId, int hash) {
+      return get(fingerprint(rowId, tableId), hash);
+   }
+
+   @Override
+   public long get(RowKey row) {
+      return get(fingerprint(row), row.hashCode());
+   }
+
+   private long get(long fingerprint, int hash) {
+      int index = (hash & 0x7FFFFFFF) % capacity;
+      for (int i = 0; i < capacity; ++i) {
+         int slot = index * SLOT_SIZE;
+         if (table.getLong(slot + ORDER) == 0) {
+            // empty, the row can't be further
+            break;
+         }
+         if (table.getInt(slot + HASH) == hash && table.getLong(slot + FINGERPRINT) == fingerprint) {
+            return table.getLong(slot + VALUE);
+         }
+         if (++index == capacity) {
+            index = 0;
+         }
+      }
+      return 0;
+   }
+
+   @Override
+   public long put(byte[] rowId, byte[] tableId, long value, int hash, long largestDeletedTimestamp) {
+      return put(fingerprint(rowId, tableId), value, hash, largestDeletedTimestamp);
+   }
+
+   @Override
+   public long put(RowKey row, long value, long largestDeletedTimestamp) {
+      return put(fingerprint(row), value, row.hashCode(), largestDeletedTimestamp);
+   }
+
+   private long put(long fingerprint, long value, int hash, long largestDeletedTimestamp) {
+      int index = (hash & 0x7FFFFFFF) % capacity;
+      for (;;) {
+         int slot = index * SLOT_SIZE;
+         long order = table.getLong(slot + ORDER);
+         boolean isOld = order == 0 ? true : largestOrder - order > threshold;
+         if (isOld) {
+            long old = table.getLong(slot + VALUE);
+            if (old > largestDeletedTimestamp) {
+               largestDeletedTimestamp = old;
+            }
+            table.putLong(slot + FINGERPRINT, fingerprint);
+            table.putInt(slot + HASH, hash);
+            table.putLong(slot + VALUE, value);
+            table.putLong(slot + ORDER, ++largestOrder);
+            return largestDeletedTimestamp;
+         }
+         if (table.getInt(slot + HASH) == hash && table.getLong(slot + FINGERPRINT) == fingerprint) {
+            table.putLong(slot + VALUE, value);
+            table.putLong(slot + ORDER, ++largestOrder);
+            return largestDeletedTimestamp;
+         }
+         if (++index == capacity) {
+            index = 0;
+         }
+      }
+   }
+
+   // scratch space for checkAndPut, the table is single threaded
+   private long[] fingerprints = new long[32];
+   private long touched;
+
+   /**
+    * See {@link CommitHashMap#checkAndPut(RowKey[], long, long, long)}
+    * 
+    * First computes all the fingerprints and touches the first slot of every
+    * row. Those loads don't depend on each other, so the CPU can have all the
+    * cache misses in flight at once, and the check and put passes find the
+    * slots in cache.
+    */
+   long checkAndPut(RowKey[] rows, long startTimestamp, long commitTimestamp, long largestDeletedTimestamp) {
+      if (fingerprints.length < rows.length) {
+         fingerprints = new long[Math.max(rows.length, fingerprints.length * 2)];
+      }
+      long touch = 0;
+      for (int i = 0; i < rows.length; ++i) {
+         RowKey r = rows[i];
+         fingerprints[i] = fingerprint(r);
+         touch += table.getLong(((r.hashCode() & 0x7FFFFFFF) % capacity) * SLOT_SIZE + ORDER);
+      }
+      // keep the loads from being optimized away
+      touched = touch;
+
+      for (int i = 0; i < rows.length; ++i) {
+         long value = get(fingerprints[i], rows[i].hashCode());
+         if (value != 0 && value > startTimestamp) {
+            return CommitHashMap.CONFLICT;
+         } else if (value == 0 && largestDeletedTimestamp > startTimestamp) {
+            return CommitHashMap.CONFLICT;
+         }
+      }
+      long result = largestDeletedTimestamp;
+      for (int i = 0; i < rows.length; ++i) {
+         result = Math.max(result, put(fingerprints[i], commitTimestamp, rows[i].hashCode(), largestDeletedTimestamp));
+      }
+      return result;
+   }
+
+   /**
+    * 64 bit FNV-1a of the row id, the table id and their lengths
+    */
+   static long fingerprint(byte[] rowId, byte[] tableId) {
+      return fingerprint(rowId, 0, rowId.length, tableId, 0, tableId.length);
+   }
+
+   static long fingerprint(RowKey row) {
+      return fingerprint(row.rowArray(), row.rowOffset(), row.rowLength(), row.tableArray(), row.tableOffset(),
+            row.tableLength());
+   }
+
+   private static long fingerprint(byte[] rowId, int rowOffset, int rowLength, byte[] tableId, int tableOffset,
+         int tableLength) {
+      long h = 0xcbf29ce484222325L ^ ((rowLength << 16) | tableLength);
+      for (int i = rowOffset; i < rowOffset + rowLength; ++i) {
+         h ^= rowId[i] & 0xff;
+         h *= 0x100000001b3L;
+      }
+      for (int i = tableOffset; i < tableOffset + tableLength; ++i) {
+         h ^= tableId[i] & 0xff;
+         h *= 0x100000001b3L;
+      }
+      return h;
+   }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring used to connect the stages of the commit pipeline.
+ *
+ * Any number of threads can publish, but only one thread (the owner of the
+ * next stage) may consume. Producers claim a slot with a CAS on the tail
+ * sequence and then store the element; the consumer sees the element once
+ * the store is visible, so a claimed but not yet filled slot just looks
+ * empty for a moment.
+ *
+ * When the ring is empty the consumer parks; producers only unpark it if
+ * it announced it was going to sleep.
+ */
+public class RingBuffer<E> {
+
+   private static final int SPINS = 100;
+   private static final long PRODUCER_BACKOFF_NANOS = 1000;
+
+   private final AtomicReferenceArray<E> slots;
+   private final int mask;
+   private final int capacity;
+
+   private final AtomicLong tail = new AtomicLong();
+   private volatile long head = 0;
+
+   private volatile Thread consumer;
+   private volatile boolean consumerWaiting = false;
+
+   /**
+    * @param capacity
+    *           rounded up to the next power of two
+    */
+   public RingBuffer(int capacity) {
+      if (capacity <= 0) {
+         throw new IllegalArgumentException("Illegal Capacity: " + capacity);
+      }
+      int size = Integer.highestOneBit(capacity);
+      if (size < capacity) {
+         size <<= 1;
+      }
+      this.capacity = size;
+      this.mask = size - 1;
+      this.slots = new AtomicReferenceArray<E>(size);
+   }
+
+   /**
+    * Publishes an element, spinning while the ring is full.
+    */
+   public void put(E e) throws InterruptedException {
+      if (e == null) {
+         throw new NullPointerException();
+      }
+      while (!offer(e)) {
+         if (Thread.interrupted()) {
+            throw new InterruptedException();
+         }
+         LockSupport.parkNanos(PRODUCER_BACKOFF_NANOS);
+      }
+   }
+
+   /**
+    * Publishes an element if there is room for it.
+    *
+    * @return false if the ring was full
+    */
+   public boolean offer(E e) {
+      if (e == null) {
+         throw new NullPointerException();
+      }
+      long t;
+      do {
+         t = tail.get();
+         if (t - head >= capacity) {
+            return false;
+         }
+      } while (!tail.compareAndSet(t, t + 1));
+      slots.set((int) t & mask, e);
+      if (consumerWaiting) {
+         Thread c = consumer;
+         if (c != null) {
+            LockSupport.unpark(c);
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Takes the next element, if any. Must only be called from the consumer
+    * thread.
+    */
+   public E poll() {
+      long h = head;
+      int index = (int) h & mask;
+      E e = slots.get(index);
+      if (e == null) {
+         return null;
+      }
+      slots.lazySet(index, null);
+      head = h + 1;
+      return e;
+   }
+
+   /**
+    * Takes the next element, waiting up to the given time for one to be
+    * published.
+    *
+    * @return the element, or null if the timeout elapsed
+    */
+   public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+      E e = poll();
+      if (e != null) {
+         return e;
+      }
+      for (int i = 0; i < SPINS; ++i) {
+         e = poll();
+         if (e != null) {
+            return e;
+         }
+      }
+      consumer = Thread.currentThread();
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      try {
+         for (;;) {
+            consumerWaiting = true;
+            e = poll();
+            if (e != null) {
+               return e;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+               return null;
+            }
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+               throw new InterruptedException();
+            }
+         }
+      } finally {
+         consumerWaiting = false;
+      }
+   }
+
+   /**
+    * Moves up to maxElements already published elements into the given
+    * collection without waiting.
+    *
+    * @return the number of elements moved
+    */
+   public int drainTo(Collection<? super E> c, int maxElements) {
+      int n = 0;
+      E e;
+      while (n < maxElements && (e = poll()) != null) {
+         c.add(e);
+         n++;
+      }
+      return n;
+   }
+
+   public int size() {
+      return (int) (tail.get() - head);
+   }
+
+   public boolean isEmpty() {
+      return size() == 0;
+   }
+
+   public int capacity() {
+      return capacity;
+   }
+}
@@ -25,29 +25,82 @@ import org.apache.hadoop.hbase.util.MurmurHash;
 import org.jboss.netty.buffer.ChannelBuffer;
 
 public class RowKey {
+   /*
+    * Row and table ids are the regions [offset, offset + length) of these
+    * arrays. Rows decoded from a CommitRequest are slices of one array that
+    * holds all the rows of the request, so decoding them doesn't allocate an
+    * array per row; getRow() and getTable() copy them out on first use.
+    */
    private byte[] rowId;
+   private int rowOffset;
+   private int rowLength;
    private byte[] tableId;
+   private int tableOffset;
+   private int tableLength;
    private int hash = 0;
 
    public RowKey() {
-      rowId = new byte[0];
-      tableId = new byte[0];
+      this(new byte[0], new byte[0]);
    }
 
    public RowKey(byte[] r, byte[] t) {
-      rowId = r;
-      tableId = t;
+      this(r, 0, r.length, t, 0, t.length);
    }
+
+   RowKey(byte[] r, int rowOffset, int rowLength, byte[] t, int tableOffset, int tableLength) {
+      this.rowId = r;
+      this.rowOffset = rowOffset;
+      this.rowLength = rowLength;
+      this.tableId = t;
+      this.tableOffset = tableOffset;
+      this.tableLength = tableLength;
+   }
+
    public byte[] getTable() {
+      if (tableOffset != 0 || tableLength != tableId.length) {
+         tableId = Arrays.copyOfRange(tableId, tableOffset, tableOffset + tableLength);
+         tableOffset = 0;
+      }
       return tableId;
    }
 
    public byte[] getRow() {
+      if (rowOffset != 0 || rowLength != rowId.length) {
+         rowId = Arrays.copyOfRange(rowId, rowOffset, rowOffset + rowLength);
+         rowOffset = 0;
+      }
       return rowId;
    }
 
+   /*
+    * Access to the ids without copying them, for the conflict tables
+    */
+   byte[] rowArray() {
+      return rowId;
+   }
+
+   int rowOffset() {
+      return rowOffset;
+   }
+
+   int rowLength() {
+      return rowLength;
+   }
+
+   byte[] tableArray() {
+      return tableId;
+   }
+
+   int tableOffset() {
+      return tableOffset;
+   }
+
+   int tableLength() {
+      return tableLength;
+   }
+
    public String toString() {
-      return new String(tableId) + ":" + new String(rowId);
+      return new String(tableId, tableOffset, tableLength) + ":" + new String(rowId, rowOffset, rowLength);
    }
 
    public static RowKey readObject(ChannelBuffer aInputStream) {
@@ -65,22 +118,70 @@ public class RowKey {
       return rk;
    }
 
+   /**
+    * Reads count rows serialized with writeObject as slices of a single array,
+    * doing one copy for all of them. The buffer must hold all the rows, see
+    * {@link #serializedSize(ChannelBuffer, int, int)}.
+    */
+   public static RowKey[] readObjects(ChannelBuffer aInputStream, int count, int size) {
+      byte[] keys = new byte[size];
+      aInputStream.readBytes(keys);
+      RowKey[] rows = new RowKey[count];
+      int offset = 0;
+      for (int i = 0; i < count; i++) {
+         int hash = ((keys[offset] & 0xff) << 24) | ((keys[offset + 1] & 0xff) << 16)
+               | ((keys[offset + 2] & 0xff) << 8) | (keys[offset + 3] & 0xff);
+         int rowLength = keys[offset + 4];
+         int rowOffset = offset + 5;
+         int tableLength = keys[rowOffset + rowLength];
+         int tableOffset = rowOffset + rowLength + 1;
+         rows[i] = new RowKey(keys, rowOffset, rowLength, keys, tableOffset, tableLength);
+         rows[i].hash = hash;
+         offset = tableOffset + tableLength;
+      }
+      return rows;
+   }
+
+   /**
+    * Size of count serialized rows starting at index, without moving the
+    * reader index
+    * 
+    * @return the size, or -1 if the buffer doesn't hold all of them
+    */
+   public static int serializedSize(ChannelBuffer buffer, int index, int count) {
+      int end = buffer.writerIndex();
+      int offset = index;
+      for (int i = 0; i < count; i++) {
+         // hash and row id length
+         if (offset + 5 > end) {
+            return -1;
+         }
+         offset += 5 + buffer.getByte(offset + 4);
+         // table id length
+         if (offset + 1 > end) {
+            return -1;
+         }
+         offset += 1 + buffer.getByte(offset);
+      }
+      return offset > end ? -1 : offset - index;
+   }
+
    public void writeObject(DataOutputStream aOutputStream)
          throws IOException {
       hashCode();
       aOutputStream.writeInt(hash);
-      aOutputStream.writeByte(rowId.length);
-      aOutputStream.write(rowId,0,rowId.length);
-      aOutputStream.writeByte(tableId.length);
-      aOutputStream.write(tableId,0,tableId.length);
+      aOutputStream.writeByte(rowLength);
+      aOutputStream.write(rowId,rowOffset,rowLength);
+      aOutputStream.writeByte(tableLength);
+      aOutputStream.write(tableId,tableOffset,tableLength);
    }
 
    public boolean equals(Object obj) {
       if (obj instanceof RowKey) {
          RowKey other = (RowKey)obj;
          
-         return Bytes.equals(other.rowId, rowId) 
-            && Bytes.equals(other.tableId, tableId);
+         return Bytes.compareTo(other.rowId, other.rowOffset, other.rowLength, rowId, rowOffset, rowLength) == 0
+            && Bytes.compareTo(other.tableId, other.tableOffset, other.tableLength, tableId, tableOffset, tableLength) == 0;
       }
       return false;
    }
@@ -103,8 +204,9 @@ public class RowKey {
       }
       hash ^= h;
       return hash;*/
-       byte[] key = Arrays.copyOf(tableId, tableId.length + rowId.length);
-       System.arraycopy(rowId, 0, key, tableId.length, rowId.length);
+       byte[] key = new byte[tableLength + rowLength];
+       System.arraycopy(tableId, tableOffset, key, 0, tableLength);
+       System.arraycopy(rowId, rowOffset, key, tableLength, rowLength);
        hash = MurmurHash.getInstance().hash(key, 0, key.length, 0xdeadbeef);
        //return MurmurHash3.MurmurHash3_x64_32(rowId, 0xDEADBEEF);
       //	    return (31*Arrays.hashCode(tableId)) + Arrays.hashCode(rowId);
@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Conflict map partitioned by row hash into independent shards.
+ *
+ * Each shard has its own table and its own lock, so commits that touch
+ * disjoint shards can check their rows in parallel. A commit locks all of its
+ * shards, always in increasing shard order to avoid deadlocks, checks its rows
+ * and, if it commits, inserts them before releasing the locks.
+ *
+ * The shards don't keep a largest deleted timestamp of their own: the global
+ * one in TSOState, raised with the value returned by put, is the only
+ * watermark deciding whether a transaction is too old for the map to answer.
+ */
+class ShardedConflictMap {
+
+   private final Shard[] shards;
+   private final int shift;
+
+   private static class Shard {
+      final ReentrantLock lock = new ReentrantLock();
+      final ConflictTable table;
+
+      Shard(ConflictTable table) {
+         this.table = table;
+      }
+   }
+
+   /**
+    * @param numShards
+    *           rounded up to the next power of two
+    * @param capacity
+    *           total capacity, divided among the shards
+    */
+   ShardedConflictMap(int numShards, int capacity, float loadFactor) {
+      this(numShards, capacity, loadFactor, CommitHashMap.NATIVE);
+   }
+
+   /**
+    * @param engine
+    *           with "offheap" the shard tables are kept in direct buffers,
+    *           otherwise in the heap (the native table can't be instantiated
+    *           more than once)
+    */
+   ShardedConflictMap(int numShards, int capacity, float loadFactor, String engine) {
+      if (numShards <= 0) {
+         throw new IllegalArgumentException("Illegal number of shards: " + numShards);
+      }
+      int n = Integer.highestOneBit(numShards);
+      if (n < numShards) {
+         n <<= 1;
+      }
+      this.shift = 32 - Integer.numberOfTrailingZeros(n);
+      this.shards = new Shard[n];
+      int shardCapacity = Math.max(capacity / n, 1);
+      for (int i = 0; i < n; ++i) {
+         ConflictTable table;
+         if (CommitHashMap.OFFHEAP.equals(engine)) {
+            table = new OffHeapConflictTable(shardCapacity, loadFactor);
+         } else {
+            table = new HeapConflictTable(shardCapacity, loadFactor);
+         }
+         shards[i] = new Shard(table);
+      }
+   }
+
+   int getNumShards() {
+      return shards.length;
+   }
+
+   /**
+    * The tables index rows by hash modulo their capacity, so the shard is
+    * taken from the high bits of the mixed hash to keep both independent.
+    */
+   int shardOf(int hash) {
+      if (shards.length == 1) {
+         return 0;
+      }
+      return (hash * 0x9E3779B9) >>> shift;
+   }
+
+   /**
+    * @return the distinct shards touched by the rows, in increasing order
+    */
+   int[] shardsOf(RowKey[] rows) {
+      int[] ids = new int[rows.length];
+      for (int i = 0; i < rows.length; ++i) {
+         ids[i] = shardOf(rows[i].hashCode());
+      }
+      Arrays.sort(ids);
+      int n = 0;
+      for (int i = 0; i < ids.length; ++i) {
+         if (n == 0 || ids[n - 1] != ids[i]) {
+            ids[n++] = ids[i];
+         }
+      }
+      return n == ids.length ? ids : Arrays.copyOf(ids, n);
+   }
+
+   /**
+    * Locks the given shards, which must be sorted
+    */
+   void lock(int[] ids) {
+      for (int id : ids) {
+         shards[id].lock.lock();
+      }
+   }
+
+   void unlock(int[] ids) {
+      for (int i = ids.length - 1; i >= 0; --i) {
+         shards[ids[i]].lock.unlock();
+      }
+   }
+
+   /**
+    * Checks the write-write conflicts of a transaction. The shards of the
+    * rows must be locked by the caller.
+    * 
+    * Rows recycled from the map are not seen here, the caller must also
+    * abort transactions that started before the global largest deleted
+    * timestamp.
+    * 
+    * @return true if any row in the map was committed after startTimestamp
+    */
+   boolean hasConflicts(RowKey[] rows, long startTimestamp) {
+      for (RowKey r : rows) {
+         if (shards[shardOf(r.hashCode())].table.get(r) > startTimestamp) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Inserts the rows of a committed transaction. The shards of the rows must
+    * be locked by the caller.
+    * 
+    * @return the largest commit timestamp recycled to make room for the
+    *         rows, 0 if none was, to be merged into the global largest
+    *         deleted timestamp
+    */
+   long put(RowKey[] rows, long commitTimestamp) {
+      long largestDeletedTimestamp = 0;
+      for (RowKey r : rows) {
+         largestDeletedTimestamp = shards[shardOf(r.hashCode())].table.put(r, commitTimestamp,
+               largestDeletedTimestamp);
+      }
+      return largestDeletedTimestamp;
+   }
+}
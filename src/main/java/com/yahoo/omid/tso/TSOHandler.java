@@ -16,13 +16,12 @@
 
 package com.yahoo.omid.tso;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -36,7 +35,6 @@ import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
@@ -45,14 +43,20 @@ import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
 
+import com.yahoo.omid.replication.SharedMessageBuffer;
 import com.yahoo.omid.replication.SharedMessageBuffer.ReadingBuffer;
+import com.yahoo.omid.tso.messages.AbortRangeRequest;
 import com.yahoo.omid.tso.messages.AbortRequest;
-import com.yahoo.omid.tso.messages.AbortedTransactionReport;
+import com.yahoo.omid.tso.messages.BatchCommitQueryRequest;
+import com.yahoo.omid.tso.messages.BatchCommitQueryResponse;
+import com.yahoo.omid.tso.messages.BulkAbortedTransactionReport;
 import com.yahoo.omid.tso.messages.CommitQueryRequest;
 import com.yahoo.omid.tso.messages.CommitQueryResponse;
 import com.yahoo.omid.tso.messages.CommitRequest;
 import com.yahoo.omid.tso.messages.CommitResponse;
 import com.yahoo.omid.tso.messages.FullAbortRequest;
+import com.yahoo.omid.tso.messages.TimestampBatchRequest;
+import com.yahoo.omid.tso.messages.TimestampBatchResponse;
 import com.yahoo.omid.tso.messages.TimestampRequest;
 import com.yahoo.omid.tso.messages.TimestampResponse;
 import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
@@ -84,6 +88,24 @@ public class TSOHandler extends SimpleChannelHandler {
    private ChannelGroup channelGroup = null;
    
    private Map<Channel, ReadingBuffer> messageBuffersMap = new HashMap<Channel, ReadingBuffer>();
+
+   /**
+    * Number of half aborted transactions per BulkAbortedTransactionReport
+    * sent to a new client
+    */
+   static int BOOTSTRAP_CHUNK = 8192;
+   static {
+      try {
+         BOOTSTRAP_CHUNK = Integer.valueOf(System.getProperty("omid.bootstrapChunk"));
+      } catch (Exception e) {
+         // ignore, usedefault
+      }
+   };
+
+   /**
+    * New clients still receiving the half aborted transactions
+    */
+   private Map<Channel, AbortedBootstrap> bootstraps = new ConcurrentHashMap<Channel, AbortedBootstrap>();
    
    /**
     * Timestamp Oracle
@@ -99,19 +121,70 @@ public class TSOHandler extends SimpleChannelHandler {
    private ScheduledExecutorService scheduledExecutor;
    private ScheduledFuture<?> flushFuture;
 
+   /**
+    * Decides when the WAL batches are sent
+    */
+   final WALBatcher batcher;
+
    private ExecutorService executor;
 
+   /**
+    * Writes the state checkpoints, null if they are disabled
+    */
+   private ScheduledExecutorService checkpointer;
+
+   /**
+    * Staged commit engine, only used when the server runs in pipelined mode
+    */
+   private CommitPipeline pipeline;
+
    /**
     * Constructor
     * @param channelGroup
     */
    public TSOHandler(ChannelGroup channelGroup, TSOState state) {
+      this(channelGroup, state, false);
+   }
+
+   /**
+    * Constructor
+    * @param channelGroup
+    * @param pipelined if true, requests are decided by the staged commit pipeline
+    *                  instead of by the Netty threads holding the state lock
+    */
+   public TSOHandler(ChannelGroup channelGroup, TSOState state, boolean pipelined) {
       this.channelGroup = channelGroup;
       this.timestampOracle = state.getSO();
       this.sharedState = state;
+      this.batcher = new WALBatcher(TSOState.ADAPTIVE_BATCHING);
+      if (pipelined) {
+         this.pipeline = new CommitPipeline(this, state);
+      }
    }
 
    public void start() {
+      this.executor = Executors.newSingleThreadExecutor();
+      if (SharedMessageBuffer.PUSH_INTERVAL > 0) {
+         sharedState.sharedMessageBuffer.startPushFlusher();
+      }
+      if (sharedState.getCheckpointDir() != null && sharedState.getLogger() != null && Checkpointer.INTERVAL > 0) {
+         this.checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(Thread.currentThread().getThreadGroup(), r);
+               t.setDaemon(true);
+               t.setName("Checkpointer");
+               return t;
+            }
+         });
+         checkpointer.scheduleWithFixedDelay(new Checkpointer(sharedState, sharedState.getCheckpointDir()),
+               Checkpointer.INTERVAL, Checkpointer.INTERVAL, TimeUnit.SECONDS);
+      }
+      if (pipeline != null) {
+         // the pipeline WAL stage takes care of flushing on timeout
+         pipeline.start();
+         return;
+      }
       this.flushThread = new FlushThread();
       this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
          @Override
@@ -122,8 +195,14 @@ public class TSOHandler extends SimpleChannelHandler {
             return t;
          }
       });
-      this.flushFuture = scheduledExecutor.schedule(flushThread, TSOState.FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
-      this.executor = Executors.newSingleThreadExecutor();
+      this.flushFuture = scheduledExecutor.schedule(flushThread, batcher.getFlushDeadline(), TimeUnit.NANOSECONDS);
+      // send the pending batch as soon as the logger has nothing to do
+      batcher.setIdleListener(new WALBatcher.IdleListener() {
+         @Override
+         public void idle() {
+            scheduledExecutor.execute(idleFlush);
+         }
+      });
    }
 
    /**
@@ -140,7 +219,11 @@ public class TSOHandler extends SimpleChannelHandler {
    @Override
       public void channelInterestChanged(ChannelHandlerContext ctx,
             ChannelStateEvent e) {
+      AbortedBootstrap bootstrap = bootstraps.get(ctx.getChannel());
+      if (bootstrap != null && ctx.getChannel().isWritable()) {
+         bootstrap.resume();
       }
+   }
 
    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
       channelGroup.add(ctx.getChannel());
@@ -148,9 +231,8 @@ public class TSOHandler extends SimpleChannelHandler {
 
    @Override
    public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-      synchronized (sharedMsgBufLock) {
-         sharedState.sharedMessageBuffer.removeReadingBuffer(ctx);
-      }
+      bootstraps.remove(ctx.getChannel());
+      sharedState.sharedMessageBuffer.removeReadingBuffer(ctx);
    }
 
    /**
@@ -159,35 +241,110 @@ public class TSOHandler extends SimpleChannelHandler {
    @Override
    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
       Object msg = e.getMessage();
+      if (pipeline != null) {
+         if (msg instanceof TimestampRequest) {
+            // doesn't need the decision stage
+            handle((TimestampRequest) msg, ctx);
+         } else if (msg instanceof TimestampBatchRequest) {
+            handle((TimestampBatchRequest) msg, ctx);
+         } else if (msg instanceof CommitRequest || msg instanceof FullAbortRequest || msg instanceof AbortRequest
+               || msg instanceof AbortRangeRequest || msg instanceof CommitQueryRequest
+               || msg instanceof BatchCommitQueryRequest) {
+            pipeline.publish(new ChannelandMessage(ctx, (TSOMessage) msg));
+         }
+         return;
+      }
       if (msg instanceof TimestampRequest) {
          handle((TimestampRequest) msg, ctx);
          return;
+      } else if (msg instanceof TimestampBatchRequest) {
+         handle((TimestampBatchRequest) msg, ctx);
+         return;
       } else if (msg instanceof CommitRequest) {
          handle((CommitRequest) msg, ctx);
          return;
       } else if (msg instanceof FullAbortRequest) {
          handle((FullAbortRequest) msg, ctx);
          return;
+      } else if (msg instanceof AbortRequest) {
+         handle((AbortRequest) msg, ctx);
+         return;
+      } else if (msg instanceof AbortRangeRequest) {
+         handle((AbortRangeRequest) msg, ctx);
+         return;
       } else if (msg instanceof CommitQueryRequest) {
          handle((CommitQueryRequest) msg, ctx);
          return;
+      } else if (msg instanceof BatchCommitQueryRequest) {
+         handle((BatchCommitQueryRequest) msg, ctx);
+         return;
       }
    }
 
    public void handle(AbortRequest msg, ChannelHandlerContext ctx) {
+      if (pipeline != null) {
+         // the WAL stage owns the pending batch
+         pipeline.publish(new ChannelandMessage(ctx, msg));
+         return;
+      }
       synchronized (sharedState) {
-         DataOutputStream toWAL  = sharedState.toWAL;
-         try {
-            toWAL.writeByte(LoggerProtocol.ABORT);
-            toWAL.writeLong(msg.startTimestamp);
-         } catch (IOException e) {
-            e.printStackTrace();
+         decideAbort(msg, sharedState.toWAL);
+      }
+   }
+
+   /**
+    * Must be called holding the sharedState lock (or from the pipeline decision stage)
+    */
+   void decideAbort(AbortRequest msg, WALBuffer toWAL) {
+      if (msg.startTimestamp < timestampOracle.first() || msg.startTimestamp < sharedState.largestDeletedTimestamp) {
+         // not from this TSO, or already half aborted when the largest deleted timestamp passed it
+         return;
+      }
+      toWAL.writeByte(LoggerProtocol.ABORT);
+      toWAL.writeLong(msg.startTimestamp);
+      abortCount++;
+      sharedState.processAbort(msg.startTimestamp);
+      synchronized (sharedMsgBufLock) {
+         queueHalfAbort(msg.startTimestamp);
+      }
+   }
+
+   public void handle(AbortRangeRequest msg, ChannelHandlerContext ctx) {
+      if (pipeline != null) {
+         // the WAL stage owns the pending batch
+         pipeline.publish(new ChannelandMessage(ctx, msg));
+         return;
+      }
+      synchronized (sharedState) {
+         decideAbortRange(msg, sharedState.toWAL);
+      }
+   }
+
+   /**
+    * Aborts and cleans a range of timestamps the client never used. Nothing
+    * was written with them, so they leave Uncommited in one step, without a
+    * WAL record, a half abort or a replication report; after a restart they
+    * are below the first timestamp of the oracle anyway. Only the ones the
+    * largest deleted timestamp already half aborted need a full abort, as
+    * the clients were told about them.
+    * 
+    * Must be called holding the sharedState lock (or from the pipeline decision stage)
+    */
+   void decideAbortRange(AbortRangeRequest msg, WALBuffer toWAL) {
+      long first = Math.max(msg.first, timestampOracle.first());
+      long end = Math.min(msg.end, timestampOracle.get() + 1);
+      long deleted = Math.min(end, sharedState.largestDeletedTimestamp);
+      for (long t = first; t < deleted; ++t) {
+         if (sharedState.hashmap.isHalfAborted(t)) {
+            logFullAbort(new FullAbortRequest(t), toWAL);
+            synchronized (sharedMsgBufLock) {
+               queueFullAbort(t);
+            }
          }
-         abortCount++;
-         sharedState.processAbort(msg.startTimestamp);
-         synchronized (sharedMsgBufLock) {
-            queueHalfAbort(msg.startTimestamp);
-        }
+      }
+      first = Math.max(first, deleted);
+      if (first < end) {
+         sharedState.uncommited.abortRange(first, end);
       }
    }
 
@@ -195,49 +352,207 @@ public class TSOHandler extends SimpleChannelHandler {
     * Handle the TimestampRequest message
     */
    public void handle(TimestampRequest msg, ChannelHandlerContext ctx) {
-        long timestamp;
-        synchronized (sharedState) {
-            try {
-                timestamp = timestampOracle.next(sharedState.toWAL);
-            } catch (IOException e) {
-                e.printStackTrace();
-                return;
-            }
-        }
+        // lock free, see sendTimestampResponse
+        long timestamp = timestampOracle.next();
+
+        sendTimestampResponse(ctx, new TimestampResponse(timestamp));
+   }
+
+   /**
+    * Largest number of timestamps given in a TimestampBatchResponse
+    */
+   static final int MAX_TIMESTAMP_BATCH = 10000;
+
+   /**
+    * Handle the TimestampBatchRequest message
+    */
+   public void handle(TimestampBatchRequest msg, ChannelHandlerContext ctx) {
+      int count = Math.max(1, Math.min(msg.count, MAX_TIMESTAMP_BATCH));
+      long first = timestampOracle.next(count);
 
+      sendTimestampResponse(ctx, new TimestampBatchResponse(first, count));
+   }
+
+   /**
+    * Hints the timestamp oracle that n timestamps are about to be requested,
+    * so it can reserve the next range ahead of time.
+    */
+   void reserveTimestamps(int n) {
+      timestampOracle.reserve(n);
+   }
+
+   /**
+    * Bootstraps the client if needed, flushes its pending replication data and
+    * sends the timestamp. Can be called without holding the sharedState lock.
+    * 
+    * Timestamps are allocated without locks, but commit timestamps are
+    * allocated and queued for replication atomically under sharedMsgBufLock,
+    * inside a beginCommit/endCommit section of the SharedMessageBuffer. The
+    * flush doesn't take that lock: it waits for the commit in progress, if
+    * any, once the timestamp was allocated. Then every commit with a smaller
+    * commit timestamp is already in the buffer, and the client learns about
+    * it before getting its timestamp.
+    * 
+    * @param response
+    *           a TimestampResponse or a TimestampBatchResponse
+    */
+   void sendTimestampResponse(ChannelHandlerContext ctx, TSOMessage response) {
         ReadingBuffer buffer;
         Channel channel = ctx.getChannel();
-        boolean bootstrap = false;
         synchronized (messageBuffersMap) {
             buffer = messageBuffersMap.get(ctx.getChannel());
             if (buffer == null) {
-                 synchronized (sharedMsgBufLock) {
-                     bootstrap = true;
-                     buffer = sharedState.sharedMessageBuffer.getReadingBuffer(ctx);
-                     messageBuffersMap.put(channel, buffer);
-                     channelGroup.add(channel);
-                     LOG.warn("Channel connected: " + messageBuffersMap.size());
-                 }
+                 buffer = sharedState.sharedMessageBuffer.getReadingBuffer(ctx);
+                 messageBuffersMap.put(channel, buffer);
+                 channelGroup.add(channel);
+                 LOG.warn("Channel connected: " + messageBuffersMap.size());
             }
         }
-        if (bootstrap) {
-           synchronized (sharedState) {
-              synchronized (sharedMsgBufLock) {
-                 channel.write(buffer.getZipperState());
-                 buffer.initializeIndexes();
-              }
-           }
-           for (AbortedTransaction halfAborted : sharedState.hashmap.halfAborted) {
-              channel.write(new AbortedTransactionReport(halfAborted.getStartTimestamp()));
+        synchronized (buffer) {
+           AbortedBootstrap bootstrap = bootstraps.get(channel);
+           if (bootstrap != null && bootstrap.defer(response)) {
+              return;
            }
+           flushAndSend(ctx, buffer, Arrays.asList(response));
+        }
+   }
+
+   /**
+    * Must be called holding the ReadingBuffer lock
+    */
+   private void flushAndSend(ChannelHandlerContext ctx, ReadingBuffer buffer, List<TSOMessage> responses) {
+        if (buffer.claimSync()) {
+            // new client, or one dropped from the replication log for lagging behind
+            bootstrap(ctx, buffer, responses);
+            return;
+        }
+        Channel channel = ctx.getChannel();
+        sharedState.sharedMessageBuffer.awaitCommitInProgress();
+        buffer.flush();
+        for (TSOMessage response : responses) {
+            Channels.write(channel, response);
         }
-        ChannelBuffer cb;
-        ChannelFuture future = Channels.future(channel);
-        synchronized (sharedMsgBufLock) {
-            cb = buffer.flush(future);
+   }
+
+   /**
+    * Sends the client a ZipperState, which resets its replicated state, and
+    * starts streaming it the half aborted transactions. Must be called holding
+    * the ReadingBuffer lock.
+    */
+   private void bootstrap(ChannelHandlerContext ctx, ReadingBuffer buffer, List<TSOMessage> responses) {
+        Channel channel = ctx.getChannel();
+        AbortedBootstrap bootstrap = new AbortedBootstrap(ctx, buffer, responses);
+        bootstraps.put(channel, bootstrap);
+        synchronized (sharedState) {
+           synchronized (sharedMsgBufLock) {
+              channel.write(buffer.getZipperState());
+              buffer.initializeIndexes();
+           }
         }
-        Channels.write(ctx, future, cb);
-        Channels.write(channel, new TimestampResponse(timestamp));
+        long[] aborted = sharedState.hashmap.halfAborted.toArray(Long.MAX_VALUE);
+        Arrays.sort(aborted);
+        bootstrap.start(aborted);
+   }
+
+   /**
+    * Streams the half aborted transactions to a new client in sorted,
+    * delta encoded chunks. It stops writing while the channel is not writable
+    * and resumes from channelInterestChanged, so a reconnecting client doesn't
+    * fill the server memory with pending writes.
+    * 
+    * The timestamp responses for the client wait until it has received all
+    * of them, otherwise it could read from a half aborted transaction it
+    * doesn't know about yet.
+    * 
+    * A client that stops reading during its bootstrap can be dropped from the
+    * replication log like any other laggard. The bootstrap is then cancelled
+    * and started over, with the responses still waiting, as soon as the client
+    * reads again or asks for another timestamp.
+    * 
+    * Synchronized on the ReadingBuffer of the client, like the rest of its
+    * replication state.
+    */
+   private class AbortedBootstrap {
+      private final ChannelHandlerContext ctx;
+      private final ReadingBuffer buffer;
+      private List<TSOMessage> deferred;
+      private long[] aborted;
+      private int position;
+      private boolean done;
+
+      AbortedBootstrap(ChannelHandlerContext ctx, ReadingBuffer buffer, List<TSOMessage> responses) {
+         this.ctx = ctx;
+         this.buffer = buffer;
+         this.deferred = new ArrayList<TSOMessage>(responses);
+      }
+
+      /**
+       * Queues a response until the bootstrap is over
+       * 
+       * @return false if it is already over, and the response can be sent
+       */
+      boolean defer(TSOMessage response) {
+         synchronized (buffer) {
+            if (done) {
+               return false;
+            }
+            deferred.add(response);
+            if (buffer.isDropped()) {
+               restart();
+            }
+            return true;
+         }
+      }
+
+      void start(long[] aborted) {
+         synchronized (buffer) {
+            this.aborted = aborted;
+            resume();
+         }
+      }
+
+      void resume() {
+         synchronized (buffer) {
+            if (done || aborted == null) {
+               return;
+            }
+            if (buffer.isDropped()) {
+               restart();
+               return;
+            }
+            Channel channel = ctx.getChannel();
+            while (position < aborted.length) {
+               if (!channel.isWritable()) {
+                  // wait for channelInterestChanged
+                  return;
+               }
+               int count = Math.min(BOOTSTRAP_CHUNK, aborted.length - position);
+               channel.write(new BulkAbortedTransactionReport(aborted, position, count));
+               position += count;
+            }
+            done = true;
+            aborted = null;
+            bootstraps.remove(channel);
+            buffer.setSynced();
+            flushAndSend(ctx, buffer, deferred);
+            deferred = null;
+         }
+      }
+
+      /**
+       * Cancels the bootstrap of a client dropped from the replication log and
+       * bootstraps it again, handing over the responses still waiting
+       */
+      private void restart() {
+         Channel channel = ctx.getChannel();
+         LOG.warn("Restarting the bootstrap of " + channel);
+         done = true;
+         aborted = null;
+         bootstraps.remove(channel);
+         List<TSOMessage> responses = deferred;
+         deferred = null;
+         flushAndSend(ctx, buffer, responses);
+      }
    }
    
    ChannelBuffer cb = ChannelBuffers.buffer(10);
@@ -256,6 +571,44 @@ public class TSOHandler extends SimpleChannelHandler {
       }
    };
 
+   /**
+    * Half aborts the slow transactions left behind by a raise of the largest
+    * deleted timestamp. Must be used holding sharedMsgBufLock.
+    */
+   private Uncommited.AbortVisitor halfAbortVisitor = new Uncommited.AbortVisitor() {
+      @Override
+      public void aborted(long id) {
+         sharedState.hashmap.setHalfAborted(id);
+         queueHalfAbort(id);
+      }
+   };
+
+   /**
+    * Sends the replies of a batch once it has been logged
+    */
+   AddRecordCallback replyCallback = new AddRecordCallback() {
+      @Override
+      public void addRecordComplete(int rc, Object ctx) {
+         if (rc != Code.OK) {
+            LOG.warn("Write failed: " + LoggerException.getMessage(rc));
+
+         } else {
+            @SuppressWarnings("unchecked")
+            ArrayList<ChannelandMessage> theBatch = (ArrayList<ChannelandMessage>) ctx;
+            if (pipeline != null) {
+               pipeline.reply(theBatch);
+               return;
+            }
+            synchronized (callbackLock) {
+               for (ChannelandMessage cam : theBatch) {
+                  Channels.write(cam.ctx, Channels.succeededFuture(cam.ctx.getChannel()), cam.msg);
+               }
+            }
+
+         }
+      }
+   };
+
    private Runnable createAbortedSnaphostTask = new Runnable() {
       @Override
       public void run() {
@@ -265,226 +618,297 @@ public class TSOHandler extends SimpleChannelHandler {
 
    public void createAbortedSnapshot() {
 
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      DataOutputStream toWAL = new DataOutputStream(baos);
+      WALBuffer toWAL = WALBuffer.get();
 
       long snapshot = sharedState.hashmap.getAndIncrementAbortedSnapshot();
 
-      try {
-         toWAL.writeByte(LoggerProtocol.SNAPSHOT);
-         toWAL.writeLong(snapshot);
-         for (AbortedTransaction aborted : sharedState.hashmap.halfAborted) {
-            // ignore aborted transactions from last snapshot
-            if (aborted.getSnapshot() < snapshot) {
-               toWAL.writeByte(LoggerProtocol.ABORT);
-               toWAL.writeLong(aborted.getStartTimestamp());
-            }
-         }
-      } catch (IOException e) {
-         // can't happen
-         throw new RuntimeException(e);
+      toWAL.writeByte(LoggerProtocol.SNAPSHOT);
+      toWAL.writeLong(snapshot);
+      // ignore aborted transactions from last snapshot
+      for (long aborted : sharedState.hashmap.halfAborted.toArray(snapshot)) {
+         toWAL.writeByte(LoggerProtocol.ABORT);
+         toWAL.writeLong(aborted);
       }
 
-      sharedState.addRecord(baos.toByteArray(), noCallback, null);
+      sharedState.addRecord(toWAL, noCallback, null);
    }
    
    /**
     * Handle the CommitRequest message
     */
    public void handle(CommitRequest msg, ChannelHandlerContext ctx) {
-      CommitResponse reply = new CommitResponse(msg.startTimestamp);
-      ByteArrayOutputStream baos = sharedState.baos;
-      DataOutputStream toWAL  = sharedState.toWAL;
-      synchronized (sharedState) {
-         //0. check if it should abort
-         if (msg.startTimestamp < timestampOracle.first()) {
-            reply.committed = false;
-            LOG.warn("Aborting transaction after restarting TSO");
-         } else if (msg.startTimestamp < sharedState.largestDeletedTimestamp) {
-            // Too old
-            reply.committed = false;//set as abort
-            LOG.warn("Too old starttimestamp: ST "+ msg.startTimestamp +" MAX " + sharedState.largestDeletedTimestamp);
-         } else {
-            //1. check the write-write conflicts
-            for (RowKey r: msg.rows) {
-               long value;
-               value = sharedState.hashmap.get(r.getRow(), r.getTable(), r.hashCode());
-               if (value != 0 && value > msg.startTimestamp) {
-                  reply.committed = false;//set as abort
-                  break;
-               } else if (value == 0 && sharedState.largestDeletedTimestamp > msg.startTimestamp) {
-                  //then it could have been committed after start timestamp but deleted by recycling
-                  LOG.warn("Old transaction {Start timestamp  "  + msg.startTimestamp + "} {Largest deleted timestamp " + sharedState.largestDeletedTimestamp + "}");
-                  reply.committed = false;//set as abort
-                  break;
-               }
+      ShardedConflictMap conflictMap = sharedState.conflictMap;
+      if (conflictMap != null) {
+         // check the rows holding only their shards, then decide with the state lock
+         int[] shards = conflictMap.shardsOf(msg.rows);
+         conflictMap.lock(shards);
+         try {
+            boolean conflicts = conflictMap.hasConflicts(msg.rows, msg.startTimestamp);
+            synchronized (sharedState) {
+               logCommit(ctx, decideCommit(msg, conflicts, sharedState.toWAL));
             }
+         } finally {
+            conflictMap.unlock(shards);
          }
+         return;
+      }
+      synchronized (sharedState) {
+         logCommit(ctx, decideCommit(msg, sharedState.toWAL));
+      }
+   }
+
+   /**
+    * Adds the reply to the next WAL batch, sending the batch if it is full.
+    * 
+    * Must be called holding the sharedState lock
+    */
+   private void logCommit(ChannelHandlerContext ctx, CommitResponse reply) {
+      ChannelandMessage cam = new ChannelandMessage(ctx, reply);
 
-         if (reply.committed) {
-            //2. commit
+      sharedState.nextBatch.add(cam);
+      if (batcher.shouldFlush(sharedState.toWAL.size())) {
+          if(LOG.isTraceEnabled()){
+              LOG.trace("Going to add record of size " + sharedState.toWAL.size());
+          }
+         sharedState.addRecord(sharedState.toWAL, batcher.track(sharedState.toWAL.size(), replyCallback),
+               sharedState.nextBatch);
+         sharedState.nextBatch = new ArrayList<ChannelandMessage>(sharedState.nextBatch.size() + 5);
+         sharedState.toWAL = WALBuffer.get();
+      }
+   }
+
+   /**
+    * Decides whether the transaction commits, updates the conflict map and
+    * queues the replication messages. WAL records are appended to toWAL.
+    * 
+    * Must be called holding the sharedState lock (or from the pipeline decision stage)
+    */
+   CommitResponse decideCommit(CommitRequest msg, WALBuffer toWAL) {
+      CommitResponse reply = new CommitResponse(msg.startTimestamp);
+      //0. check if it should abort
+      if (isTooOld(msg)) {
+         reply.committed = false;
+      } else if (sharedState.conflictMap != null) {
+         //1. check the write-write conflicts
+         // in pipelined mode the decision stage is the only user of the shards
+         reply.committed = !sharedState.conflictMap.hasConflicts(msg.rows, msg.startTimestamp);
+      } else {
+         synchronized (sharedMsgBufLock) {
+            sharedState.sharedMessageBuffer.beginCommit();
             try {
-              long commitTimestamp = timestampOracle.next(toWAL);
-              sharedState.uncommited.commit(commitTimestamp);
-              sharedState.uncommited.commit(msg.startTimestamp);
-              reply.commitTimestamp = commitTimestamp;
-              if (msg.rows.length > 0) {
-                  if(LOG.isTraceEnabled()){
-                      LOG.trace("Adding commit to WAL");
-                  }
-                  toWAL.writeByte(LoggerProtocol.COMMIT);
-                  toWAL.writeLong(msg.startTimestamp);
-                  toWAL.writeLong(commitTimestamp);
-
-                  long oldLargestDeletedTimestamp = sharedState.largestDeletedTimestamp;
-   
-                  for (RowKey r: msg.rows) {
-                     sharedState.largestDeletedTimestamp = sharedState.hashmap.put(r.getRow(),
-                                                     r.getTable(), 
-                                                     commitTimestamp, 
-                                                     r.hashCode(), 
-                                                     oldLargestDeletedTimestamp);
-                  }
-
-                  sharedState.processCommit(msg.startTimestamp, commitTimestamp);
-                  if (sharedState.largestDeletedTimestamp > oldLargestDeletedTimestamp) {
-                     toWAL.writeByte(LoggerProtocol.LARGESTDELETEDTIMESTAMP);
-                     toWAL.writeLong(sharedState.largestDeletedTimestamp);
-                     Set<Long> toAbort = sharedState.uncommited.raiseLargestDeletedTransaction(sharedState.largestDeletedTimestamp);
-                     if (LOG.isWarnEnabled() && !toAbort.isEmpty()) {
-                        LOG.warn("Slow transactions after raising max: " + toAbort.size());
-                     }
-                     synchronized (sharedMsgBufLock) {
-                        for (Long id : toAbort) {
-                           sharedState.hashmap.setHalfAborted(id);
-                           queueHalfAbort(id);
-                        }
-                        queueLargestIncrease(sharedState.largestDeletedTimestamp);
-                     }
-                  }
-                  if (sharedState.largestDeletedTimestamp > sharedState.previousLargestDeletedTimestamp + TSOState.MAX_ITEMS) {
-                     // schedule snapshot
-                     executor.submit(createAbortedSnaphostTask);
-                     sharedState.previousLargestDeletedTimestamp = sharedState.largestDeletedTimestamp;
-                  }
-                  synchronized (sharedMsgBufLock) {
-                      queueCommit(msg.startTimestamp, commitTimestamp);
-                  }
+               //1. check the write-write conflicts, installing the rows if there are none
+               long commitTimestamp = timestampOracle.next();
+               long largestDeletedTimestamp = sharedState.hashmap.checkAndPut(msg.rows, msg.startTimestamp,
+                     commitTimestamp, sharedState.largestDeletedTimestamp);
+               if (largestDeletedTimestamp != CommitHashMap.CONFLICT) {
+                  return commit(msg, reply, commitTimestamp, largestDeletedTimestamp, toWAL);
                }
-            } catch (IOException e) {
-               e.printStackTrace();
+               // the commit timestamp won't be used
+               sharedState.uncommited.commit(commitTimestamp);
+               reply.committed = false;//set as abort
+            } finally {
+               sharedState.sharedMessageBuffer.endCommit();
             }
-         } else { //add it to the aborted list
-            abortCount++;
+         }
+      }
+      return commitOrAbort(msg, reply, toWAL);
+   }
+
+   /**
+    * Same as {@link #decideCommit(CommitRequest, WALBuffer)}, with the
+    * conflicts already checked by the caller, which holds the shards of the
+    * rows in the sharded conflict map.
+    */
+   CommitResponse decideCommit(CommitRequest msg, boolean conflicts, WALBuffer toWAL) {
+      CommitResponse reply = new CommitResponse(msg.startTimestamp);
+      reply.committed = !conflicts && !isTooOld(msg);
+      return commitOrAbort(msg, reply, toWAL);
+   }
+
+   /**
+    * The global largest deleted timestamp decides here for rows recycled from
+    * both the CommitHashMap and the sharded conflict map
+    */
+   private boolean isTooOld(CommitRequest msg) {
+      if (msg.startTimestamp < timestampOracle.first()) {
+         LOG.warn("Aborting transaction after restarting TSO");
+         return true;
+      } else if (msg.startTimestamp < sharedState.largestDeletedTimestamp) {
+         // Too old
+         LOG.warn("Too old starttimestamp: ST "+ msg.startTimestamp +" MAX " + sharedState.largestDeletedTimestamp);
+         return true;
+      }
+      return false;
+   }
+
+   private CommitResponse commitOrAbort(CommitRequest msg, CommitResponse reply, WALBuffer toWAL) {
+      if (reply.committed) {
+         synchronized (sharedMsgBufLock) {
+            sharedState.sharedMessageBuffer.beginCommit();
             try {
-               toWAL.writeByte(LoggerProtocol.ABORT);
-               toWAL.writeLong(msg.startTimestamp);
-            } catch (IOException e) {
-               e.printStackTrace();
-            }
-            sharedState.processAbort(msg.startTimestamp);
-            
-            synchronized (sharedMsgBufLock) {
-                queueHalfAbort(msg.startTimestamp);
+               return commit(msg, reply, timestampOracle.next(), sharedState.largestDeletedTimestamp, toWAL);
+            } finally {
+               sharedState.sharedMessageBuffer.endCommit();
             }
          }
-         
-         TSOHandler.transferredBytes.incrementAndGet();
-
-         ChannelandMessage cam = new ChannelandMessage(ctx, reply);
-
-         sharedState.nextBatch.add(cam);
-         if (sharedState.baos.size() >= TSOState.BATCH_SIZE) {
-             if(LOG.isTraceEnabled()){
-                 LOG.trace("Going to add record of size " + sharedState.baos.size());
-             }
-            //sharedState.lh.asyncAddEntry(baos.toByteArray(), this, sharedState.nextBatch);
-            sharedState.addRecord(baos.toByteArray(), 
-                                            new AddRecordCallback() {
-                @Override
-                public void addRecordComplete(int rc, Object ctx) {
-                    if (rc != Code.OK) {
-                        LOG.warn("Write failed: " + LoggerException.getMessage(rc));
-                        
-                    } else {
-                        synchronized (callbackLock) {
-                           @SuppressWarnings("unchecked")
-                           ArrayList<ChannelandMessage> theBatch = (ArrayList<ChannelandMessage>) ctx;
-                           for (ChannelandMessage cam : theBatch) {
-                              Channels.write(cam.ctx, Channels.succeededFuture(cam.ctx.getChannel()), cam.msg);
-                           }
-                        }
-                        
-                    }
-                }
-            }, sharedState.nextBatch);
-            sharedState.nextBatch = new ArrayList<ChannelandMessage>(sharedState.nextBatch.size() + 5);
-            sharedState.baos.reset();
+      }
+      //add it to the aborted list
+      abortCount++;
+      toWAL.writeByte(LoggerProtocol.ABORT);
+      toWAL.writeLong(msg.startTimestamp);
+      sharedState.processAbort(msg.startTimestamp);
+      
+      synchronized (sharedMsgBufLock) {
+          queueHalfAbort(msg.startTimestamp);
+      }
+      
+      TSOHandler.transferredBytes.incrementAndGet();
+      return reply;
+   }
+
+   /**
+    * Must be called holding sharedMsgBufLock, inside a commit section of the
+    * SharedMessageBuffer started before allocating the commit timestamp, see {@link #sendTimestampResponse(ChannelHandlerContext, TSOMessage)}
+    * 
+    * @param largestDeletedTimestamp
+    *           largest deleted timestamp after the rows were installed in the
+    *           CommitHashMap by checkAndPut (the sharded map installs them here)
+    */
+   private CommitResponse commit(CommitRequest msg, CommitResponse reply, long commitTimestamp,
+         long largestDeletedTimestamp, WALBuffer toWAL) {
+      //2. commit
+      sharedState.uncommited.commit(commitTimestamp);
+      sharedState.uncommited.commit(msg.startTimestamp);
+      reply.commitTimestamp = commitTimestamp;
+      if (msg.rows.length > 0) {
+         if(LOG.isTraceEnabled()){
+             LOG.trace("Adding commit to WAL");
+         }
+         toWAL.writeByte(LoggerProtocol.COMMIT);
+         toWAL.writeLong(msg.startTimestamp);
+         toWAL.writeLong(commitTimestamp);
+
+         long oldLargestDeletedTimestamp = sharedState.largestDeletedTimestamp;
+
+         if (sharedState.conflictMap != null) {
+            sharedState.largestDeletedTimestamp = Math.max(oldLargestDeletedTimestamp,
+                                            sharedState.conflictMap.put(msg.rows, commitTimestamp));
+         } else {
+            sharedState.largestDeletedTimestamp = largestDeletedTimestamp;
          }
 
+         sharedState.processCommit(msg.startTimestamp, commitTimestamp);
+         if (sharedState.largestDeletedTimestamp > oldLargestDeletedTimestamp) {
+            toWAL.writeByte(LoggerProtocol.LARGESTDELETEDTIMESTAMP);
+            toWAL.writeLong(sharedState.largestDeletedTimestamp);
+            int aborted = sharedState.uncommited.raiseLargestDeletedTransaction(sharedState.largestDeletedTimestamp,
+                  halfAbortVisitor);
+            if (LOG.isWarnEnabled() && aborted > 0) {
+               LOG.warn("Slow transactions after raising max: " + aborted);
+            }
+            queueLargestIncrease(sharedState.largestDeletedTimestamp);
+         }
+         if (sharedState.largestDeletedTimestamp > sharedState.previousLargestDeletedTimestamp + TSOState.MAX_ITEMS) {
+            // schedule snapshot
+            executor.submit(createAbortedSnaphostTask);
+            sharedState.previousLargestDeletedTimestamp = sharedState.largestDeletedTimestamp;
+         }
+         queueCommit(msg.startTimestamp, commitTimestamp);
       }
-
+      
+      TSOHandler.transferredBytes.incrementAndGet();
+      return reply;
    }
 
    /**
     * Handle the CommitQueryRequest message
     */
    public void handle(CommitQueryRequest msg, ChannelHandlerContext ctx) {
+      synchronized (sharedState) {
+         CommitQueryResponse reply = decideCommitQuery(msg);
+
+         ctx.getChannel().write(reply);
+
+         // We send the message directly. If after a failure the state is inconsistent we'll detect it
+
+      }
+   }
+
+   /**
+    * Must be called holding the sharedState lock (or from the pipeline decision stage)
+    */
+   CommitQueryResponse decideCommitQuery(CommitQueryRequest msg) {
       CommitQueryResponse reply = new CommitQueryResponse(msg.startTimestamp);
       reply.queryTimestamp = msg.queryTimestamp;
-      synchronized (sharedState) {
-         queries++;
-         //1. check the write-write conflicts
-         long value;
-         value = sharedState.hashmap.getCommittedTimestamp(msg.queryTimestamp);
-         if (value != 0) { //it exists
-            reply.commitTimestamp = value;
-            reply.committed = value < msg.startTimestamp;//set as abort
-         }
-         else if (sharedState.hashmap.isHalfAborted(msg.queryTimestamp))
-            reply.committed = false;
-         else if (sharedState.uncommited.isUncommited(msg.queryTimestamp))
-            reply.committed = false;
-         else 
-             reply.retry = true;
+      queries++;
+      //1. check the write-write conflicts
+      long value;
+      value = sharedState.hashmap.getCommittedTimestamp(msg.queryTimestamp);
+      if (value != 0) { //it exists
+         reply.commitTimestamp = value;
+         reply.committed = value < msg.startTimestamp;//set as abort
+      }
+      else if (sharedState.hashmap.isHalfAborted(msg.queryTimestamp))
+         reply.committed = false;
+      else if (sharedState.uncommited.isUncommited(msg.queryTimestamp))
+         reply.committed = false;
+      else 
+          reply.retry = true;
 //         else if (sharedState.largestDeletedTimestamp >= msg.queryTimestamp) 
 //            reply.committed = true;
-         // TODO retry needed? isnt it just fully aborted?
-         
-         ctx.getChannel().write(reply);
+      // TODO retry needed? isnt it just fully aborted?
+      return reply;
+   }
 
-         // We send the message directly. If after a failure the state is inconsistent we'll detect it
+   /**
+    * Handle the BatchCommitQueryRequest message
+    */
+   public void handle(BatchCommitQueryRequest msg, ChannelHandlerContext ctx) {
+      BatchCommitQueryResponse reply;
+      synchronized (sharedState) {
+         reply = decideCommitQuery(msg);
+      }
+      ctx.getChannel().write(reply);
+   }
 
+   /**
+    * Answers every query of the batch as decideCommitQuery(CommitQueryRequest)
+    * does.
+    * 
+    * Must be called holding the sharedState lock (or from the pipeline decision stage)
+    */
+   BatchCommitQueryResponse decideCommitQuery(BatchCommitQueryRequest msg) {
+      BatchCommitQueryResponse reply = new BatchCommitQueryResponse(msg.startTimestamp, msg.count);
+      CommitQueryRequest query = new CommitQueryRequest(msg.startTimestamp, 0);
+      for (int i = 0; i < msg.count; ++i) {
+         query.queryTimestamp = msg.queryTimestamps[i];
+         CommitQueryResponse r = decideCommitQuery(query);
+         reply.queryTimestamps[i] = r.queryTimestamp;
+         reply.commitTimestamps[i] = r.commitTimestamp;
+         reply.committed[i] = r.committed;
+         reply.retry[i] = r.retry;
       }
+      return reply;
    }
 
+   /**
+    * Sends the pending batch to the WAL. Only for the locked mode, in
+    * pipelined mode the WAL stage flushes it.
+    */
    public void flush() {
+      if (pipeline != null) {
+         throw new IllegalStateException("The WAL stage owns the pending batch in pipelined mode");
+      }
       synchronized (sharedState) {
           if(LOG.isTraceEnabled()){
-              LOG.trace("Adding record, size: " + sharedState.baos.size());
+              LOG.trace("Adding record, size: " + sharedState.toWAL.size());
           }
-         sharedState.addRecord(sharedState.baos.toByteArray(), new AddRecordCallback() {
-             @Override
-             public void addRecordComplete(int rc, Object ctx) {
-                 if (rc != Code.OK) {
-                     LOG.warn("Write failed: " + LoggerException.getMessage(rc));
-                     
-                 } else {
-                     synchronized (callbackLock) {
-                        @SuppressWarnings("unchecked")
-                        ArrayList<ChannelandMessage> theBatch = (ArrayList<ChannelandMessage>) ctx;
-                        for (ChannelandMessage cam : theBatch) {
-                           Channels.write(cam.ctx, Channels.succeededFuture(cam.ctx.getChannel()), cam.msg);
-                        }
-                     }
-                     
-                 }
-             }
-         }, sharedState.nextBatch);
+         sharedState.addRecord(sharedState.toWAL, batcher.track(sharedState.toWAL.size(), replyCallback),
+               sharedState.nextBatch);
          sharedState.nextBatch = new ArrayList<ChannelandMessage>(sharedState.nextBatch.size() + 5);
-         sharedState.baos.reset();
+         sharedState.toWAL = WALBuffer.get();
          if (flushFuture.cancel(false)) {
-            flushFuture = scheduledExecutor.schedule(flushThread, TSOState.FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+            flushFuture = scheduledExecutor.schedule(flushThread, batcher.getFlushDeadline(), TimeUnit.NANOSECONDS);
          }
       }
    }
@@ -505,9 +929,26 @@ public class TSOHandler extends SimpleChannelHandler {
                }
             }
          }
-         flushFuture = scheduledExecutor.schedule(flushThread, TSOState.FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+         flushFuture = scheduledExecutor.schedule(flushThread, batcher.getFlushDeadline(), TimeUnit.NANOSECONDS);
       }
    }
+
+   /**
+    * Sends the pending batch, if any, once the logger is idle
+    */
+   private Runnable idleFlush = new Runnable() {
+      @Override
+      public void run() {
+         if (finish) {
+            return;
+         }
+         synchronized (sharedState) {
+            if (sharedState.hasPendingRecords() && batcher.shouldFlush(sharedState.toWAL.size())) {
+               flush();
+            }
+         }
+      }
+   };
    
    private void queueCommit(long startTimestamp, long commitTimestamp) {
        sharedState.sharedMessageBuffer.writeCommit(startTimestamp, commitTimestamp);
@@ -529,21 +970,35 @@ public class TSOHandler extends SimpleChannelHandler {
     * Handle the FullAbortReport message
     */
    public void handle(FullAbortRequest msg, ChannelHandlerContext ctx) {
+      if (pipeline != null) {
+         // the WAL stage owns the pending batch
+         pipeline.publish(new ChannelandMessage(ctx, msg));
+         return;
+      }
       synchronized (sharedState) {
-         DataOutputStream toWAL  = sharedState.toWAL;
-         try {
-            toWAL.writeByte(LoggerProtocol.FULLABORT);
-            toWAL.writeLong(msg.startTimestamp);
-         } catch (IOException e) {
-            e.printStackTrace();
-         }
-         sharedState.processFullAbort(msg.startTimestamp);
+         logFullAbort(msg, sharedState.toWAL);
+      }
+      synchronized (sharedMsgBufLock) {
+         queueFullAbort(msg.startTimestamp);
       }
+   }
+
+   /**
+    * Must be called holding the sharedState lock (or from the pipeline decision stage)
+    */
+   void decideFullAbort(FullAbortRequest msg, WALBuffer toWAL) {
+      logFullAbort(msg, toWAL);
       synchronized (sharedMsgBufLock) {
          queueFullAbort(msg.startTimestamp);
       }
    }
 
+   private void logFullAbort(FullAbortRequest msg, WALBuffer toWAL) {
+      toWAL.writeByte(LoggerProtocol.FULLABORT);
+      toWAL.writeLong(msg.startTimestamp);
+      sharedState.processFullAbort(msg.startTimestamp);
+   }
+
    /*
     * Wrapper for Channel and Message
     */
@@ -565,6 +1020,13 @@ public class TSOHandler extends SimpleChannelHandler {
 
     public void stop() {
         finish = true;
+        sharedState.sharedMessageBuffer.stopPushFlusher();
+        if (checkpointer != null) {
+            checkpointer.shutdownNow();
+        }
+        if (pipeline != null) {
+            pipeline.stop();
+        }
     }
    
    
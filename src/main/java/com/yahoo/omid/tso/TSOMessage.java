@@ -54,6 +54,12 @@ public interface TSOMessage {
    final public byte AbortedTransactionReportByte = (byte) 0xcb;
    final public byte AbortRequest = (byte) 0xcc;
    final public byte ZipperState = (byte) 0xcd;
+   final public byte TimestampBatchRequest = (byte) 0xce;
+   final public byte TimestampBatchResponse = (byte) 0xcf;
+   final public byte BulkAbortedTransactionReport = (byte) 0xd0;
+   final public byte BatchCommitQueryRequest = (byte) 0xd1;
+   final public byte BatchCommitQueryResponse = (byte) 0xd2;
+   final public byte AbortRangeRequest = (byte) 0xd3;
 
    /*
     * Deserialize function
@@ -38,10 +38,23 @@ public class TSOPipelineFactory implements ChannelPipelineFactory {
 
    private Executor pipelineExecutor = null;
 
+   /**
+    * Whether the clients prefix their requests with their length, set with
+    * tso.lengthPrefixedFrames on the client side
+    */
+   static boolean LENGTH_PREFIXED_FRAMES = false;
+   static {
+      try {
+         LENGTH_PREFIXED_FRAMES = Boolean.valueOf(System.getProperty("omid.lengthPrefixedFrames"));
+      } catch (Exception e) {
+         // ignore, usedefault
+      }
+   };
+
    /**
     * Constructor
     * @param channelGroup
-    * @param pipelineExecutor
+    * @param pipelineExecutor if null the handler runs on the I/O threads
     * @param answer
     * @param to The shared timestamp oracle
     * @param shared The shared state among handlers
@@ -65,17 +78,19 @@ public class TSOPipelineFactory implements ChannelPipelineFactory {
 
    public ChannelPipeline getPipeline() throws Exception {
       ChannelPipeline pipeline = Channels.pipeline();
-      pipeline.addLast("decoder", new TSODecoder(null));
+      pipeline.addLast("decoder", new TSODecoder(null, LENGTH_PREFIXED_FRAMES));
       pipeline.addLast("encoder", new TSOEncoder());
       synchronized (this) {
-          if (x == null)
+          if (x == null && pipelineExecutor != null)
               x = new ExecutionHandler(pipelineExecutor);
           if (bwhandler == null) 
               bwhandler = new BandwidthMeterHandler();
 //          if (timer == null)
 //             timer = new HashedWheelTimer();
       }
-      pipeline.addLast("pipelineExecutor", x);
+      if (x != null) {
+         pipeline.addLast("pipelineExecutor", x);
+      }
 //      pipeline.addLast("timeout", new WriteTimeoutHandler(timer, 10));
       pipeline.addFirst("bw", bwhandler);
       
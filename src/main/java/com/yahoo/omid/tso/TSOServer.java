@@ -16,6 +16,7 @@
 
 package com.yahoo.omid.tso;
 
+import java.io.File;
 import java.net.InetSocketAddress;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -38,9 +39,11 @@ import org.jboss.netty.handler.codec.serialization.ObjectEncoder;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.util.ObjectSizeEstimator;
 
+import com.yahoo.omid.replication.SharedMessageBuffer;
 import com.yahoo.omid.tso.persistence.BookKeeperStateBuilder;
 import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
 import com.yahoo.omid.tso.persistence.LoggerProtocol;
+import com.yahoo.omid.tso.persistence.StateBuilder;
 
 /**
  * TSO Server with serialization
@@ -92,8 +95,13 @@ public class TSOServer implements Runnable {
     public void run() {
         // *** Start the Netty configuration ***
         // Start server with Nb of active threads = 2*NB CPU + 1 as maximum.
+        // In shared nothing mode there is one I/O thread per core instead, and
+        // each connection stays on its I/O thread from decoding to reply.
+        boolean sharedNothing = config.isSharedNothing();
+        int ioThreads = sharedNothing ? Runtime.getRuntime().availableProcessors()
+                : (Runtime.getRuntime().availableProcessors() * 2 + 1) * 2;
         ChannelFactory factory = new NioServerSocketChannelFactory(Executors.newCachedThreadPool(),
-                Executors.newCachedThreadPool(), (Runtime.getRuntime().availableProcessors() * 2 + 1) * 2);
+                Executors.newCachedThreadPool(), ioThreads);
 
         ServerBootstrap bootstrap = new ServerBootstrap(factory);
         // Create the global ChannelGroup
@@ -101,20 +109,25 @@ public class TSOServer implements Runnable {
         // threads max
         // int maxThreads = Runtime.getRuntime().availableProcessors() *2 + 1;
         int maxThreads = 5;
-        // Memory limitation: 1MB by channel, 1GB global, 100 ms of timeout
-        ThreadPoolExecutor pipelineExecutor = new OrderedMemoryAwareThreadPoolExecutor(maxThreads, 1048576, 1073741824,
-                100, TimeUnit.MILLISECONDS, new ObjectSizeEstimator() {
-                  @Override
-                  public int estimateSize(Object o) {
-                     return 1000;
-                  }
-               }, Executors.defaultThreadFactory());
+        ThreadPoolExecutor pipelineExecutor = null;
+        if (!sharedNothing) {
+            // Memory limitation: 1MB by channel, 1GB global, 100 ms of timeout
+            pipelineExecutor = new OrderedMemoryAwareThreadPoolExecutor(maxThreads, 1048576, 1073741824,
+                    100, TimeUnit.MILLISECONDS, new ObjectSizeEstimator() {
+                      @Override
+                      public int estimateSize(Object o) {
+                         return 1000;
+                      }
+                   }, Executors.defaultThreadFactory());
+        }
 
         // This is the only object of timestamp oracle
         // TODO: make it singleton
         //TimestampOracle timestampOracle = new TimestampOracle();
+        // only the local WAL writes direct buffers without copying them
+        WALBuffer.setDirect(StateBuilder.LOCAL.equals(config.getWal()));
         // The wrapper for the shared state of TSO
-        state = BookKeeperStateBuilder.getState(this.config);
+        state = StateBuilder.getState(this.config);
         
         if(state == null){
             LOG.error("Couldn't build state");
@@ -127,13 +140,36 @@ public class TSOServer implements Runnable {
             }
         }, null);
 
+        // timestamps are served from the I/O threads, they must not wait for the WAL
+        state.getSO().reserveFirstRange();
+
         TSOState.BATCH_SIZE = config.getBatchSize();
+        TSOState.ADAPTIVE_BATCHING = config.isAdaptiveBatch();
+        if (config.isRecoveryEnabled() && config.getCheckpointDir() != null) {
+            state.setCheckpointDir(new File(config.getCheckpointDir()));
+        }
         System.out.println("PARAM MAX_ITEMS: " + TSOState.MAX_ITEMS);
         System.out.println("PARAM BATCH_SIZE: " + TSOState.BATCH_SIZE);
+        System.out.println("PARAM ADAPTIVE_BATCHING: " + TSOState.ADAPTIVE_BATCHING);
+        System.out.println("PARAM WAL_TARGET_LATENCY: " + WALBatcher.TARGET_LATENCY);
+        System.out.println("PARAM WAL: " + config.getWal());
+        System.out.println("PARAM WAL_DIRECT_BUFFERS: " + WALBuffer.DIRECT);
+        System.out.println("PARAM CHECKPOINT_DIR: " + state.getCheckpointDir());
+        System.out.println("PARAM CHECKPOINT_INTERVAL: " + Checkpointer.INTERVAL);
         System.out.println("PARAM LOAD_FACTOR: " + TSOState.LOAD_FACTOR);
-        System.out.println("PARAM MAX_THREADS: " + maxThreads);
+        System.out.println("PARAM COMMIT_HASHMAP: " + TSOState.COMMIT_HASHMAP);
+        System.out.println("PARAM CONFLICT_SHARDS: " + TSOState.CONFLICT_SHARDS);
+        System.out.println("PARAM MAX_THREADS: " + (sharedNothing ? 0 : maxThreads));
+        System.out.println("PARAM SHARED_NOTHING: " + sharedNothing);
+        System.out.println("PARAM IO_THREADS: " + ioThreads);
+        System.out.println("PARAM PIPELINE: " + config.isPipelined());
+        System.out.println("PARAM GROUP_COMMIT_WINDOW: " + CommitPipeline.GROUP_COMMIT_WINDOW);
+        System.out.println("PARAM LENGTH_PREFIXED_FRAMES: " + TSOPipelineFactory.LENGTH_PREFIXED_FRAMES);
+        System.out.println("PARAM BOOTSTRAP_CHUNK: " + TSOHandler.BOOTSTRAP_CHUNK);
+        System.out.println("PARAM REPLICATION_PUSH_INTERVAL: " + SharedMessageBuffer.PUSH_INTERVAL);
+        System.out.println("PARAM REPLICATION_PUSH_BYTES: " + SharedMessageBuffer.PUSH_BYTES);
 
-        final TSOHandler handler = new TSOHandler(channelGroup, state);
+        final TSOHandler handler = new TSOHandler(channelGroup, state, config.isPipelined());
         handler.start();
 
         bootstrap.setPipelineFactory(new TSOPipelineFactory(pipelineExecutor, handler));
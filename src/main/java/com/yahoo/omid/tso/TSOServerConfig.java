@@ -18,6 +18,7 @@ package com.yahoo.omid.tso;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
+import com.yahoo.omid.tso.persistence.StateBuilder;
 
 /**
  * Holds the configuration parameters of a TSO server instance. 
@@ -52,34 +53,64 @@ public class TSOServerConfig {
     @Parameter(names = "-batch", description = "Threshold for the batch sent to the WAL")
     private int batch;
 
+    @Parameter(names = "-adaptiveBatch", description = "Tune the WAL batch size and flush timeout from the observed WAL latency")
+    private boolean adaptiveBatch;
+
     @Parameter(names = "-ha", description = "Highly Available status oracle: logs operations to the WAL and recovers from a crash")
     private boolean recoveryEnabled;
 
     @Parameter(names = "-zk", description = "ZooKeeper ensemble: host1:port1,host2:port2...")
     private String zkServers;
 
+    @Parameter(names = "-wal", description = "WAL backend: bookkeeper or local")
+    private String wal;
+
+    @Parameter(names = "-walDir", description = "Directory of the local WAL segments")
+    private String walDir;
+
+    @Parameter(names = "-checkpointDir", description = "Directory of the state checkpoints, the WAL directory by default with the local WAL")
+    private String checkpointDir;
+
     @Parameter(names = "-ensemble", description = "WAL ensemble size")
     private int ensemble;
 
     @Parameter(names = "-quorum", description = "WAL quorum size")
     private int quorum;
+
+    @Parameter(names = "-pipeline", description = "Staged commit engine: decides, logs and replies from dedicated threads")
+    private boolean pipelined;
+
+    @Parameter(names = "-sharedNothing", description = "One I/O thread per core handles its connections end to end, without a handoff executor")
+    private boolean sharedNothing;
     
     TSOServerConfig(){
         this.port = Integer.parseInt(System.getProperty("PORT", "1234"));
         this.batch = Integer.parseInt(System.getProperty("BATCH", "0"));
+        this.adaptiveBatch = Boolean.parseBoolean(System.getProperty("ADAPTIVE_BATCH", "false"));
         this.recoveryEnabled = Boolean.parseBoolean(System.getProperty("RECOVERABLE", "false"));
         this.zkServers = System.getProperty("ZKSERVERS");
+        this.wal = System.getProperty("WAL", "bookkeeper");
+        this.walDir = System.getProperty("WAL_DIR", defaultWalDir());
+        this.checkpointDir = System.getProperty("CHECKPOINT_DIR");
         this.ensemble = Integer.parseInt(System.getProperty("ENSEMBLE", "3"));
         this.quorum = Integer.parseInt(System.getProperty("QUORUM", "2"));
+        this.pipelined = Boolean.parseBoolean(System.getProperty("PIPELINE", "false"));
+        this.sharedNothing = Boolean.parseBoolean(System.getProperty("SHARED_NOTHING", "false"));
     }
     
     TSOServerConfig(int port, int batch, boolean recoveryEnabled, int ensemble, int quorum, String zkServers){
         this.port = port;
         this.batch = batch;
+        this.adaptiveBatch = Boolean.parseBoolean(System.getProperty("ADAPTIVE_BATCH", "false"));
         this.recoveryEnabled = recoveryEnabled;
         this.zkServers = zkServers;
+        this.wal = System.getProperty("WAL", "bookkeeper");
+        this.walDir = System.getProperty("WAL_DIR", defaultWalDir());
+        this.checkpointDir = System.getProperty("CHECKPOINT_DIR");
         this.ensemble = ensemble;
         this.quorum = quorum;
+        this.pipelined = Boolean.parseBoolean(System.getProperty("PIPELINE", "false"));
+        this.sharedNothing = Boolean.parseBoolean(System.getProperty("SHARED_NOTHING", "false"));
     }
     
     public int getPort(){
@@ -90,6 +121,10 @@ public class TSOServerConfig {
         return batch;
     }
     
+    public boolean isAdaptiveBatch(){
+        return adaptiveBatch;
+    }
+    
     public boolean isRecoveryEnabled(){
         return recoveryEnabled;
     }
@@ -98,6 +133,30 @@ public class TSOServerConfig {
         return zkServers;
     }
 
+    private static String defaultWalDir(){
+        return System.getProperty("java.io.tmpdir") + "/omid-wal";
+    }
+
+    public String getWal(){
+        return wal;
+    }
+
+    public String getWalDir(){
+        return walDir;
+    }
+    
+    /**
+     * @return the checkpoint directory, null if checkpoints are disabled.
+     *         They are disabled by default with BookKeeper since the
+     *         directory must be reachable from the next TSO.
+     */
+    public String getCheckpointDir(){
+        if (checkpointDir == null && StateBuilder.LOCAL.equals(wal)) {
+            return walDir;
+        }
+        return checkpointDir;
+    }
+
     public int getEnsembleSize(){
         return ensemble;
     }
@@ -105,4 +164,16 @@ public class TSOServerConfig {
     public int getQuorumSize(){
         return quorum;
     }
+
+    public boolean isPipelined(){
+        return pipelined;
+    }
+
+    public void setPipelined(boolean pipelined){
+        this.pipelined = pipelined;
+    }
+
+    public boolean isSharedNothing(){
+        return sharedNothing;
+    }
 }
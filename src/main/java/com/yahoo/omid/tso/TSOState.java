@@ -16,8 +16,8 @@
 
 package com.yahoo.omid.tso;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
@@ -72,6 +72,23 @@ public class TSOState {
       }
    };
 
+   /**
+    * CommitHashMap engine: "native" (JNI) or "offheap" (pure Java)
+    */
+   static public String COMMIT_HASHMAP = System.getProperty("omid.commitHashMap", CommitHashMap.NATIVE);
+
+   /**
+    * Number of shards of the conflict map, 0 to use the single CommitHashMap
+    */
+   static public int CONFLICT_SHARDS = 0;
+   static {
+      try {
+         CONFLICT_SHARDS = Integer.valueOf(System.getProperty("omid.conflictShards"));
+      } catch (Exception e) {
+         // ignore, usedefault
+      }
+   };
+
    /**
     * Hash map load factor
     */
@@ -90,6 +107,7 @@ public class TSOState {
    
    public void setLogger(StateLogger logger){
        this.logger = logger;
+       this.timestampOracle.setLogger(logger);
    }
    
    /**
@@ -113,7 +131,14 @@ public class TSOState {
     * The hash map to to keep track of recently committed rows
     * each bucket is about 20 byte, so the initial capacity is 20MB
     */
-   public CommitHashMap hashmap = new CommitHashMap(MAX_ITEMS, LOAD_FACTOR);
+   public CommitHashMap hashmap = CommitHashMap.create(COMMIT_HASHMAP, MAX_ITEMS, LOAD_FACTOR);
+
+   /**
+    * If not null, rows are checked for conflicts in this map instead of in
+    * the hashmap, which only keeps the commit timestamps and aborted
+    * transactions
+    */
+   public ShardedConflictMap conflictMap = CONFLICT_SHARDS > 0 ? new ShardedConflictMap(CONFLICT_SHARDS, MAX_ITEMS, LOAD_FACTOR, COMMIT_HASHMAP) : null;
 
    public Uncommited uncommited;
 
@@ -126,6 +151,16 @@ public class TSOState {
        largestDeletedTimestamp = hashmap.setCommitted(startTimestamp, commitTimestamp, largestDeletedTimestamp);
    }
    
+   /**
+    * Process a commit of a checkpoint. The newer records have been replayed
+    * already, a start timestamp they set is left alone.
+    */
+   protected void processCheckpointCommit(long startTimestamp, long commitTimestamp){
+       if (hashmap.getCommittedTimestamp(startTimestamp) == 0) {
+           processCommit(startTimestamp, commitTimestamp);
+       }
+   }
+   
    /**
     * Process largest deleted timestamp.
     * 
@@ -168,6 +203,27 @@ public class TSOState {
            cb.addRecordComplete(Code.OK, ctx);
        }
    }
+
+   /**
+    * Hands the contents of the buffer to the logger without copying them. The
+    * buffer goes back to the pool once the record completes, it must not be
+    * written afterwards.
+    */
+   public void addRecord(final WALBuffer record, final AddRecordCallback cb, Object ctx) {
+       if(logger != null){
+           ByteBuffer contents = record.contents();
+           logger.addRecord(contents, new AddRecordCallback() {
+               @Override
+               public void addRecordComplete(int rc, Object ctx) {
+                   record.release();
+                   cb.addRecordComplete(rc, ctx);
+               }
+           }, ctx);
+       } else{
+           record.release();
+           cb.addRecordComplete(Code.OK, ctx);
+       }
+   }
    
    /**
     * Closes this state object.
@@ -182,9 +238,37 @@ public class TSOState {
     * WAL related pointers
     */
    public static int BATCH_SIZE = 0;//in bytes
-   public ByteArrayOutputStream baos = new ByteArrayOutputStream();
-   public DataOutputStream toWAL = new DataOutputStream(baos);
+   /*
+    * Pending batch, guarded by the state lock. In pipelined mode only the
+    * WAL stage of the CommitPipeline uses it.
+    */
+   public WALBuffer toWAL = WALBuffer.get();
    public List<TSOHandler.ChannelandMessage> nextBatch = new ArrayList<TSOHandler.ChannelandMessage>();
+
+   /**
+    * Directory of the checkpoints, null if they are disabled
+    */
+   private File checkpointDir;
+
+   public File getCheckpointDir() {
+       return checkpointDir;
+   }
+
+   public void setCheckpointDir(File checkpointDir) {
+       this.checkpointDir = checkpointDir;
+   }
+
+   /**
+    * Adaptive group commit, see {@link WALBatcher}
+    */
+   public static boolean ADAPTIVE_BATCHING = false;
+
+   /**
+    * @return true if the next WAL batch has records or replies waiting
+    */
+   public boolean hasPendingRecords() {
+       return toWAL.size() > 0 || nextBatch.size() > 0;
+   }
    
    public TSOState(StateLogger logger, TimestampOracle timestampOracle) {
        this.timestampOracle = timestampOracle;
@@ -192,6 +276,7 @@ public class TSOState {
        this.largestDeletedTimestamp = this.previousLargestDeletedTimestamp;
        this.uncommited = new Uncommited(timestampOracle.first());
        this.logger = logger;
+       this.timestampOracle.setLogger(logger);
    }
    
    public TSOState(TimestampOracle timestampOracle) {
@@ -64,7 +64,7 @@ public class ThroughputMonitor extends Thread {
             }
             LOG.trace(String.format("SERVER: %4.3f TPS, %4.6f Abort/s  "
                   + " Avg diff flu: %5.2f Rec Bytes/s: %5.2fMBs Sent Bytes/s: %5.2fMBs %d "
-                  + "Queries: %d CurrentBuffers: %d",
+                  + "Queries: %d CurrentBuffers: %d LiveBuffers: %d PooledBuffers: %d Resyncs: %d",
                     (newCounter - oldCounter) / (float)(endTime - startTime) * 1000,
                     (newAbortCount - oldAbortCount) / (float)(endTime - startTime) * 1000,
                     0.0,
@@ -72,7 +72,10 @@ public class ThroughputMonitor extends Thread {
                     TSOPipelineFactory.bwhandler != null ? TSOPipelineFactory.bwhandler.getBytesSentPerSecond() / (double) (1024 * 1024) : 0,
                     state.largestDeletedTimestamp,
                     newQueries - oldQueries,
-                    ReadersAwareBuffer.nBuffers
+                    ReadersAwareBuffer.nBuffers.get(),
+                    state.sharedMessageBuffer.getLiveBuffers(),
+                    state.sharedMessageBuffer.getPooledBuffers(),
+                    state.sharedMessageBuffer.getResyncs()
                     )
               );
             
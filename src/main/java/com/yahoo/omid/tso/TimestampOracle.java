@@ -16,23 +16,34 @@
 
 package com.yahoo.omid.tso;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
+import com.yahoo.omid.tso.persistence.LoggerException;
+import com.yahoo.omid.tso.persistence.LoggerException.Code;
 import com.yahoo.omid.tso.persistence.LoggerProtocol;
+import com.yahoo.omid.tso.persistence.StateLogger;
 
 /**
  * The Timestamp Oracle that gives monotonically increasing timestamps
  * 
+ * Timestamps are allocated with a CAS, so next() can be called from any
+ * thread without holding a lock. The maximum timestamp is logged in ranges
+ * of TIMESTAMP_BATCH: when half of the current range is used, the
+ * reservation of the next one is logged asynchronously, so normally no
+ * caller waits for the WAL.
+ * 
+ * On recovery the oracle starts TIMESTAMP_BATCH after the largest logged
+ * maximum, so a timestamp can be returned as long as it is at most
+ * TIMESTAMP_BATCH over the last durable reservation. Only if the WAL falls
+ * that far behind does next() wait. The server logs the first range with
+ * reserveFirstRange() before accepting clients, so the first calls to next()
+ * don't wait either.
+ * 
  * @author maysam
  * 
  */
@@ -43,40 +54,166 @@ public class TimestampOracle {
 
     private static final long TIMESTAMP_BATCH = 100000;
 
-    private long maxTimestamp = 1;
+    /**
+     * largest timestamp reserved, its log record might be in flight
+     */
+    private volatile long maxTimestamp = 1;
+
+    /**
+     * largest timestamp whose reservation is durable
+     */
+    private volatile long durableMaxTimestamp = 0;
+
+    private final AtomicBoolean reserving = new AtomicBoolean(false);
+
+    private StateLogger logger;
 
     /**
      * the last returned timestamp
      */
-    private long last;
+    private final AtomicLong last = new AtomicLong();
     private long first;
 
     private boolean enabled;    
 
     /**
-     * Must be called holding an exclusive lock
-     * 
      * return the next timestamp
      */
-    public long next(DataOutputStream toWal) throws IOException {
-        last++;
-        if (last == maxTimestamp) {
-            maxTimestamp += TIMESTAMP_BATCH;
-            toWal.writeByte(LoggerProtocol.TIMESTAMPORACLE);
-            toWal.writeLong(maxTimestamp);
-            if (LOG.isTraceEnabled()) {
-               LOG.trace("Logging TimestampOracle " + maxTimestamp);
-            }
+    public long next() {
+        return next(1);
+    }
+
+    /**
+     * Allocates n consecutive timestamps
+     * 
+     * @return the first one
+     */
+    public long next(int n) {
+        long timestamp = last.addAndGet(n);
+        if (timestamp + TIMESTAMP_BATCH / 2 >= maxTimestamp) {
+            reserveNextRange();
+        }
+        if (timestamp > durableMaxTimestamp + TIMESTAMP_BATCH) {
+            waitForReservation(timestamp);
         }
         if(LOG.isTraceEnabled()){
-            LOG.trace("Next timestamp: " + last);
+            LOG.trace("Next timestamp: " + timestamp);
         }
         
-        return last;
+        return timestamp - n + 1;
+    }
+
+    /**
+     * Starts the reservation of the next range if the next n timestamps would
+     * get close to the end of the current one.
+     */
+    public void reserve(int n) {
+        if (last.get() + n + TIMESTAMP_BATCH / 2 >= maxTimestamp) {
+            reserveNextRange();
+        }
+    }
+
+    private void reserveNextRange() {
+        if (!reserving.compareAndSet(false, true)) {
+            // already in flight
+            return;
+        }
+        final long newMax = Math.max(maxTimestamp, last.get()) + TIMESTAMP_BATCH;
+        maxTimestamp = newMax;
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Logging TimestampOracle " + newMax);
+        }
+        AddRecordCallback cb = new AddRecordCallback() {
+            @Override
+            public void addRecordComplete(int rc, Object ctx) {
+                if (rc != Code.OK) {
+                    LOG.warn("Failed to log timestamp range: " + LoggerException.getMessage(rc));
+                } else {
+                    synchronized (TimestampOracle.this) {
+                        durableMaxTimestamp = Math.max(durableMaxTimestamp, newMax);
+                        TimestampOracle.this.notifyAll();
+                    }
+                }
+                reserving.set(false);
+            }
+        };
+        byte[] record = new byte[9];
+        record[0] = LoggerProtocol.TIMESTAMPORACLE;
+        for (int i = 0; i < 8; ++i) {
+            record[8 - i] = (byte) (newMax >>> (8 * i));
+        }
+        if (logger != null) {
+            logger.addRecord(record, cb, null);
+        } else {
+            cb.addRecordComplete(Code.OK, null);
+        }
+    }
+
+    private void waitForReservation(long timestamp) {
+        LOG.warn("Timestamp " + timestamp + " waiting for the WAL, durable maximum " + durableMaxTimestamp);
+        waitForDurable(timestamp - TIMESTAMP_BATCH);
+    }
+
+    /**
+     * Waits until the reservations up to max are durable, retrying the
+     * failed ones
+     */
+    private synchronized void waitForDurable(long max) {
+        boolean interrupted = false;
+        while (max > durableMaxTimestamp) {
+            if (!reserving.get()) {
+                // the last reservation failed
+                reserveNextRange();
+                continue;
+            }
+            try {
+                wait(100);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Logs the reservation of the range following the recovered timestamps
+     * and waits until it is durable. Must be called once the logger is set
+     * and before serving timestamps, otherwise the first calls to next()
+     * would wait for the WAL.
+     */
+    public void reserveFirstRange() {
+        reserveNextRange();
+        waitForDurable(maxTimestamp);
+        LOG.info("Reserved timestamps up to " + durableMaxTimestamp);
+    }
+
+    /**
+     * @return the largest timestamp whose reservation is durable
+     */
+    long getDurableMaxTimestamp() {
+        return durableMaxTimestamp;
+    }
+
+    /**
+     * Sets the logger used to reserve timestamp ranges, if null they are
+     * considered durable right away
+     */
+    public void setLogger(StateLogger logger) {
+        this.logger = logger;
     }
 
     public long get() {
-        return last;
+        return last.get();
+    }
+
+    /**
+     * @return the largest timestamp reserved, no timestamp over it has been
+     *         returned
+     */
+    public long getMaxTimestamp() {
+        return maxTimestamp;
     }
 
     public long first() {
@@ -92,7 +229,6 @@ public class TimestampOracle {
      */
     public TimestampOracle(){
         this.enabled = false;
-        this.last = 0;
     }
     
     /**
@@ -105,12 +241,15 @@ public class TimestampOracle {
     /**
      * Starts with a given timestamp.
      * 
-     * @param timestamp
+     * @param timestamp the largest logged maximum timestamp
      */
     public void initialize(long timestamp){
         LOG.info("Initializing timestamp oracle");
-        this.last = this.first = Math.max(this.last, timestamp + TIMESTAMP_BATCH);
-        maxTimestamp = this.first + 1; // max timestamp will be persisted
+        this.first = Math.max(this.last.get(), timestamp + TIMESTAMP_BATCH);
+        this.last.set(this.first);
+        // the new maximum is persisted by reserveFirstRange
+        maxTimestamp = this.first;
+        durableMaxTimestamp = Math.max(durableMaxTimestamp, timestamp);
         LOG.info("First: " + this.first + ", Last: " + this.last);
         initialize();
     }
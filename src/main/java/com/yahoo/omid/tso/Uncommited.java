@@ -16,9 +16,6 @@
 
 
 package com.yahoo.omid.tso;
-import java.util.Collections;
-import java.util.Set;
-import java.util.TreeSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,6 +58,15 @@ public class Uncommited {
    public void abort(long id) {
       commit(id);
    }
+
+   /**
+    * Aborts every transaction in [first, end) at once
+    */
+   public synchronized void abortRange(long first, long end) {
+      for (long id = first; id < end; ++id) {
+         commit(id);
+      }
+   }
    
    public boolean isUncommited(long id) {
       Bucket bucket = buckets[getRelativePosition(id)];
@@ -70,22 +76,36 @@ public class Uncommited {
       return bucket.isUncommited(id);
    }
    
-   public Set<Long> raiseLargestDeletedTransaction(long id) {
+   /**
+    * Receives the transactions aborted by a raise of the largest deleted
+    * timestamp
+    */
+   public interface AbortVisitor {
+      void aborted(long id);
+   }
+
+   /**
+    * Aborts every uncommitted transaction up to id, passing them to the
+    * visitor in increasing order without boxing or collecting them.
+    * 
+    * @return the number of aborted transactions
+    */
+   public int raiseLargestDeletedTransaction(long id, AbortVisitor visitor) {
       if (firstUncommitedAbsolute > getAbsolutePosition(id))
-         return Collections.emptySet();
+         return 0;
       int maxBucket = getRelativePosition(id);
-      Set<Long> aborted = new TreeSet<Long>();
+      int aborted = 0;
       for (int i = firstUncommitedBucket; i != maxBucket ; i = (i+1) % BKT_NUMBER) {
          Bucket bucket = buckets[i];
          if (bucket != null) {
-            aborted.addAll(bucket.abortAllUncommited());
+            aborted += bucket.abortAllUncommited(visitor);
             buckets[i] = null;
          }
       }
       
       Bucket bucket = buckets[maxBucket];
       if (bucket != null) {
-         aborted.addAll(bucket.abortUncommited(id));
+         aborted += bucket.abortUncommited(id, visitor);
       }
       
       increaseFirstUncommitedBucket();
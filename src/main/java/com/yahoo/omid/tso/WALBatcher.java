@@ -0,0 +1,214 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.tso;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
+
+/**
+ * Group commit controller of the WAL batches.
+ * 
+ * It measures how long the StateLogger takes to complete each record and
+ * how fast bytes arrive to the WAL. In fixed mode it only keeps the
+ * measures, batches are sent when they reach TSOState.BATCH_SIZE or every
+ * TSOState.FLUSH_TIMEOUT ms.
+ * 
+ * In adaptive mode:
+ * - A batch is sent right away if the logger is idle, there is nothing to
+ *   wait for.
+ * - Otherwise the batch grows up to the bytes arriving during one logger
+ *   latency (p99 of the last window), so the logger keeps up with the
+ *   arrival rate with about one record in flight.
+ * - A pending batch waits at most the target commit latency minus the
+ *   logger latency, so commits still meet the target when the load is too
+ *   low to fill a batch.
+ * Quiet periods end up sending each commit as soon as it is decided, peaks
+ * get large batches.
+ */
+class WALBatcher {
+
+   private static final Log LOG = LogFactory.getLog(WALBatcher.class);
+
+   /**
+    * Target commit latency, in microseconds
+    */
+   static int TARGET_LATENCY = 10000;
+   static {
+      try {
+         TARGET_LATENCY = Integer.valueOf(System.getProperty("omid.walTargetLatency"));
+      } catch (Exception e) {
+         // ignore, usedefault
+      }
+   };
+
+   /**
+    * Largest batch the controller picks, in bytes
+    */
+   static int MAX_BATCH_SIZE = 1024 * 1024;
+   static {
+      try {
+         MAX_BATCH_SIZE = Integer.valueOf(System.getProperty("omid.walMaxBatchSize"));
+      } catch (Exception e) {
+         // ignore, usedefault
+      }
+   };
+
+   /**
+    * Shortest flush deadline, in microseconds
+    */
+   static final long MIN_DEADLINE = 100;
+
+   /**
+    * Number of completed records between adjustments
+    */
+   static final int WINDOW = 128;
+
+   /**
+    * Listens for the logger becoming idle
+    */
+   interface IdleListener {
+      void idle();
+   }
+
+   private final boolean adaptive;
+   private IdleListener listener;
+
+   private final AtomicInteger inflight = new AtomicInteger();
+
+   /*
+    * Guarded by this: the latencies of the current window, in ns
+    */
+   private final long[] latencies = new long[WINDOW];
+   private int completed = 0;
+   private long windowBytes = 0;
+   private long windowStart = System.nanoTime();
+
+   private volatile int batchSize;
+   private volatile long flushDeadline; // in ns
+   private volatile long p99Latency = 0; // in ns
+   private volatile long arrivalRate = 0; // in bytes per second
+
+   WALBatcher(boolean adaptive) {
+      this.adaptive = adaptive;
+      // a buffer worth of records until the first measures
+      this.batchSize = Math.max(TSOState.BATCH_SIZE, WALBuffer.INITIAL_SIZE);
+      this.flushDeadline = TimeUnit.MILLISECONDS.toNanos(TSOState.FLUSH_TIMEOUT);
+   }
+
+   void setIdleListener(IdleListener listener) {
+      this.listener = listener;
+   }
+
+   boolean isAdaptive() {
+      return adaptive;
+   }
+
+   /**
+    * @param size
+    *           bytes of the pending batch
+    * @return true if the pending batch has to be sent now
+    */
+   boolean shouldFlush(int size) {
+      if (!adaptive) {
+         return size >= TSOState.BATCH_SIZE;
+      }
+      return size >= batchSize || inflight.get() == 0;
+   }
+
+   /**
+    * @return how long a pending batch may wait, in ns
+    */
+   long getFlushDeadline() {
+      return adaptive ? flushDeadline : TimeUnit.MILLISECONDS.toNanos(TSOState.FLUSH_TIMEOUT);
+   }
+
+   int getBatchSize() {
+      return adaptive ? batchSize : TSOState.BATCH_SIZE;
+   }
+
+   long getP99Latency() {
+      return p99Latency;
+   }
+
+   long getArrivalRate() {
+      return arrivalRate;
+   }
+
+   int getInflight() {
+      return inflight.get();
+   }
+
+   /**
+    * Wraps the callback of a record of the given size about to be handed to
+    * the logger
+    */
+   AddRecordCallback track(final int size, final AddRecordCallback cb) {
+      final long start = System.nanoTime();
+      inflight.incrementAndGet();
+      return new AddRecordCallback() {
+         @Override
+         public void addRecordComplete(int rc, Object ctx) {
+            completed(System.nanoTime() - start, size);
+            boolean idle = inflight.decrementAndGet() == 0;
+            cb.addRecordComplete(rc, ctx);
+            if (idle && adaptive && listener != null) {
+               listener.idle();
+            }
+         }
+      };
+   }
+
+   private synchronized void completed(long latency, int size) {
+      latencies[completed++] = latency;
+      windowBytes += size;
+      if (completed < WINDOW) {
+         return;
+      }
+      long now = System.nanoTime();
+      long elapsed = Math.max(1, now - windowStart);
+      Arrays.sort(latencies);
+      long p99 = latencies[WINDOW * 99 / 100];
+      long rate = windowBytes * TimeUnit.SECONDS.toNanos(1) / elapsed;
+      p99Latency = p99;
+      arrivalRate = rate;
+      completed = 0;
+      windowBytes = 0;
+      windowStart = now;
+      if (adaptive) {
+         adjust(p99, rate);
+      }
+   }
+
+   private void adjust(long p99, long rate) {
+      long size = rate * p99 / TimeUnit.SECONDS.toNanos(1);
+      batchSize = (int) Math.max(TSOState.BATCH_SIZE, Math.min(MAX_BATCH_SIZE, size));
+      long deadline = TimeUnit.MICROSECONDS.toNanos(TARGET_LATENCY) - p99;
+      flushDeadline = Math.max(TimeUnit.MICROSECONDS.toNanos(MIN_DEADLINE),
+            Math.min(TimeUnit.MILLISECONDS.toNanos(TSOState.FLUSH_TIMEOUT), deadline));
+      if (LOG.isDebugEnabled()) {
+         LOG.debug("WAL p99 latency " + p99 / 1000 + "us, " + rate + " bytes/s: batch size " + batchSize
+               + ", flush deadline " + flushDeadline / 1000 + "us");
+      }
+   }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.tso;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Buffer the WAL records are encoded into.
+ * 
+ * It replaces a DataOutputStream over a ByteArrayOutputStream: writes go
+ * straight to a ByteBuffer without stream synchronization, and a full batch
+ * is handed to the StateLogger as a view of its contents. The buffer is
+ * released back to the pool once the logger completes the record.
+ * 
+ * Whether the view is copied depends on the logger: the local WAL writes
+ * direct buffers without copying them, BookKeeper only takes arrays, so it
+ * gets heap buffers, see {@link #setDirect(boolean)}.
+ * 
+ * Not thread safe, it is written by one thread at a time.
+ */
+public class WALBuffer {
+
+   static int INITIAL_SIZE = 16 * 1024;
+   static {
+      try {
+         INITIAL_SIZE = Integer.valueOf(System.getProperty("omid.walBufferSize"));
+      } catch (Exception e) {
+         // ignore, usedefault
+      }
+   };
+
+   static boolean DIRECT = false;
+   private static boolean DIRECT_CONFIGURED = false;
+   static {
+      try {
+         String direct = System.getProperty("omid.walDirectBuffers");
+         if (direct != null) {
+            DIRECT = Boolean.valueOf(direct);
+            DIRECT_CONFIGURED = true;
+         }
+      } catch (Exception e) {
+         // ignore, usedefault
+      }
+   };
+
+   /**
+    * Picks direct or heap buffers for the WAL backend, unless
+    * omid.walDirectBuffers was given. Must be called before any buffer is
+    * allocated.
+    * 
+    * @param direct
+    *           true if the backend writes direct buffers without copying them
+    */
+   public static void setDirect(boolean direct) {
+      if (!DIRECT_CONFIGURED) {
+         DIRECT = direct;
+      }
+   }
+
+   /**
+    * Buffers kept for reuse, the rest are left to the GC
+    */
+   static final int POOL_SIZE = 64;
+
+   private static final BlockingQueue<WALBuffer> pool = new LinkedBlockingQueue<WALBuffer>(POOL_SIZE);
+
+   private ByteBuffer buffer;
+
+   private WALBuffer(int size) {
+      buffer = allocate(size);
+   }
+
+   private static ByteBuffer allocate(int size) {
+      return DIRECT ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+   }
+
+   /**
+    * @return an empty buffer, from the pool if there is any
+    */
+   public static WALBuffer get() {
+      WALBuffer b = pool.poll();
+      if (b != null) {
+         return b;
+      }
+      return new WALBuffer(INITIAL_SIZE);
+   }
+
+   /**
+    * Empties this buffer and returns it to the pool, it can't be used
+    * afterwards
+    */
+   public void release() {
+      buffer.clear();
+      pool.offer(this);
+   }
+
+   public void writeByte(int v) {
+      ensure(1);
+      buffer.put((byte) v);
+   }
+
+   public void writeLong(long v) {
+      ensure(8);
+      buffer.putLong(v);
+   }
+
+   /**
+    * Appends the contents of another buffer
+    */
+   public void write(WALBuffer other) {
+      ByteBuffer contents = other.contents();
+      ensure(contents.remaining());
+      buffer.put(contents);
+   }
+
+   public int size() {
+      return buffer.position();
+   }
+
+   public void reset() {
+      buffer.clear();
+   }
+
+   /**
+    * @return a view of the bytes written so far, valid until this buffer is
+    *         reset or released
+    */
+   public ByteBuffer contents() {
+      ByteBuffer view = buffer.duplicate();
+      view.flip();
+      return view;
+   }
+
+   private void ensure(int n) {
+      if (buffer.remaining() >= n) {
+         return;
+      }
+      int size = buffer.capacity() * 2;
+      while (size - buffer.position() < n) {
+         size *= 2;
+      }
+      ByteBuffer bigger = allocate(size);
+      buffer.flip();
+      bigger.put(buffer);
+      buffer = bigger;
+   }
+}
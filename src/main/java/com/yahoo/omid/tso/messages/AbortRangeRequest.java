@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.tso.messages;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.yahoo.omid.tso.TSOMessage;
+
+/**
+ * Aborts a range of start timestamps a client fetched but never used, so
+ * nothing was written with them
+ */
+public class AbortRangeRequest implements TSOMessage {
+
+   /**
+    * the first timestamp of the range
+    */
+   public long first;
+
+   /**
+    * the end of the range, excluded
+    */
+   public long end;
+
+   public AbortRangeRequest() {
+   }
+
+   public AbortRangeRequest(long first, long end) {
+      this.first = first;
+      this.end = end;
+   }
+
+   @Override
+   public String toString() {
+      return "AbortRangeRequest: [" + first + ", " + end + ")";
+   }
+
+   @Override
+   public void readObject(ChannelBuffer aInputStream) {
+      first = aInputStream.readLong();
+      end = aInputStream.readLong();
+   }
+
+   @Override
+   public void writeObject(DataOutputStream aOutputStream) throws IOException {
+      aOutputStream.writeLong(first);
+      aOutputStream.writeLong(end);
+   }
+
+   @Override
+   public void writeObject(ChannelBuffer buffer) {
+      buffer.writeLong(first);
+      buffer.writeLong(end);
+   }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.tso.messages;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.yahoo.omid.tso.TSOMessage;
+
+/**
+ * Asks for the commit state of many transactions at once, as seen by the
+ * transaction startTimestamp. It is answered with a single
+ * {@link BatchCommitQueryResponse}.
+ */
+public class BatchCommitQueryRequest implements TSOMessage {
+   public long startTimestamp;
+
+   /**
+    * The ones in [0, count) are sent
+    */
+   public long[] queryTimestamps;
+   public int count;
+
+   public BatchCommitQueryRequest() {
+   }
+
+   public BatchCommitQueryRequest(long startTimestamp, long[] queryTimestamps, int count) {
+      this.startTimestamp = startTimestamp;
+      this.queryTimestamps = queryTimestamps;
+      this.count = count;
+   }
+
+   @Override
+   public void readObject(ChannelBuffer aInputStream) {
+      startTimestamp = aInputStream.readLong();
+      count = aInputStream.readInt();
+      queryTimestamps = new long[count];
+      for (int i = 0; i < count; ++i) {
+         queryTimestamps[i] = aInputStream.readLong();
+      }
+   }
+
+   @Override
+   public void writeObject(DataOutputStream aOutputStream) throws IOException {
+      aOutputStream.writeLong(startTimestamp);
+      aOutputStream.writeInt(count);
+      for (int i = 0; i < count; ++i) {
+         aOutputStream.writeLong(queryTimestamps[i]);
+      }
+   }
+
+   @Override
+   public void writeObject(ChannelBuffer buffer) {
+      buffer.writeLong(startTimestamp);
+      buffer.writeInt(count);
+      for (int i = 0; i < count; ++i) {
+         buffer.writeLong(queryTimestamps[i]);
+      }
+   }
+
+   @Override
+   public String toString() {
+      return "BatchCommitQueryRequest[" + startTimestamp + ", count:" + count + "]";
+   }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.tso.messages;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.yahoo.omid.tso.TSOMessage;
+
+/**
+ * Reply to a {@link BatchCommitQueryRequest}, with the answers in the order of
+ * the query timestamps. Each one has the meaning of a
+ * {@link CommitQueryResponse}.
+ */
+public class BatchCommitQueryResponse implements TSOMessage {
+   private static final byte COMMITTED = 1;
+   private static final byte RETRY = 2;
+
+   public long startTimestamp;
+   public long[] queryTimestamps;
+   public long[] commitTimestamps;
+   public boolean[] committed;
+   public boolean[] retry;
+   public int count;
+
+   public BatchCommitQueryResponse() {
+   }
+
+   public BatchCommitQueryResponse(long startTimestamp, int count) {
+      this.startTimestamp = startTimestamp;
+      this.count = count;
+      queryTimestamps = new long[count];
+      commitTimestamps = new long[count];
+      committed = new boolean[count];
+      retry = new boolean[count];
+   }
+
+   private byte flags(int i) {
+      return (byte) ((committed[i] ? COMMITTED : 0) | (retry[i] ? RETRY : 0));
+   }
+
+   @Override
+   public void readObject(ChannelBuffer aInputStream) {
+      startTimestamp = aInputStream.readLong();
+      int n = aInputStream.readInt();
+      queryTimestamps = new long[n];
+      commitTimestamps = new long[n];
+      committed = new boolean[n];
+      retry = new boolean[n];
+      for (int i = 0; i < n; ++i) {
+         queryTimestamps[i] = aInputStream.readLong();
+         commitTimestamps[i] = aInputStream.readLong();
+         byte flags = aInputStream.readByte();
+         committed[i] = (flags & COMMITTED) != 0;
+         retry[i] = (flags & RETRY) != 0;
+      }
+      count = n;
+   }
+
+   @Override
+   public void writeObject(DataOutputStream aOutputStream) throws IOException {
+      aOutputStream.writeLong(startTimestamp);
+      aOutputStream.writeInt(count);
+      for (int i = 0; i < count; ++i) {
+         aOutputStream.writeLong(queryTimestamps[i]);
+         aOutputStream.writeLong(commitTimestamps[i]);
+         aOutputStream.writeByte(flags(i));
+      }
+   }
+
+   @Override
+   public void writeObject(ChannelBuffer buffer) {
+      buffer.writeLong(startTimestamp);
+      buffer.writeInt(count);
+      for (int i = 0; i < count; ++i) {
+         buffer.writeLong(queryTimestamps[i]);
+         buffer.writeLong(commitTimestamps[i]);
+         buffer.writeByte(flags(i));
+      }
+   }
+
+   @Override
+   public String toString() {
+      return "BatchCommitQueryResponse[" + startTimestamp + ", count:" + count + "]";
+   }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.tso.messages;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.yahoo.omid.tso.TSOMessage;
+
+/**
+ * Carries many half aborted transactions at once, used to bootstrap new
+ * clients. The start timestamps must be sorted: the first one is sent whole
+ * and the rest as variable length deltas, usually one or two bytes each.
+ * 
+ * Unlike the replicated AbortedTransactionReport it doesn't go through the
+ * Zipper, so it doesn't change the delta state of the replication stream.
+ */
+public class BulkAbortedTransactionReport implements TSOMessage {
+
+   /**
+    * Sorted start timestamps, the ones in [offset, offset + count) are sent
+    */
+   public long[] startTimestamps;
+   public int offset;
+   public int count;
+
+   public BulkAbortedTransactionReport() {
+   }
+
+   public BulkAbortedTransactionReport(long[] startTimestamps, int offset, int count) {
+      this.startTimestamps = startTimestamps;
+      this.offset = offset;
+      this.count = count;
+   }
+
+   @Override
+   public String toString() {
+      return "Bulk Aborted Transaction Report: count:" + count;
+   }
+
+   @Override
+   public void readObject(ChannelBuffer aInputStream) {
+      int n = aInputStream.readInt();
+      long[] read = new long[n];
+      if (n > 0) {
+         long last = aInputStream.readLong();
+         read[0] = last;
+         for (int i = 1; i < n; ++i) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+               b = aInputStream.readByte();
+               delta |= (long) (b & 0x7f) << shift;
+               shift += 7;
+            } while (b < 0);
+            last += delta;
+            read[i] = last;
+         }
+      }
+      startTimestamps = read;
+      offset = 0;
+      count = n;
+   }
+
+   @Override
+   public void writeObject(DataOutputStream aOutputStream) throws IOException {
+      aOutputStream.writeInt(count);
+      if (count == 0) {
+         return;
+      }
+      long last = startTimestamps[offset];
+      aOutputStream.writeLong(last);
+      for (int i = offset + 1; i < offset + count; ++i) {
+         long delta = startTimestamps[i] - last;
+         while ((delta & ~0x7fL) != 0) {
+            aOutputStream.writeByte((int) (delta & 0x7f) | 0x80);
+            delta >>>= 7;
+         }
+         aOutputStream.writeByte((int) delta);
+         last = startTimestamps[i];
+      }
+   }
+
+   @Override
+   public void writeObject(ChannelBuffer buffer) {
+      buffer.writeInt(count);
+      if (count == 0) {
+         return;
+      }
+      long last = startTimestamps[offset];
+      buffer.writeLong(last);
+      for (int i = offset + 1; i < offset + count; ++i) {
+         long delta = startTimestamps[i] - last;
+         while ((delta & ~0x7fL) != 0) {
+            buffer.writeByte((int) (delta & 0x7f) | 0x80);
+            delta >>>= 7;
+         }
+         buffer.writeByte((int) delta);
+         last = startTimestamps[i];
+      }
+   }
+}
@@ -65,10 +65,12 @@ public class CommitRequest implements TSOMessage {
       long l = aInputStream.readLong();
       startTimestamp = l;
       int size = aInputStream.readInt();
-      rows = new RowKey[size];
-      for (int i = 0; i < size; i++) {
-         rows[i] = RowKey.readObject(aInputStream);
+      int length = RowKey.serializedSize(aInputStream, aInputStream.readerIndex(), size);
+      if (length < 0) {
+         throw new IndexOutOfBoundsException("Incomplete rows");
       }
+      // all the rows are slices of a single copy
+      rows = RowKey.readObjects(aInputStream, size, length);
    }
 
    @Override
@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.tso.messages;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.yahoo.omid.tso.TSOMessage;
+
+/**
+ * Reply to a {@link TimestampBatchRequest}: the timestamps from first to
+ * first + count - 1. The TSO may give fewer timestamps than asked for.
+ */
+public class TimestampBatchResponse implements TSOMessage {
+
+   /**
+    * the first timestamp
+    */
+   public long first;
+
+   /**
+    * the number of consecutive timestamps
+    */
+   public int count;
+
+   public TimestampBatchResponse(long first, int count) {
+      this.first = first;
+      this.count = count;
+   }
+
+   public TimestampBatchResponse() {
+   }
+
+   @Override
+   public String toString() {
+      return "TimestampBatchResponse: T_s:" + first + " count:" + count;
+   }
+
+   @Override
+   public void writeObject(ChannelBuffer buffer) {
+      buffer.writeLong(first);
+      buffer.writeInt(count);
+   }
+
+   @Override
+   public void readObject(ChannelBuffer aInputStream) {
+      first = aInputStream.readLong();
+      count = aInputStream.readInt();
+   }
+
+   @Override
+   public void writeObject(DataOutputStream aOutputStream) throws IOException {
+      aOutputStream.writeLong(first);
+      aOutputStream.writeInt(count);
+   }
+}
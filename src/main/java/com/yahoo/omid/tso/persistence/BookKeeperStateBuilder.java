@@ -17,10 +17,17 @@
 
 package com.yahoo.omid.tso.persistence;
 
+import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.bookkeeper.client.AsyncCallback.OpenCallback;
 import org.apache.bookkeeper.client.AsyncCallback.ReadCallback;
@@ -66,7 +73,32 @@ public class BookKeeperStateBuilder extends StateBuilder {
      * It provides a good degree of parallelism.
      */
     private static final long BKREADBATCHSIZE = 50;
-    private static final int PARALLEL_READS = 4;
+
+    /**
+     * Ranges of BKREADBATCHSIZE entries read ahead of the one being applied
+     */
+    static int PARALLEL_READS = 4;
+    static {
+        try {
+            PARALLEL_READS = Integer.valueOf(System.getProperty("omid.recoveryParallelReads"));
+        } catch (Exception e) {
+            // ignore, usedefault
+        }
+    };
+
+    /**
+     * Threads decoding the entries read
+     */
+    static int DECODER_THREADS = 2;
+    static {
+        try {
+            DECODER_THREADS = Integer.valueOf(System.getProperty("omid.recoveryDecoders"));
+        } catch (Exception e) {
+            // ignore, usedefault
+        }
+    };
+
+    private static final long PROGRESS_INTERVAL = 1000; // in ms
 
     public static TSOState getState(TSOServerConfig config){
         TSOState returnValue;
@@ -94,13 +126,12 @@ public class BookKeeperStateBuilder extends StateBuilder {
     ZooKeeper zk;
     LoggerProtocol lp;
     boolean enabled;
-    Semaphore throttleReads;
     TSOServerConfig config;
+    RecoveryProgress progress;
     
     BookKeeperStateBuilder(TSOServerConfig config) {
         this.timestampOracle = new TimestampOracle();
         this.config = config;
-        this.throttleReads = new Semaphore(PARALLEL_READS);
     }
 
     /**
@@ -113,7 +144,6 @@ public class BookKeeperStateBuilder extends StateBuilder {
         boolean ready = false;
         boolean hasState = false;
         boolean hasLogger = false;
-        int pending = 0;
         StateLogger logger;
         
         synchronized void setState(TSOState state){
@@ -139,26 +169,8 @@ public class BookKeeperStateBuilder extends StateBuilder {
             }
         }
 
-        synchronized private void incrementPending(){
-           pending++;
-        }
-
-        synchronized private void decrementPending(){
-           pending--;
-        }
-
-        synchronized void abort() {
-           this.ready = true;
-           this.state = null;
-           notify();
-        }
-
-        synchronized boolean isReady(){
-            return ready;
-        }
-
         synchronized boolean isFinished(){
-           return ready && pending == 0;
+           return ready;
         }
     }
     
@@ -215,31 +227,193 @@ public class BookKeeperStateBuilder extends StateBuilder {
         }
     }
     
+    /**
+     * Reads ranges of entries of the ledger being recovered. A read completes
+     * by handing the entries, oldest first, to {@link Recovery#decode(int, List)}
+     * or by failing the recovery.
+     */
+    interface EntryReader {
+        void read(long from, long to, int range);
+    }
+
+    /**
+     * Reads the entries from a BookKeeper ledger
+     */
+    class LedgerReader implements EntryReader {
+        private final LedgerHandle lh;
+
+        LedgerReader(LedgerHandle lh) {
+            this.lh = lh;
+        }
+
+        public void read(long from, long to, int range) {
+            lh.asyncReadEntries(from, to, new LoggerExecutor(), range);
+        }
+    }
+
+    /**
+     * Replays a ledger from the newest entry backwards. Ranges of
+     * BKREADBATCHSIZE entries are prefetched PARALLEL_READS at a time, their
+     * entries are decoded by the decoder threads and a single applier thread
+     * executes them in order, newest first, until the recovery is finished.
+     * Ranges are numbered from the end of the ledger.
+     */
+    class Recovery implements Runnable {
+        private final EntryReader reader;
+        private final Context ctx;
+        private final long last;
+        private final int ranges;
+        private final ExecutorService decoders;
+
+        /*
+         * Guarded by this: the decoded ranges waiting for the applier
+         */
+        private final Map<Integer, List<LoggerProtocol.Entry>> decoded = new HashMap<Integer, List<LoggerProtocol.Entry>>();
+        private boolean failed = false;
+        private boolean stopped = false;
+
+        /**
+         * @param last
+         *            last entry of the ledger, -1 if it is empty
+         */
+        Recovery(EntryReader reader, long last, Context ctx) {
+            this.reader = reader;
+            this.ctx = ctx;
+            this.last = last;
+            this.ranges = (int) ((last + BKREADBATCHSIZE) / BKREADBATCHSIZE);
+            this.decoders = Executors.newFixedThreadPool(DECODER_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Recovery Decoder");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        void start() {
+            progress.setTotalEntries(last + 1);
+            for (int r = 0; r < PARALLEL_READS; r++) {
+                read(r);
+            }
+            Thread applier = new Thread(this, "Recovery Applier");
+            applier.setDaemon(true);
+            applier.start();
+        }
+
+        private void read(int range) {
+            if (range >= ranges) {
+                return;
+            }
+            long to = last - range * BKREADBATCHSIZE;
+            long from = Math.max(to - BKREADBATCHSIZE + 1, 0);
+            reader.read(from, to, range);
+        }
+
+        /**
+         * Called from the BookKeeper threads
+         */
+        synchronized void decode(final int range, final List<byte[]> entries) {
+            if (stopped) {
+                return;
+            }
+            decoders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    List<LoggerProtocol.Entry> result = new ArrayList<LoggerProtocol.Entry>(entries.size());
+                    long bytes = 0;
+                    for (int i = entries.size() - 1; i >= 0; i--) {
+                        byte[] entry = entries.get(i);
+                        bytes += entry.length;
+                        result.add(LoggerProtocol.decode(ByteBuffer.wrap(entry)));
+                    }
+                    progress.read(entries.size(), bytes);
+                    decoded(range, result);
+                }
+            });
+        }
+
+        private synchronized void decoded(int range, List<LoggerProtocol.Entry> entries) {
+            decoded.put(range, entries);
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+        private synchronized List<LoggerProtocol.Entry> take(int range) throws InterruptedException {
+            while (!failed && !decoded.containsKey(range)) {
+                wait();
+            }
+            return decoded.remove(range);
+        }
+
+        private synchronized void stop() {
+            stopped = true;
+            decoders.shutdownNow();
+        }
+
+        @Override
+        public void run() {
+            TSOState state = null;
+            try {
+                long lastReport = System.currentTimeMillis();
+                applying:
+                for (int r = 0; r < ranges; r++) {
+                    List<LoggerProtocol.Entry> entries = take(r);
+                    if (entries == null) {
+                        LOG.error("Recovery failed after " + progress);
+                        return;
+                    }
+                    read(r + PARALLEL_READS);
+                    for (LoggerProtocol.Entry entry : entries) {
+                        lp.execute(entry);
+                        progress.applied(1);
+                        if (lp.finishedRecovery()) {
+                            break applying;
+                        }
+                    }
+                    if (System.currentTimeMillis() - lastReport >= PROGRESS_INTERVAL) {
+                        LOG.info("Recovery progress: " + progress);
+                        lastReport = System.currentTimeMillis();
+                    }
+                }
+                progress.finished();
+                LOG.info("Recovery " + progress);
+                state = lp.getState();
+            } catch (InterruptedException e) {
+                LOG.error("Interrupted while recovering", e);
+            } finally {
+                stop();
+                ctx.setState(state);
+            }
+        }
+    }
+
     /**
      * Invoked after the execution of a ledger read. Instances are
-     * created in the open callback. 
+     * created by the recovery. 
      *
      */
     class LoggerExecutor implements ReadCallback {
         public void readComplete(int rc, LedgerHandle lh, Enumeration<LedgerEntry> entries, Object ctx){
-            throttleReads.release();
             if(rc != BKException.Code.OK){
                 LOG.error("Error while reading ledger entries." + BKException.getMessage(rc));
-                ((BookKeeperStateBuilder.Context) ctx).setState(null);
+                recovery.fail();
             } else {
+                List<byte[]> read = new ArrayList<byte[]>((int) BKREADBATCHSIZE);
                 while(entries.hasMoreElements()){
-                    LedgerEntry le = entries.nextElement();
-                    lp.execute(ByteBuffer.wrap(le.getEntry()));
-
-                    if(lp.finishedRecovery() || le.getEntryId() == 0){
-                        ((BookKeeperStateBuilder.Context) ctx).setState(lp.getState());
-                    }
+                    read.add(entries.nextElement().getEntry());
                 }
-                ((BookKeeperStateBuilder.Context) ctx).decrementPending();
+                recovery.decode((Integer) ctx, read);
             }
         }
     }
     
+    Recovery recovery;
+    
     BookKeeper bk;
     
     @Override
@@ -339,6 +513,9 @@ public class BookKeeperStateBuilder extends StateBuilder {
         }
         try{
             this.lp = new LoggerProtocol(timestampOracle); 
+            if (config.getCheckpointDir() != null) {
+                lp.setCheckpointDir(new File(config.getCheckpointDir()));
+            }
         } catch (Exception e) {
             LOG.error("Error while creating state logger for logger protocol.", e);
             ((BookKeeperStateBuilder.Context) ctx).setState(null);
@@ -362,21 +539,9 @@ public class BookKeeperStateBuilder extends StateBuilder {
                     LOG.error("Could not open ledger for reading." + BKException.getMessage(rc));
                     ((BookKeeperStateBuilder.Context) ctx).setState(null);
                 } else {
-                    long counter = lh.getLastAddConfirmed();
-                    while(counter >= 0){
-                        try {
-                           throttleReads.acquire();
-                        } catch (InterruptedException e) {
-                           LOG.error("Couldn't build state", e);
-                           ((Context) ctx).abort();
-                           break;
-                        }
-                        if (((Context) ctx).isReady()) break;
-                        ((Context) ctx).incrementPending();
-                        long nextBatch = Math.max(counter - BKREADBATCHSIZE + 1, 0);
-                        lh.asyncReadEntries(nextBatch, counter, new LoggerExecutor(), ctx);
-                        counter -= BKREADBATCHSIZE;
-                    }
+                    progress = startRecovery();
+                    recovery = new Recovery(new LedgerReader(lh), lh.getLastAddConfirmed(), (Context) ctx);
+                    recovery.start();
                 }
             }
         }, ctx);
@@ -25,6 +25,7 @@ package com.yahoo.omid.tso.persistence;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.apache.bookkeeper.client.AsyncCallback;
 import org.apache.bookkeeper.client.AsyncCallback.AddCallback;
@@ -215,6 +216,25 @@ class BookKeeperStateLogger implements StateLogger {
      */
     @Override
     public void addRecord(byte[] record, final AddRecordCallback cb, Object ctx) {
+        addRecord(record, 0, record.length, cb, ctx);
+    }
+    
+    /**
+     * Heap buffers are sent as they are, direct ones have to be copied
+     * since BookKeeper only takes arrays.
+     */
+    @Override
+    public void addRecord(ByteBuffer record, final AddRecordCallback cb, Object ctx) {
+        if(record.hasArray()){
+            addRecord(record.array(), record.arrayOffset() + record.position(), record.remaining(), cb, ctx);
+        } else {
+            byte[] copy = new byte[record.remaining()];
+            record.duplicate().get(copy);
+            addRecord(copy, 0, copy.length, cb, ctx);
+        }
+    }
+    
+    private void addRecord(byte[] record, int offset, int length, final AddRecordCallback cb, Object ctx) {
         if(LOG.isDebugEnabled()){
             LOG.debug("Adding record.");
         }
@@ -224,7 +244,7 @@ class BookKeeperStateLogger implements StateLogger {
             return;
         }
         
-        this.lh.asyncAddEntry(record,
+        this.lh.asyncAddEntry(record, offset, length,
             new AddCallback() {
             @Override
             public void addComplete(int rc, LedgerHandle lh, long entryId, Object ctx) {
@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.tso.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Full recoverable state of the TSO, written in the background so the
+ * recovery doesn't have to replay the whole WAL.
+ * 
+ * A CHECKPOINT record with the checkpoint id is logged before the state is
+ * copied, so everything logged before the record is in the checkpoint.
+ * The recovery replays the WAL backwards as usual and, when it reaches the
+ * record, loads the checkpoint and stops. A record whose checkpoint is
+ * missing or corrupt is skipped and the replay goes on.
+ * 
+ * The copy runs concurrently with the commits, the records logged after
+ * the CHECKPOINT one fix whatever it caught half way.
+ * 
+ * File format, all in one file named after the id:
+ * 
+ * <pre>
+ * MAGIC | id | half aborted count | half aborted start timestamps
+ *       | (start timestamp, commit timestamp)* | 0
+ *       | max timestamp | largest deleted timestamp | CRC32 of the rest
+ * </pre>
+ * 
+ * The largest deleted timestamp goes last since it is read after the copy,
+ * so it covers the commits evicted while copying.
+ */
+public class Checkpoint {
+
+    private static final Log LOG = LogFactory.getLog(Checkpoint.class);
+
+    static final int MAGIC = 0x4f434b50;
+
+    /**
+     * Checkpoints kept in the directory, the newest ones
+     */
+    static final int KEEP = 2;
+
+    private static final Pattern FILE = Pattern.compile("([0-9a-f]{16})\\.ckp");
+
+    long id;
+    long maxTimestamp;
+    long largestDeletedTimestamp;
+    long[] halfAborted;
+    int commits = 0;
+    long[] startTimestamps = new long[1024];
+    long[] commitTimestamps = new long[1024];
+
+    static String fileName(long id) {
+        return String.format("%016x.ckp", id);
+    }
+
+    /**
+     * @return the id of a checkpoint file, -1 if it isn't one
+     */
+    static long parseFileName(String name) {
+        Matcher m = FILE.matcher(name);
+        if (!m.matches()) {
+            return -1;
+        }
+        return Long.parseLong(m.group(1), 16);
+    }
+
+    /**
+     * Writes a checkpoint to a temporary file, which replaces the final one
+     * once it is complete and synced.
+     */
+    public static class Writer {
+        private final File dir;
+        private final long id;
+        private final File tmp;
+        private final FileOutputStream file;
+        private final CRC32 crc = new CRC32();
+        private final DataOutputStream out;
+        private long commits = 0;
+
+        public Writer(File dir, long id) throws IOException {
+            this.dir = dir;
+            this.id = id;
+            this.tmp = new File(dir, fileName(id) + ".tmp");
+            this.file = new FileOutputStream(tmp);
+            this.out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file, 64 * 1024), crc));
+            out.writeInt(MAGIC);
+            out.writeLong(id);
+        }
+
+        public void writeHalfAborted(long[] startTimestamps) throws IOException {
+            out.writeInt(startTimestamps.length);
+            for (long start : startTimestamps) {
+                out.writeLong(start);
+            }
+        }
+
+        public void writeCommit(long startTimestamp, long commitTimestamp) throws IOException {
+            out.writeLong(startTimestamp);
+            out.writeLong(commitTimestamp);
+            commits++;
+        }
+
+        /**
+         * Completes the checkpoint and deletes the old ones
+         */
+        public void finish(long maxTimestamp, long largestDeletedTimestamp) throws IOException {
+            out.writeLong(0);
+            out.writeLong(maxTimestamp);
+            out.writeLong(largestDeletedTimestamp);
+            // the checksum isn't part of itself
+            out.writeLong(crc.getValue());
+            out.flush();
+            file.getChannel().force(true);
+            out.close();
+            File target = new File(dir, fileName(id));
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Couldn't rename " + tmp + " to " + target);
+            }
+            LOG.info("Checkpoint " + id + " written with " + commits + " commits");
+            prune(dir, KEEP);
+        }
+
+        /**
+         * Drops an incomplete checkpoint
+         */
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // ignore, it goes away anyway
+            }
+            if (!tmp.delete()) {
+                LOG.warn("Couldn't delete " + tmp);
+            }
+        }
+    }
+
+    /**
+     * Deletes all but the newest keep checkpoints, and the leftovers of
+     * unfinished ones
+     */
+    static void prune(File dir, int keep) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long[] ids = new long[files.length];
+        int n = 0;
+        for (File f : files) {
+            long id = parseFileName(f.getName());
+            if (id >= 0) {
+                ids[n++] = id;
+            }
+        }
+        Arrays.sort(ids, 0, n);
+        for (File f : files) {
+            long id = parseFileName(f.getName());
+            boolean old = id >= 0 && n > keep && id < ids[n - keep];
+            boolean unfinished = f.getName().endsWith(".ckp.tmp");
+            if ((old || unfinished) && !f.delete()) {
+                LOG.warn("Couldn't delete old checkpoint " + f);
+            }
+        }
+    }
+
+    /**
+     * @return the checkpoint, null if it is missing or corrupt
+     */
+    static Checkpoint read(File dir, long id) {
+        File f = new File(dir, fileName(id));
+        if (!f.exists()) {
+            LOG.warn("Checkpoint " + f + " not found");
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        try {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(
+                    new FileInputStream(f), 64 * 1024), crc));
+            try {
+                Checkpoint c = new Checkpoint();
+                if (in.readInt() != MAGIC) {
+                    LOG.warn("Checkpoint " + f + " is not a checkpoint");
+                    return null;
+                }
+                c.id = in.readLong();
+                c.halfAborted = new long[in.readInt()];
+                for (int i = 0; i < c.halfAborted.length; i++) {
+                    c.halfAborted[i] = in.readLong();
+                }
+                for (long start = in.readLong(); start != 0; start = in.readLong()) {
+                    c.addCommit(start, in.readLong());
+                }
+                c.maxTimestamp = in.readLong();
+                c.largestDeletedTimestamp = in.readLong();
+                long expected = crc.getValue();
+                if (in.readLong() != expected || c.id != id) {
+                    LOG.warn("Checkpoint " + f + " is corrupt");
+                    return null;
+                }
+                return c;
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            LOG.warn("Checkpoint " + f + " is truncated");
+            return null;
+        } catch (IOException e) {
+            LOG.warn("Error while reading checkpoint " + f, e);
+            return null;
+        }
+    }
+
+    private void addCommit(long startTimestamp, long commitTimestamp) {
+        if (commits == startTimestamps.length) {
+            startTimestamps = Arrays.copyOf(startTimestamps, commits * 2);
+            commitTimestamps = Arrays.copyOf(commitTimestamps, commits * 2);
+        }
+        startTimestamps[commits] = startTimestamp;
+        commitTimestamps[commits] = commitTimestamp;
+        commits++;
+    }
+}
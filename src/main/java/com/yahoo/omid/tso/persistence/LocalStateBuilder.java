@@ -0,0 +1,251 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.tso.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.yahoo.omid.tso.TSOServerConfig;
+import com.yahoo.omid.tso.TSOState;
+import com.yahoo.omid.tso.TimestampOracle;
+import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.LoggerInitCallback;
+import com.yahoo.omid.tso.persistence.LoggerException.Code;
+
+/**
+ * Builds the TSO state from the segments of a {@link LocalStateLogger}.
+ * 
+ * Like the BookKeeper builder, it replays the log of the last incarnation
+ * from the newest record backwards until the LoggerProtocol has recovered
+ * what it needs, and then hands a logger for a new incarnation to the
+ * state. The WAL directory is locked so that no two TSOs use it at once.
+ * Incarnations older than the recovered one are deleted.
+ */
+public class LocalStateBuilder extends StateBuilder {
+    private static final Log LOG = LogFactory.getLog(LocalStateBuilder.class);
+
+    public static TSOState getState(TSOServerConfig config){
+        TSOState returnValue;
+        if(!config.isRecoveryEnabled()){
+            LOG.warn("Logger is disabled");
+            returnValue = new TSOState(new TimestampOracle());
+            returnValue.initialize();
+        } else {
+            LocalStateBuilder builder = new LocalStateBuilder(config);
+
+            try{
+                returnValue = builder.buildState();
+                LOG.info("State built");
+            } catch (Throwable e) {
+                LOG.error("Error while building the state.", e);
+                returnValue = null;
+            } finally {
+                builder.shutdown();
+            }
+        }
+        return returnValue;
+    }
+
+    TimestampOracle timestampOracle;
+    TSOServerConfig config;
+    LoggerProtocol lp;
+    FileLock lock;
+    StateLogger logger;
+
+    LocalStateBuilder(TSOServerConfig config) {
+        this.timestampOracle = new TimestampOracle();
+        this.config = config;
+    }
+
+    @Override
+    TSOState buildState() throws LoggerException {
+        File dir = new File(config.getWalDir());
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOG.error("Can't create WAL directory " + dir);
+            throw LoggerException.create(Code.IOFAILED);
+        }
+        try {
+            lock = new RandomAccessFile(new File(dir, LocalStateLogger.LOCK), "rw").getChannel().tryLock();
+        } catch (IOException e) {
+            LOG.error("Error while locking " + dir, e);
+            throw LoggerException.create(Code.IOFAILED);
+        }
+        if (lock == null) {
+            LOG.error("WAL directory " + dir + " is in use");
+            throw LoggerException.create(Code.INITLOCKFAILED);
+        }
+
+        NavigableMap<Long, List<File>> incarnations = listSegments(dir);
+        TSOState state = null;
+        long recovered = -1;
+        try {
+            // the last incarnation may have died before logging anything
+            for (long incarnation : incarnations.descendingKeySet()) {
+                LoggerProtocol protocol = new LoggerProtocol(timestampOracle);
+                if (config.getCheckpointDir() != null) {
+                    protocol.setCheckpointDir(new File(config.getCheckpointDir()));
+                }
+                if (recover(protocol, incarnations.get(incarnation))) {
+                    this.lp = protocol;
+                    state = lp.getState();
+                    recovered = incarnation;
+                    LOG.info("Recovered from incarnation " + incarnation);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Error while reading the WAL", e);
+            throw LoggerException.create(Code.IOFAILED);
+        }
+        if (state == null) {
+            LOG.warn("No WAL to recover from in " + dir);
+            state = new TSOState(timestampOracle);
+        }
+        for (Map.Entry<Long, List<File>> e : incarnations.headMap(recovered).entrySet()) {
+            for (File f : e.getValue()) {
+                if (!f.delete()) {
+                    LOG.warn("Couldn't delete old WAL segment " + f);
+                }
+            }
+        }
+
+        long next = incarnations.isEmpty() ? 0 : incarnations.lastKey() + 1;
+        final TSOState built = state;
+        new LocalStateLogger(dir, next, lock).initialize(new LoggerInitCallback() {
+            public void loggerInitComplete(int rc, StateLogger sl, Object ctx) {
+                if (rc == Code.OK) {
+                    logger = sl;
+                    built.setLogger(sl);
+                } else {
+                    LOG.error("Error when initializing logger: " + LoggerException.getMessage(rc));
+                }
+            }
+        }, null);
+        return logger == null ? null : state;
+    }
+
+    /**
+     * @return the segment files of each incarnation, sorted
+     */
+    static NavigableMap<Long, List<File>> listSegments(File dir) {
+        SortedMap<Long, SortedMap<Long, File>> found = new TreeMap<Long, SortedMap<Long, File>>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                long[] id = LocalStateLogger.parseSegmentName(f.getName());
+                if (id == null) {
+                    continue;
+                }
+                SortedMap<Long, File> segments = found.get(id[0]);
+                if (segments == null) {
+                    segments = new TreeMap<Long, File>();
+                    found.put(id[0], segments);
+                }
+                segments.put(id[1], f);
+            }
+        }
+        NavigableMap<Long, List<File>> result = new TreeMap<Long, List<File>>();
+        for (Map.Entry<Long, SortedMap<Long, File>> e : found.entrySet()) {
+            result.put(e.getKey(), new ArrayList<File>(e.getValue().values()));
+        }
+        return result;
+    }
+
+    /**
+     * Executes the records of an incarnation from the newest one backwards
+     * until the protocol has finished the recovery
+     * 
+     * @return false if there were no records
+     */
+    private static boolean recover(LoggerProtocol protocol, List<File> segments) throws IOException {
+        boolean any = false;
+        for (int s = segments.size() - 1; s >= 0; --s) {
+            List<ByteBuffer> records = readSegment(segments.get(s));
+            for (int i = records.size() - 1; i >= 0; --i) {
+                any = true;
+                protocol.execute(records.get(i));
+                if (protocol.finishedRecovery()) {
+                    return true;
+                }
+            }
+        }
+        return any;
+    }
+
+    /**
+     * @return the records of a segment in order, up to the end of the
+     *         segment or the first torn one
+     */
+    static List<ByteBuffer> readSegment(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer bb;
+        try {
+            bb = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+        CRC32 crc = new CRC32();
+        while (bb.remaining() >= LocalStateLogger.HEADER) {
+            int length = bb.getInt();
+            int checksum = bb.getInt();
+            if (length <= 0 || length > bb.remaining()) {
+                break;
+            }
+            byte[] data = new byte[length];
+            bb.get(data);
+            crc.reset();
+            crc.update(data);
+            if ((int) crc.getValue() != checksum) {
+                LOG.warn("Torn record at " + (bb.position() - length - LocalStateLogger.HEADER) + " of " + file);
+                break;
+            }
+            records.add(ByteBuffer.wrap(data));
+        }
+        return records;
+    }
+
+    /**
+     * Releases the WAL directory unless a logger took it over.
+     */
+    @Override
+    void shutdown() {
+        if (logger == null && lock != null) {
+            try {
+                lock.release();
+                lock.channel().close();
+            } catch (IOException e) {
+                LOG.warn("Exception while releasing the WAL lock.", e);
+            }
+        }
+    }
+}
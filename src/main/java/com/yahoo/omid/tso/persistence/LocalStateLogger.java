@@ -0,0 +1,317 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.tso.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
+import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.LoggerInitCallback;
+import com.yahoo.omid.tso.persistence.LoggerException.Code;
+
+/**
+ * Local file implementation of StateLogger, for single node deployments.
+ * 
+ * Records are appended to preallocated memory-mapped segments of a
+ * directory. A single sync thread forces the segments to disk and completes
+ * the callbacks of all the records added since the previous sync together,
+ * so many addRecord calls share one fsync.
+ * 
+ * Each TSO incarnation writes its own sequence of segments, named after the
+ * incarnation and segment numbers. Each record is stored as its length, its
+ * CRC32 and its bytes; a zero length (the preallocated space) or a bad
+ * checksum marks the end of a segment. See {@link LocalStateBuilder}.
+ */
+class LocalStateLogger implements StateLogger {
+    private static final Log LOG = LogFactory.getLog(LocalStateLogger.class);
+
+    static int SEGMENT_SIZE = 64 * 1024 * 1024;
+    static {
+        try {
+            SEGMENT_SIZE = Integer.valueOf(System.getProperty("omid.walSegmentSize"));
+        } catch (Exception e) {
+            // ignore, usedefault
+        }
+    };
+
+    /**
+     * Length and checksum of every record
+     */
+    static final int HEADER = 8;
+
+    static final String LOCK = "lock";
+    static final Pattern SEGMENT = Pattern.compile("([0-9a-f]{16})\\.([0-9a-f]{8})\\.wal");
+
+    static String segmentName(long incarnation, int segment) {
+        return String.format("%016x.%08x.wal", incarnation, segment);
+    }
+
+    /**
+     * @return the incarnation and the segment number of a segment file, or
+     *         null if it is not one
+     */
+    static long[] parseSegmentName(String name) {
+        Matcher m = SEGMENT.matcher(name);
+        if (!m.matches()) {
+            return null;
+        }
+        return new long[] { Long.parseLong(m.group(1), 16), Long.parseLong(m.group(2), 16) };
+    }
+
+    private final File dir;
+    private final long incarnation;
+
+    /**
+     * Lock on the WAL directory, taken by the builder and released on shutdown
+     */
+    private final FileLock lock;
+
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[8192];
+    private int segmentId = -1;
+    private MappedByteBuffer segment;
+
+    /*
+     * Guarded by this: the segments written since the last sync and the
+     * callbacks waiting for the next one.
+     */
+    private List<MappedByteBuffer> unsynced = new ArrayList<MappedByteBuffer>();
+    private List<AddRecordCallback> callbacks = new ArrayList<AddRecordCallback>();
+    private List<Object> contexts = new ArrayList<Object>();
+
+    private boolean enabled = false;
+    private boolean finish = false;
+    private Thread syncer;
+
+    private volatile long syncs = 0;
+    private volatile long records = 0;
+
+    LocalStateLogger(File dir, long incarnation, FileLock lock) {
+        this.dir = dir;
+        this.incarnation = incarnation;
+        this.lock = lock;
+    }
+
+    @Override
+    public void initialize(LoggerInitCallback cb, Object ctx) throws LoggerException {
+        synchronized (this) {
+            try {
+                roll(0);
+            } catch (IOException e) {
+                LOG.error("Error while creating the first WAL segment in " + dir, e);
+                throw new LoggerException.IOFailedException();
+            }
+            enabled = true;
+        }
+        syncer = new Thread(new Syncer(), "Local WAL Sync");
+        syncer.setDaemon(true);
+        syncer.start();
+        LOG.info("Logging to " + dir + ", incarnation " + incarnation);
+        cb.loggerInitComplete(Code.OK, this, ctx);
+    }
+
+    /**
+     * Adds a record to the current segment. The callback is invoked once the
+     * segment is synced.
+     * 
+     * @param record
+     * @param cb
+     * @param ctx
+     */
+    @Override
+    public void addRecord(byte[] record, AddRecordCallback cb, Object ctx) {
+        addRecord(ByteBuffer.wrap(record), cb, ctx);
+    }
+
+    /**
+     * The record is copied straight into the mapped segment, so the buffer
+     * can be reused as soon as this call returns.
+     */
+    @Override
+    public void addRecord(ByteBuffer record, AddRecordCallback cb, Object ctx) {
+        int rc = Code.LOGGERDISABLED;
+        synchronized (this) {
+            if (enabled) {
+                try {
+                    append(record.duplicate());
+                    callbacks.add(cb);
+                    contexts.add(ctx);
+                    notifyAll();
+                    return;
+                } catch (IOException e) {
+                    LOG.error("Error while appending to the WAL", e);
+                    rc = Code.IOFAILED;
+                }
+            }
+        }
+        cb.addRecordComplete(rc, ctx);
+    }
+
+    /**
+     * Empty records are not stored, there is nothing to recover from them
+     */
+    private void append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        if (length == 0) {
+            return;
+        }
+        if (segment.remaining() < HEADER + length) {
+            roll(HEADER + length);
+        }
+        segment.putInt(length);
+        segment.putInt((int) checksum(record));
+        segment.put(record);
+        records++;
+    }
+
+    /**
+     * CRC32 of the remaining bytes, leaving the buffer position untouched.
+     * Direct buffers go through a scratch array.
+     */
+    private long checksum(ByteBuffer record) {
+        crc.reset();
+        if (record.hasArray()) {
+            crc.update(record.array(), record.arrayOffset() + record.position(), record.remaining());
+        } else {
+            ByteBuffer view = record.duplicate();
+            while (view.hasRemaining()) {
+                int n = Math.min(scratch.length, view.remaining());
+                view.get(scratch, 0, n);
+                crc.update(scratch, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Maps a new preallocated segment, large enough for needed bytes. The
+     * previous one stays in the unsynced list until the next sync.
+     */
+    private void roll(int needed) throws IOException {
+        int size = Math.max(SEGMENT_SIZE, needed + HEADER);
+        File file = new File(dir, segmentName(incarnation, segmentId + 1));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // the mapping stays valid
+            raf.close();
+        }
+        segmentId++;
+        unsynced.add(segment);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("New WAL segment " + file + " of " + size + " bytes");
+        }
+    }
+
+    private class Syncer implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                List<AddRecordCallback> cbs;
+                List<Object> ctxs;
+                MappedByteBuffer[] toSync;
+                synchronized (LocalStateLogger.this) {
+                    while (callbacks.isEmpty() && !finish) {
+                        try {
+                            LocalStateLogger.this.wait();
+                        } catch (InterruptedException e) {
+                            // keep syncing until shut down
+                        }
+                    }
+                    if (callbacks.isEmpty()) {
+                        return;
+                    }
+                    cbs = callbacks;
+                    ctxs = contexts;
+                    callbacks = new ArrayList<AddRecordCallback>(cbs.size());
+                    contexts = new ArrayList<Object>(cbs.size());
+                    toSync = unsynced.toArray(new MappedByteBuffer[unsynced.size()]);
+                    unsynced.clear();
+                    unsynced.add(segment);
+                }
+                int rc = Code.OK;
+                try {
+                    for (MappedByteBuffer b : toSync) {
+                        b.force();
+                    }
+                } catch (RuntimeException e) {
+                    LOG.error("Error while syncing the WAL", e);
+                    rc = Code.IOFAILED;
+                }
+                syncs++;
+                for (int i = 0; i < cbs.size(); ++i) {
+                    cbs.get(i).addRecordComplete(rc, ctxs.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of syncs, each one completes a group of records
+     */
+    long getSyncs() {
+        return syncs;
+    }
+
+    long getRecords() {
+        return records;
+    }
+
+    /**
+     * Syncs the pending records and shuts down this logger.
+     */
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            if (!enabled) {
+                return;
+            }
+            enabled = false;
+            finish = true;
+            notifyAll();
+        }
+        try {
+            syncer.join();
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while closing logger.", e);
+            Thread.currentThread().interrupt();
+        }
+        LOG.info("WAL closed after " + records + " records and " + syncs + " syncs");
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException e) {
+            LOG.warn("Exception while releasing the WAL lock.", e);
+        }
+    }
+}
@@ -34,6 +34,7 @@ public abstract class LoggerException extends Exception {
         int BKOPFAILED = -3;
         int ZKOPFAILED = -4;
         int LOGGERDISABLED = -5;
+        int IOFAILED = -6;
         
         int ILLEGALOP = -101;
     }  
@@ -55,6 +56,8 @@ public abstract class LoggerException extends Exception {
             return new ZKOpFailedException();
         case Code.LOGGERDISABLED:
             return new LoggerDisabledException();
+        case Code.IOFAILED:
+            return new IOFailedException();
         default:
             return new IllegalOpException();
         }
@@ -83,6 +86,8 @@ public abstract class LoggerException extends Exception {
             return "ZooKeeper operation failed";
         case Code.LOGGERDISABLED:
             return "Logger disabled";
+        case Code.IOFAILED:
+            return "Local WAL I/O failed";
         default:
             return "Invalid operation";
         }
@@ -118,6 +123,12 @@ public abstract class LoggerException extends Exception {
         }
     }
     
+    public static class IOFailedException extends LoggerException {
+        public IOFailedException() {
+            super(Code.IOFAILED);
+        }
+    }
+    
     public static class IllegalOpException extends LoggerException {
         public IllegalOpException() {
             super(Code.ILLEGALOP);
@@ -37,6 +37,7 @@ public class LoggerProtocol extends TSOState{
     public final static byte FULLABORT = (byte) -5;
     public final static byte LOGSTART = (byte) -6;
     public final static byte SNAPSHOT = (byte) -7;
+    public final static byte CHECKPOINT = (byte) -8;
     
     
     /**
@@ -56,46 +57,119 @@ public class LoggerProtocol extends TSOState{
     private boolean consumed;
     private boolean hasSnapshot;
     private int snapshot = -1;
+    private boolean checkpointed;
+
+    /**
+     * Operations of a logged entry, parsed but not executed yet. Decoding
+     * doesn't touch the state, so it can happen on any thread.
+     */
+    static class Entry {
+        int size = 0;
+        byte[] ops;
+        long[] first;
+        long[] second;
+
+        Entry(int capacity) {
+            ops = new byte[capacity];
+            first = new long[capacity];
+            second = new long[capacity];
+        }
+
+        private void add(byte op, long a, long b) {
+            if (size == ops.length) {
+                int capacity = size * 2 + 1;
+                byte[] newOps = new byte[capacity];
+                long[] newFirst = new long[capacity];
+                long[] newSecond = new long[capacity];
+                System.arraycopy(ops, 0, newOps, 0, size);
+                System.arraycopy(first, 0, newFirst, 0, size);
+                System.arraycopy(second, 0, newSecond, 0, size);
+                ops = newOps;
+                first = newFirst;
+                second = newSecond;
+            }
+            ops[size] = op;
+            first[size] = a;
+            second[size] = b;
+            size++;
+        }
+    }
+
+    /**
+     * Parses a logged entry (several logged ops)
+     * @param bb Serialized operations
+     */
+    static Entry decode(ByteBuffer bb){
+        // most ops take 9 bytes
+        Entry entry = new Entry(bb.remaining() / 9 + 1);
+        while(bb.hasRemaining()){
+            byte op = bb.get();
+            switch(op){
+            case COMMIT:
+                long startTimestamp = bb.getLong();
+                entry.add(op, startTimestamp, bb.getLong());
+                break;
+            case TIMESTAMPORACLE:
+            case LARGESTDELETEDTIMESTAMP:
+            case ABORT:
+            case FULLABORT:
+            case SNAPSHOT:
+            case CHECKPOINT:
+                entry.add(op, bb.getLong(), 0);
+                break;
+            default:
+                entry.add(op, 0, 0);
+                break;
+            }
+        }
+        return entry;
+    }
 
     /**
      * Execute a logged entry (several logged ops)
      * @param bb Serialized operations
      */
     void execute(ByteBuffer bb){
-        boolean done = !bb.hasRemaining();
-        while(!done){
-            byte op = bb.get();
+        execute(decode(bb));
+    }
+
+    /**
+     * Execute the ops of a decoded entry, in order
+     */
+    void execute(Entry entry){
+        for(int i = 0; i < entry.size; i++){
+            byte op = entry.ops[i];
             long timestamp, startTimestamp, commitTimestamp;
             if(LOG.isTraceEnabled()){
                 LOG.trace("Operation: " + op);
             }
             switch(op){
             case TIMESTAMPORACLE:
-                timestamp = bb.getLong();
+                timestamp = entry.first[i];
                 this.getSO().initialize(timestamp);
                 this.initialize();
                 oracle = true;
                 break;
             case COMMIT:
-                startTimestamp = bb.getLong();
-                commitTimestamp = bb.getLong();
+                startTimestamp = entry.first[i];
+                commitTimestamp = entry.second[i];
                 processCommit(startTimestamp, commitTimestamp);
                 if (commitTimestamp < largestDeletedTimestamp) {
                    commits = true;
                 }
                 break;
             case LARGESTDELETEDTIMESTAMP:
-                timestamp = bb.getLong();
+                timestamp = entry.first[i];
                 processLargestDeletedTimestamp(timestamp);
                 
                 break;
             case ABORT:
-                timestamp = bb.getLong();
+                timestamp = entry.first[i];
                 processAbort(timestamp);
                 
                 break;
             case FULLABORT:
-                timestamp = bb.getLong();
+                timestamp = entry.first[i];
                 processFullAbort(timestamp);
                 
                 break;
@@ -103,7 +177,7 @@ public class LoggerProtocol extends TSOState{
                 consumed = true;
                 break;
             case SNAPSHOT:
-                int snapshot = (int) bb.getLong();
+                int snapshot = (int) entry.first[i];
                 if (snapshot > this.snapshot) {
                    this.snapshot = snapshot;
                    this.hasSnapshot = true;
@@ -112,11 +186,35 @@ public class LoggerProtocol extends TSOState{
                    this.aborts = true;
                 }
                 break;
+            case CHECKPOINT:
+                if (getCheckpointDir() != null && !checkpointed) {
+                    Checkpoint checkpoint = Checkpoint.read(getCheckpointDir(), entry.first[i]);
+                    if (checkpoint != null) {
+                        load(checkpoint);
+                    }
+                }
+                break;
             }
-            if(bb.remaining() == 0) done = true;
         }
     }
 
+    /**
+     * Merges a checkpoint into the state rebuilt from the newer records
+     */
+    private void load(Checkpoint checkpoint) {
+        LOG.info("Loading checkpoint " + checkpoint.id + " with " + checkpoint.commits + " commits");
+        this.getSO().initialize(checkpoint.maxTimestamp);
+        this.initialize();
+        processLargestDeletedTimestamp(checkpoint.largestDeletedTimestamp);
+        for (int i = 0; i < checkpoint.commits; i++) {
+            processCheckpointCommit(checkpoint.startTimestamps[i], checkpoint.commitTimestamps[i]);
+        }
+        for (long start : checkpoint.halfAborted) {
+            processAbort(start);
+        }
+        checkpointed = true;
+    }
+
     /**
      * Checks whether all the required information has been recovered
      * from the log.
@@ -124,7 +222,7 @@ public class LoggerProtocol extends TSOState{
      * @return true if the recovery has finished
      */
     boolean finishedRecovery() {
-        return (oracle && commits && aborts) || consumed;        
+        return (oracle && commits && aborts) || consumed || checkpointed;
     }
     
     /**
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+
+package com.yahoo.omid.tso.persistence;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a WAL recovery, updated by the builder while it replays the
+ * log. The clients are stalled until it is done, so it is worth watching.
+ */
+public class RecoveryProgress {
+
+    private final long start = System.currentTimeMillis();
+    private volatile long end = 0;
+
+    private volatile long totalEntries = 0;
+    private final AtomicLong entriesRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong entriesApplied = new AtomicLong();
+
+    void setTotalEntries(long entries) {
+        this.totalEntries = entries;
+    }
+
+    void read(long entries, long bytes) {
+        entriesRead.addAndGet(entries);
+        bytesRead.addAndGet(bytes);
+    }
+
+    void applied(long entries) {
+        entriesApplied.addAndGet(entries);
+    }
+
+    void finished() {
+        end = System.currentTimeMillis();
+    }
+
+    /**
+     * @return entries in the log, an upper bound of the entries to replay
+     *         since the recovery can finish earlier
+     */
+    public long getTotalEntries() {
+        return totalEntries;
+    }
+
+    public long getEntriesRead() {
+        return entriesRead.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getEntriesApplied() {
+        return entriesApplied.get();
+    }
+
+    public boolean isFinished() {
+        return end != 0;
+    }
+
+    /**
+     * @return time spent so far, or in total once finished, in ms
+     */
+    public long getElapsed() {
+        return (end != 0 ? end : System.currentTimeMillis()) - start;
+    }
+
+    public long getEntriesPerSecond() {
+        return getEntriesApplied() * 1000 / Math.max(1, getElapsed());
+    }
+
+    @Override
+    public String toString() {
+        return "applied " + getEntriesApplied() + " of " + getTotalEntries() + " entries (" + getEntriesRead()
+                + " read, " + getBytesRead() + " bytes) in " + getElapsed() + " ms, " + getEntriesPerSecond()
+                + " entries/s" + (isFinished() ? ", finished" : "");
+    }
+}
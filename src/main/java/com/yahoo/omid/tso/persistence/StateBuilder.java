@@ -18,6 +18,7 @@
 package com.yahoo.omid.tso.persistence;
 
 
+import com.yahoo.omid.tso.TSOServerConfig;
 import com.yahoo.omid.tso.TSOState;
 
 /**
@@ -28,6 +29,39 @@ import com.yahoo.omid.tso.TSOState;
 
 public abstract class StateBuilder {
 
+    /**
+     * WAL backends
+     */
+    public static final String BOOKKEEPER = "bookkeeper";
+    public static final String LOCAL = "local";
+
+    /**
+     * Builds the state with the WAL backend of the configuration
+     */
+    public static TSOState getState(TSOServerConfig config) {
+        if (LOCAL.equals(config.getWal())) {
+            return LocalStateBuilder.getState(config);
+        } else if (BOOKKEEPER.equals(config.getWal())) {
+            return BookKeeperStateBuilder.getState(config);
+        }
+        throw new IllegalArgumentException("Unknown WAL backend: " + config.getWal());
+    }
+
+    private static volatile RecoveryProgress recoveryProgress;
+
+    /**
+     * @return progress of the last recovery, null if there was none
+     */
+    public static RecoveryProgress getRecoveryProgress() {
+        return recoveryProgress;
+    }
+
+    static RecoveryProgress startRecovery() {
+        RecoveryProgress progress = new RecoveryProgress();
+        recoveryProgress = progress;
+        return progress;
+    }
+
     /**
      * Logger protocol object. Implements the logic to execute 
      * state taken out of log records.
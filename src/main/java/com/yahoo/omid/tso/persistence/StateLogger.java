@@ -16,6 +16,8 @@
 
 package com.yahoo.omid.tso.persistence;
 
+import java.nio.ByteBuffer;
+
 import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.LoggerInitCallback;
 import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
 
@@ -40,6 +42,17 @@ public interface StateLogger {
      */
     void addRecord(byte[] record, AddRecordCallback cb, Object ctx);
     
+    /**
+     * Add a new record, the bytes between the position and the limit of
+     * the buffer. They must be left untouched until the callback runs, so
+     * the logger can use them without copying.
+     * 
+     * @param record
+     * @param cb
+     * @param ctx
+     */
+    void addRecord(ByteBuffer record, AddRecordCallback cb, Object ctx);
+    
     
     /**
      * Shut down logger.
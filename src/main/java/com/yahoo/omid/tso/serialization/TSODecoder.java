@@ -25,9 +25,15 @@ import org.jboss.netty.handler.codec.frame.FrameDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.yahoo.omid.replication.ReplicationBatch;
 import com.yahoo.omid.replication.Zipper;
+import com.yahoo.omid.tso.RowKey;
 import com.yahoo.omid.tso.TSOMessage;
+import com.yahoo.omid.tso.messages.AbortRangeRequest;
 import com.yahoo.omid.tso.messages.AbortRequest;
+import com.yahoo.omid.tso.messages.BatchCommitQueryRequest;
+import com.yahoo.omid.tso.messages.BatchCommitQueryResponse;
+import com.yahoo.omid.tso.messages.BulkAbortedTransactionReport;
 import com.yahoo.omid.tso.messages.CommitQueryRequest;
 import com.yahoo.omid.tso.messages.CommitQueryResponse;
 import com.yahoo.omid.tso.messages.CommitRequest;
@@ -35,19 +41,189 @@ import com.yahoo.omid.tso.messages.CommitResponse;
 import com.yahoo.omid.tso.messages.CommittedTransactionReport;
 import com.yahoo.omid.tso.messages.FullAbortRequest;
 import com.yahoo.omid.tso.messages.LargestDeletedTimestampReport;
+import com.yahoo.omid.tso.messages.TimestampBatchRequest;
+import com.yahoo.omid.tso.messages.TimestampBatchResponse;
 import com.yahoo.omid.tso.messages.TimestampRequest;
 import com.yahoo.omid.tso.messages.TimestampResponse;
 
+/**
+ * Decodes the messages exchanged with the TSO.
+ * 
+ * On the TSO side (no Zipper) the size of the next message is checked in
+ * place before decoding it, so an incomplete frame just returns null. If
+ * lengthPrefixed is set the frames carry their length (see
+ * {@link TSOEncoder}) and it is not even necessary to look into them.
+ * 
+ * The clients decode the replication stream with the Zipper, whose messages
+ * don't carry their size, so they keep retrying on incomplete frames. In
+ * bulk mode the consecutive replication reports are decoded together into a
+ * single {@link ReplicationBatch} instead of one message each.
+ */
 public class TSODecoder extends FrameDecoder {
     private static final Logger LOG = LoggerFactory.getLogger(TSODecoder.class);
 
+    /**
+     * TimestampRequests carry no data, all of them are decoded to this one
+     */
+    private static final TimestampRequest TIMESTAMP_REQUEST = new TimestampRequest();
+
+    /**
+     * Largest number of queries accepted in a batch commit query, a larger
+     * or negative count means a corrupt stream
+     */
+    static final int MAX_BATCH_QUERY = 1 << 20;
+
     private Zipper zipper;
+    private boolean lengthPrefixed;
+    private boolean bulk;
 
     public TSODecoder(Zipper zipper) {
+       this(zipper, false);
+    }
+
+    public TSODecoder(Zipper zipper, boolean lengthPrefixed) {
+       this(zipper, lengthPrefixed, false);
+    }
+
+    /**
+     * @param bulk
+     *           decode the replication reports into ReplicationBatches, only
+     *           used with a Zipper
+     */
+    public TSODecoder(Zipper zipper, boolean lengthPrefixed, boolean bulk) {
        this.zipper = zipper;
+       this.lengthPrefixed = lengthPrefixed;
+       this.bulk = bulk;
     }
 
     protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buf) throws Exception {
+        if (zipper != null) {
+            return decodeReplicated(buf);
+        }
+        int start = buf.readerIndex();
+        int length;
+        if (lengthPrefixed) {
+            if (buf.readableBytes() < 4) {
+                return null;
+            }
+            length = buf.getInt(start);
+            if (length < 1) {
+                throw new Exception("Wrong frame length " + length);
+            }
+            if (buf.readableBytes() < 4 + length) {
+                return null;
+            }
+            buf.skipBytes(4);
+        } else {
+            length = frameLength(buf, start);
+            if (length < 0) {
+                return null;
+            }
+        }
+
+        byte type = buf.readByte();
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Decoding message : " + type);
+        }
+        TSOMessage msg;
+        if (type == TSOMessage.TimestampRequest) {
+            msg = TIMESTAMP_REQUEST;
+        } else {
+            msg = newMessage(type, buf);
+            msg.readObject(buf);
+        }
+        if (lengthPrefixed) {
+            buf.readerIndex(start + 4 + length);
+        }
+        return msg;
+    }
+
+    /**
+     * @return the size of the message starting at index, or -1 if it is not
+     *         complete yet
+     */
+    private static int frameLength(ChannelBuffer buf, int index) throws Exception {
+        int readable = buf.writerIndex() - index;
+        if (readable < 1) {
+            return -1;
+        }
+        byte type = buf.getByte(index);
+        int length;
+        switch (type) {
+        case TSOMessage.TimestampRequest:
+        case TSOMessage.CommittedTransactionReport:
+            length = 1;
+            break;
+        case TSOMessage.TimestampBatchRequest:
+            length = 1 + 4;
+            break;
+        case TSOMessage.TimestampResponse:
+        case TSOMessage.LargestDeletedTimestampReport:
+        case TSOMessage.AbortRequest:
+        case TSOMessage.FullAbortReport:
+            length = 1 + 8;
+            break;
+        case TSOMessage.TimestampBatchResponse:
+            length = 1 + 8 + 4;
+            break;
+        case TSOMessage.CommitRequest:
+            // start timestamp, number of rows and the rows
+            if (readable < 1 + 8 + 4) {
+                return -1;
+            }
+            int rows = RowKey.serializedSize(buf, index + 13, buf.getInt(index + 9));
+            return rows < 0 ? -1 : 13 + rows;
+        case TSOMessage.CommitResponse:
+            // the commit timestamp is only there if committed
+            if (readable < 1 + 8 + 1) {
+                return -1;
+            }
+            length = buf.getByte(index + 9) == 1 ? 1 + 8 + 1 + 8 : 1 + 8 + 1;
+            break;
+        case TSOMessage.CommitQueryRequest:
+        case TSOMessage.AbortRangeRequest:
+            length = 1 + 8 + 8;
+            break;
+        case TSOMessage.CommitQueryResponse:
+            length = 1 + 8 + 8 + 8 + 1 + 1;
+            break;
+        case TSOMessage.BatchCommitQueryRequest:
+            // start timestamp, number of queries and the query timestamps
+            if (readable < 1 + 8 + 4) {
+                return -1;
+            }
+            length = 1 + 8 + 4 + 8 * batchCount(buf, index);
+            break;
+        case TSOMessage.BatchCommitQueryResponse:
+            if (readable < 1 + 8 + 4) {
+                return -1;
+            }
+            length = 1 + 8 + 4 + (8 + 8 + 1) * batchCount(buf, index);
+            break;
+        default:
+            throw new Exception("Wrong type " + type + " (" + Integer.toHexString(type) +") " + buf.toString().length());
+        }
+        return readable < length ? -1 : length;
+    }
+
+    /**
+     * @return the count of the batch commit query message starting at index
+     */
+    private static int batchCount(ChannelBuffer buf, int index) throws Exception {
+        int count = buf.getInt(index + 9);
+        if (count < 0 || count > MAX_BATCH_QUERY) {
+            throw new Exception("Wrong batch count " + count + " for type " + buf.getByte(index));
+        }
+        return count;
+    }
+
+    private Object decodeReplicated(ChannelBuffer buf) throws Exception {
+        if (bulk) {
+            ReplicationBatch batch = new ReplicationBatch();
+            if (zipper.decodeBulk(buf, batch) > 0) {
+                return batch;
+            }
+        }
         // Mark the current buffer position before any reading
         // because the whole frame might not be in the buffer yet.
         // We will reset the buffer position to the marked position if
@@ -56,52 +232,17 @@ public class TSODecoder extends FrameDecoder {
 
         TSOMessage msg;
         try {
-            if (zipper != null) {
-               msg = zipper.decodeMessage(buf);
-               LOG.debug("Zipper returned " + msg);
-               if (msg != null) {
-                  return msg;
-               }
-               buf.resetReaderIndex();
+            msg = zipper.decodeMessage(buf);
+            LOG.debug("Zipper returned " + msg);
+            if (msg != null) {
+               return msg;
             }
+            buf.resetReaderIndex();
             byte type = buf.readByte();
             if (LOG.isTraceEnabled()) {
                 LOG.trace("Decoding message : " + type);
             }
-            switch (type) {
-            case TSOMessage.TimestampRequest:
-                msg = new TimestampRequest();
-                break;
-            case TSOMessage.TimestampResponse:
-                msg = new TimestampResponse();
-                break;
-            case TSOMessage.CommitRequest:
-                msg = new CommitRequest();
-                break;
-            case TSOMessage.CommitResponse:
-                msg = new CommitResponse();
-                break;
-            case TSOMessage.CommitQueryRequest:
-                msg = new CommitQueryRequest();
-                break;
-            case TSOMessage.CommitQueryResponse:
-                msg = new CommitQueryResponse();
-                break;
-            case TSOMessage.CommittedTransactionReport:
-                msg = new CommittedTransactionReport();
-                break;
-            case TSOMessage.LargestDeletedTimestampReport:
-                msg = new LargestDeletedTimestampReport();
-                break;
-            case TSOMessage.AbortRequest:
-                msg = new AbortRequest();
-                break;
-            case TSOMessage.FullAbortReport:
-                msg = new FullAbortRequest();
-                break;
-            default:
-                throw new Exception("Wrong type " + type + " (" + Integer.toHexString(type) +") " + buf.toString().length());
-            }
+            msg = newMessage(type, buf);
             msg.readObject(buf);
         } catch (IndexOutOfBoundsException e) {
             // Not enough byte in the buffer, reset to the start for the next try
@@ -115,4 +256,43 @@ public class TSODecoder extends FrameDecoder {
 
         return msg;
     }
+
+    private static TSOMessage newMessage(byte type, ChannelBuffer buf) throws Exception {
+        switch (type) {
+        case TSOMessage.TimestampRequest:
+            return new TimestampRequest();
+        case TSOMessage.TimestampResponse:
+            return new TimestampResponse();
+        case TSOMessage.TimestampBatchRequest:
+            return new TimestampBatchRequest();
+        case TSOMessage.TimestampBatchResponse:
+            return new TimestampBatchResponse();
+        case TSOMessage.CommitRequest:
+            return new CommitRequest();
+        case TSOMessage.CommitResponse:
+            return new CommitResponse();
+        case TSOMessage.CommitQueryRequest:
+            return new CommitQueryRequest();
+        case TSOMessage.CommitQueryResponse:
+            return new CommitQueryResponse();
+        case TSOMessage.BatchCommitQueryRequest:
+            return new BatchCommitQueryRequest();
+        case TSOMessage.BatchCommitQueryResponse:
+            return new BatchCommitQueryResponse();
+        case TSOMessage.CommittedTransactionReport:
+            return new CommittedTransactionReport();
+        case TSOMessage.LargestDeletedTimestampReport:
+            return new LargestDeletedTimestampReport();
+        case TSOMessage.AbortRequest:
+            return new AbortRequest();
+        case TSOMessage.AbortRangeRequest:
+            return new AbortRangeRequest();
+        case TSOMessage.FullAbortReport:
+            return new FullAbortRequest();
+        case TSOMessage.BulkAbortedTransactionReport:
+            return new BulkAbortedTransactionReport();
+        default:
+            throw new Exception("Wrong type " + type + " (" + Integer.toHexString(type) +") " + buf.toString().length());
+        }
+    }
 }
@@ -28,8 +28,12 @@ import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
 import com.yahoo.omid.replication.ZipperState;
 import com.yahoo.omid.tso.BufferPool;
 import com.yahoo.omid.tso.TSOMessage;
+import com.yahoo.omid.tso.messages.AbortRangeRequest;
 import com.yahoo.omid.tso.messages.AbortRequest;
 import com.yahoo.omid.tso.messages.AbortedTransactionReport;
+import com.yahoo.omid.tso.messages.BatchCommitQueryRequest;
+import com.yahoo.omid.tso.messages.BatchCommitQueryResponse;
+import com.yahoo.omid.tso.messages.BulkAbortedTransactionReport;
 import com.yahoo.omid.tso.messages.CommitQueryRequest;
 import com.yahoo.omid.tso.messages.CommitQueryResponse;
 import com.yahoo.omid.tso.messages.CommitRequest;
@@ -37,37 +41,71 @@ import com.yahoo.omid.tso.messages.CommitResponse;
 import com.yahoo.omid.tso.messages.CommittedTransactionReport;
 import com.yahoo.omid.tso.messages.FullAbortRequest;
 import com.yahoo.omid.tso.messages.LargestDeletedTimestampReport;
+import com.yahoo.omid.tso.messages.TimestampBatchRequest;
+import com.yahoo.omid.tso.messages.TimestampBatchResponse;
 import com.yahoo.omid.tso.messages.TimestampRequest;
 import com.yahoo.omid.tso.messages.TimestampResponse;
 
 public class TSOEncoder extends OneToOneEncoder{
 
+   private boolean lengthPrefixed;
+
+   public TSOEncoder() {
+      this(false);
+   }
+
+   /**
+    * @param lengthPrefixed
+    *           start every message with its length, for a TSODecoder in
+    *           length prefixed mode. ChannelBuffers are sent as they are.
+    */
+   public TSOEncoder(boolean lengthPrefixed) {
+      this.lengthPrefixed = lengthPrefixed;
+   }
+
    //just override decode method
    protected Object encode(ChannelHandlerContext ctx, Channel channel, Object msg)
       throws Exception {
+      if (msg instanceof ChannelBuffer) {
+         return msg;
+      }
       ByteArrayOutputStream buffer = BufferPool.getBuffer();
       buffer.reset();
       DataOutputStream objWrapper = new DataOutputStream(buffer);
-      if (msg instanceof ChannelBuffer) {
-         return msg;
-      } else if (msg instanceof TimestampRequest) {
+      if (lengthPrefixed) {
+         // filled in below
+         objWrapper.writeInt(0);
+      }
+      if (msg instanceof TimestampRequest) {
          objWrapper.writeByte(TSOMessage.TimestampRequest);
       } else if (msg instanceof TimestampResponse) {
          objWrapper.writeByte(TSOMessage.TimestampResponse);
+      } else if (msg instanceof TimestampBatchRequest) {
+         objWrapper.writeByte(TSOMessage.TimestampBatchRequest);
+      } else if (msg instanceof TimestampBatchResponse) {
+         objWrapper.writeByte(TSOMessage.TimestampBatchResponse);
       } else if (msg instanceof CommitRequest) {
          objWrapper.writeByte(TSOMessage.CommitRequest);
       } else if (msg instanceof CommitResponse) {
          objWrapper.writeByte(TSOMessage.CommitResponse);
       } else if (msg instanceof AbortRequest) {
          objWrapper.writeByte(TSOMessage.AbortRequest);
+      } else if (msg instanceof AbortRangeRequest) {
+         objWrapper.writeByte(TSOMessage.AbortRangeRequest);
       } else if (msg instanceof FullAbortRequest) {
          objWrapper.writeByte(TSOMessage.FullAbortReport);
       } else if (msg instanceof CommitQueryRequest) {
          objWrapper.writeByte(TSOMessage.CommitQueryRequest);
       } else if (msg instanceof CommitQueryResponse) {
          objWrapper.writeByte(TSOMessage.CommitQueryResponse);
+      } else if (msg instanceof BatchCommitQueryRequest) {
+         objWrapper.writeByte(TSOMessage.BatchCommitQueryRequest);
+      } else if (msg instanceof BatchCommitQueryResponse) {
+         objWrapper.writeByte(TSOMessage.BatchCommitQueryResponse);
       } else if (msg instanceof AbortedTransactionReport) {
          objWrapper.writeByte(TSOMessage.AbortedTransactionReport);
+      } else if (msg instanceof BulkAbortedTransactionReport) {
+         objWrapper.writeByte(TSOMessage.BulkAbortedTransactionReport);
       } else if (msg instanceof CommittedTransactionReport) {
          objWrapper.writeByte(TSOMessage.CommittedTransactionReport);
       } else if (msg instanceof LargestDeletedTimestampReport) {
@@ -76,7 +114,15 @@ public class TSOEncoder extends OneToOneEncoder{
          objWrapper.writeByte(TSOMessage.ZipperState);
       } else throw new Exception("Wrong obj");
       ((TSOMessage)msg).writeObject(objWrapper);
-      ChannelBuffer result = ChannelBuffers.wrappedBuffer(buffer.toByteArray());
+      byte[] bytes = buffer.toByteArray();
+      if (lengthPrefixed) {
+         int length = bytes.length - 4;
+         bytes[0] = (byte) (length >>> 24);
+         bytes[1] = (byte) (length >>> 16);
+         bytes[2] = (byte) (length >>> 8);
+         bytes[3] = (byte) length;
+      }
+      ChannelBuffer result = ChannelBuffers.wrappedBuffer(bytes);
       BufferPool.pushBuffer(buffer);
       return result;
    }
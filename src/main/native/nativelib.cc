@@ -19,7 +19,7 @@
 #include <unistd.h>
 #include <stdlib.h>
 
-#include "com_yahoo_omid_tso_CommitHashMap.h"
+#include "com_yahoo_omid_tso_NativeCommitHashMap.h"
 
 #define MAX_KEY_SIZE 256
 /**
@@ -56,41 +56,41 @@ int tableLength;
 int threshold;
 
 /*
- * Class:     com_yahoo_omid_CommitHashMap
+ * Class:     com_yahoo_omid_tso_NativeCommitHashMap
  * Method:    gettotalput
  * Signature: ()J
  */
-JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_gettotalput
+JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_NativeCommitHashMap_gettotalput
 (JNIEnv * env, jclass jcls) {
    return totalput;
 }
 
 /*
- * Class:     com_yahoo_omid_CommitHashMap
+ * Class:     com_yahoo_omid_tso_NativeCommitHashMap
  * Method:    gettotalget
  * Signature: ()J
  */
-JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_gettotalget
+JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_NativeCommitHashMap_gettotalget
 (JNIEnv * env, jclass jcls) {
    return totalget;
 }
 
 /*
- * Class:     com_yahoo_omid_CommitHashMap
+ * Class:     com_yahoo_omid_tso_NativeCommitHashMap
  * Method:    gettotalwalkforput
  * Signature: ()J
  */
-JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_gettotalwalkforput
+JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_NativeCommitHashMap_gettotalwalkforput
 (JNIEnv * env, jclass jcls) {
    return totalwalkforput;
 }
 
 /*
- * Class:     com_yahoo_omid_CommitHashMap
+ * Class:     com_yahoo_omid_tso_NativeCommitHashMap
  * Method:    gettotalwalkforget
  * Signature: ()J
  */
-JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_gettotalwalkforget
+JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_NativeCommitHashMap_gettotalwalkforget
 (JNIEnv * env, jclass jcls) {
    return totalwalkforget;
 }
@@ -146,11 +146,11 @@ struct LargeEntry {
 };
 
 /*
- * Class:     CommitHashMap
+ * Class:     NativeCommitHashMap
  * Method:    init
  * Signature: ()V
  */
-JNIEXPORT void JNICALL Java_com_yahoo_omid_tso_CommitHashMap_init
+JNIEXPORT void JNICALL Java_com_yahoo_omid_tso_NativeCommitHashMap_init
 (JNIEnv * env, jobject jobj, jint initialCapacity, jint maxCommits,jfloat loadFactor) {
    tableLength = initialCapacity;
    threshold = (int) (initialCapacity * loadFactor);
@@ -192,19 +192,23 @@ JNIEXPORT void JNICALL Java_com_yahoo_omid_tso_CommitHashMap_init
 //          this hashtable.
 
 /*
- * Class:     CommitHashMap
+ * Class:     NativeCommitHashMap
  * Method:    get
  * Signature: (JI)J
  */
 
 jbyte keyarray[MAX_KEY_SIZE];
-JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_get
-(JNIEnv * env , jobject jobj, jbyteArray rowId, jbyteArray tableId, jint hash) {
+
+// copies the row id followed by the table id into keyarray
+static void loadKey(JNIEnv * env, jbyteArray rowId, jint rowOffset, jsize rowidsize,
+                    jbyteArray tableId, jint tableOffset, jsize tableidsize) {
+   env->GetByteArrayRegion(rowId,rowOffset,rowidsize,keyarray);
+   env->GetByteArrayRegion(tableId,tableOffset,tableidsize,keyarray + rowidsize * sizeof(jbyte));
+}
+
+// get of the key loaded in keyarray
+static jlong getLoadedKey(jsize rowidsize, jsize tableidsize, jint hash) {
    totalget++;
-   jsize rowidsize  = env->GetArrayLength(rowId);
-   jsize tableidsize  = env->GetArrayLength(tableId);
-   env->GetByteArrayRegion(rowId,0,rowidsize,keyarray);
-   env->GetByteArrayRegion(tableId,0,tableidsize,keyarray + rowidsize * sizeof(jbyte));
    char keyarraysize = (rowidsize + tableidsize) * sizeof(jbyte);
    int index = (hash & 0x7FFFFFFF) % tableLength;
    for (Entry* e = &(table[index].e1); e != NULL; e = e->next) {
@@ -218,19 +222,20 @@ JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_get
    return 0;
 }
 
-/*
- * Class:     CommitHashMap
- * Method:    put
- * Signature: (JJJI)Z
- */
-JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_put
-(JNIEnv * env , jobject jobj, jbyteArray rowId, jbyteArray tableId, jlong value, jint hash, jlong largestDeletedTimestamp) {
+JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_NativeCommitHashMap_get
+(JNIEnv * env , jobject jobj, jbyteArray rowId, jbyteArray tableId, jint hash) {
+   jsize rowidsize  = env->GetArrayLength(rowId);
+   jsize tableidsize  = env->GetArrayLength(tableId);
+   loadKey(env, rowId, 0, rowidsize, tableId, 0, tableidsize);
+   return getLoadedKey(rowidsize, tableidsize, hash);
+}
+
+// put of the key loaded in keyarray
+static jlong putLoadedKey(jsize rowidsize, jsize tableidsize, jlong value, jint hash, jlong largestDeletedTimestamp) {
    totalput++;
    int index = (hash & 0x7FFFFFFF) % tableLength;
    Entry* firstBucket = &(table[index].e1);
-   bool keyarrayloaded = false;
-   jsize rowidsize, tableidsize;
-   unsigned int keyarraysize;
+   unsigned int keyarraysize = (rowidsize + tableidsize) * sizeof(jbyte);
 
    Entry* lastEntry = NULL;//after the loop, it points to the last entry
    for (Entry* e = firstBucket; e != NULL; lastEntry = e, e = e->next) {
@@ -244,20 +249,12 @@ JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_put
             largestDeletedTimestamp = e->value;
          }
 
-         if (keyarrayloaded == false) {
-            rowidsize  = env->GetArrayLength(rowId);
-            tableidsize  = env->GetArrayLength(tableId);
-         }
          if (e->key == NULL || (e->rowidsize + e->tableidsize) < (rowidsize + tableidsize)) {//not reusable 
             free(e->key);
             //jbyte* key = (jbyte *)malloc(len * sizeof(jbyte));
             e->key = (jbyte *)malloc((rowidsize + tableidsize) * sizeof(jbyte));
          }
-         if (keyarrayloaded == false) {
-            env->GetByteArrayRegion(rowId,0,rowidsize,e->key);
-            env->GetByteArrayRegion(tableId,0,tableidsize,e->key + rowidsize * sizeof(jbyte));
-         }
-         else memcpy(e->key, keyarray, keyarraysize);
+         memcpy(e->key, keyarray, keyarraysize);
 
          e->rowidsize = rowidsize;
          e->tableidsize = tableidsize;
@@ -268,14 +265,6 @@ JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_put
          return largestDeletedTimestamp;
       }
 
-      if (keyarrayloaded == false) {
-         rowidsize  = env->GetArrayLength(rowId);
-         tableidsize  = env->GetArrayLength(tableId);
-         keyarraysize = (rowidsize + tableidsize) * sizeof(jbyte);
-         env->GetByteArrayRegion(rowId,0,rowidsize,keyarray);
-         env->GetByteArrayRegion(tableId,0,tableidsize,keyarray + rowidsize * sizeof(jbyte));
-         keyarrayloaded = true;
-      }
       if (e->hash == hash && e->rowidsize == rowidsize && e->tableidsize == tableidsize) {
          if (memcmp(e->key, keyarray, keyarraysize)==0)  {
             //e->tag = tag;
@@ -291,16 +280,8 @@ JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_put
    LargeEntry* le = new LargeEntry();
    Entry* newentry = &(le->e1);
    lastEntry->next = newentry;
-   if (keyarrayloaded == false) {
-      rowidsize  = env->GetArrayLength(rowId);
-      tableidsize  = env->GetArrayLength(tableId);
-   }
    newentry->key = (jbyte *)malloc((rowidsize + tableidsize) * sizeof(jbyte));
-   if (keyarrayloaded == false) {
-      env->GetByteArrayRegion(rowId,0,rowidsize,newentry->key);
-      env->GetByteArrayRegion(tableId,0,tableidsize,newentry->key + rowidsize * sizeof(jbyte));
-   }
-   else memcpy(newentry->key, keyarray, keyarraysize);
+   memcpy(newentry->key, keyarray, keyarraysize);
    newentry->rowidsize = rowidsize;
    newentry->tableidsize = tableidsize;
    newentry->hash = hash;
@@ -316,8 +297,21 @@ JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_put
    return largestDeletedTimestamp;
 }
 
+/*
+ * Class:     NativeCommitHashMap
+ * Method:    put
+ * Signature: (JJJI)Z
+ */
+JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_NativeCommitHashMap_put
+(JNIEnv * env , jobject jobj, jbyteArray rowId, jbyteArray tableId, jlong value, jint hash, jlong largestDeletedTimestamp) {
+   jsize rowidsize  = env->GetArrayLength(rowId);
+   jsize tableidsize  = env->GetArrayLength(tableId);
+   loadKey(env, rowId, 0, rowidsize, tableId, 0, tableidsize);
+   return putLoadedKey(rowidsize, tableidsize, value, hash, largestDeletedTimestamp);
+}
+
 
-JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_getCommittedTimestamp(JNIEnv *, jobject, jlong startTimestamp) {
+JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_NativeCommitHashMap_getCommittedTimestamp(JNIEnv *, jobject, jlong startTimestamp) {
    int key = startTimestamp % gmaxCommits;
    StartCommit& entry = commitTable[key];
    if (entry.start == startTimestamp)
@@ -325,7 +319,7 @@ JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_getCommittedTimest
    return 0;//which means that there is not such entry in the array, either deleted or never entered
 }
 
-JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_setCommitted(JNIEnv * env , jobject jobj, jlong startTimestamp, jlong commitTimestamp, jlong largestDeletedTimestamp) {
+JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_NativeCommitHashMap_setCommitted(JNIEnv * env , jobject jobj, jlong startTimestamp, jlong commitTimestamp, jlong largestDeletedTimestamp) {
    int key = startTimestamp % gmaxCommits;
    StartCommit& entry = commitTable[key];
    //assume(entry.start != startTimestamp);
@@ -336,4 +330,72 @@ JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_CommitHashMap_setCommitted(JNIEn
    return largestDeletedTimestamp;
 }
 
+/*
+ * Class:     NativeCommitHashMap
+ * Method:    copyCommits
+ * Signature: (I[J[J)V
+ */
+JNIEXPORT void JNICALL Java_com_yahoo_omid_tso_NativeCommitHashMap_copyCommits
+(JNIEnv * env, jobject jobj, jint from, jlongArray startTimestamps, jlongArray commitTimestamps) {
+   jsize n = env->GetArrayLength(startTimestamps);
+   jlong* starts = env->GetLongArrayElements(startTimestamps, NULL);
+   jlong* commits = env->GetLongArrayElements(commitTimestamps, NULL);
+   for (jsize i = 0; i < n; i++) {
+      StartCommit& entry = commitTable[from + i];
+      starts[i] = entry.start;
+      commits[i] = entry.commit;
+   }
+   env->ReleaseLongArrayElements(startTimestamps, starts, 0);
+   env->ReleaseLongArrayElements(commitTimestamps, commits, 0);
+}
+
+
 
+/*
+ * Class:     NativeCommitHashMap
+ * Method:    checkAndPut
+ * Signature: (I[[B[[B[IJJJ)J
+ *
+ * Checks the first count rows of a transaction and, if none conflicts, puts
+ * all of them. The ids are regions of the given arrays, described by five
+ * ints per row in slices: row offset, row length, table offset, table
+ * length and hash. The buckets of every row are prefetched before the check.
+ * Returns -1 on conflict, the largest deleted timestamp otherwise.
+ */
+JNIEXPORT jlong JNICALL Java_com_yahoo_omid_tso_NativeCommitHashMap_checkAndPut
+(JNIEnv * env, jobject jobj, jint n, jobjectArray rowIds, jobjectArray tableIds, jintArray slices, jlong startTimestamp, jlong commitTimestamp, jlong largestDeletedTimestamp) {
+   jint* sl = env->GetIntArrayElements(slices, NULL);
+   for (int i = 0; i < n; i++) {
+      __builtin_prefetch(&table[(sl[5 * i + 4] & 0x7FFFFFFF) % tableLength]);
+   }
+
+   for (int i = 0; i < n; i++) {
+      jint* s = sl + 5 * i;
+      jbyteArray rowId = (jbyteArray) env->GetObjectArrayElement(rowIds, i);
+      jbyteArray tableId = (jbyteArray) env->GetObjectArrayElement(tableIds, i);
+      loadKey(env, rowId, s[0], s[1], tableId, s[2], s[3]);
+      env->DeleteLocalRef(rowId);
+      env->DeleteLocalRef(tableId);
+      jlong value = getLoadedKey(s[1], s[3], s[4]);
+      if ((value != 0 && value > startTimestamp) || (value == 0 && largestDeletedTimestamp > startTimestamp)) {
+         env->ReleaseIntArrayElements(slices, sl, JNI_ABORT);
+         return -1;
+      }
+   }
+
+   jlong result = largestDeletedTimestamp;
+   for (int i = 0; i < n; i++) {
+      jint* s = sl + 5 * i;
+      jbyteArray rowId = (jbyteArray) env->GetObjectArrayElement(rowIds, i);
+      jbyteArray tableId = (jbyteArray) env->GetObjectArrayElement(tableIds, i);
+      loadKey(env, rowId, s[0], s[1], tableId, s[2], s[3]);
+      env->DeleteLocalRef(rowId);
+      env->DeleteLocalRef(tableId);
+      jlong deleted = putLoadedKey(s[1], s[3], commitTimestamp, s[4], largestDeletedTimestamp);
+      if (deleted > result) {
+         result = deleted;
+      }
+   }
+   env->ReleaseIntArrayElements(slices, sl, JNI_ABORT);
+   return result;
+}
@@ -0,0 +1,56 @@
+package com.yahoo.omid.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestAbortedSet {
+
+    @Test
+    public void testAddRemoveAndGrowth() {
+        AbortedSet aborted = new AbortedSet(4);
+        assertTrue(aborted.add(10));
+        assertFalse(aborted.add(10));
+        assertFalse(aborted.add(0));
+        assertTrue(aborted.contains(10));
+        assertFalse(aborted.contains(11));
+
+        long[] bulk = new long[1000];
+        for (int i = 0; i < bulk.length; ++i) {
+            bulk[i] = 100 + i;
+        }
+        aborted.addAll(bulk, 1, bulk.length - 1);
+        assertFalse(aborted.contains(100));
+        assertTrue(aborted.contains(101));
+        assertTrue(aborted.contains(1099));
+        assertEquals(1000, aborted.size());
+
+        for (int i = 1; i < bulk.length; i += 2) {
+            assertTrue(aborted.remove(bulk[i]));
+        }
+        assertFalse(aborted.remove(101));
+        assertFalse(aborted.contains(101));
+        assertTrue(aborted.contains(102));
+        assertTrue(aborted.contains(10));
+        assertEquals(500, aborted.size());
+
+        aborted.clear();
+        assertFalse(aborted.contains(10));
+        assertEquals(0, aborted.size());
+    }
+
+    @Test
+    public void testRemovedSlotsAreReused() {
+        AbortedSet aborted = new AbortedSet(8);
+        for (long ts = 1; ts < 100000; ++ts) {
+            aborted.add(ts);
+            aborted.remove(ts);
+        }
+        assertEquals(0, aborted.size());
+        aborted.add(7);
+        assertTrue(aborted.contains(7));
+        assertFalse(aborted.contains(8));
+    }
+}
@@ -1,11 +1,19 @@
 package com.yahoo.omid.replication;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
@@ -13,6 +21,7 @@ import org.jboss.netty.channel.ChannelDownstreamHandler;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
 import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
 import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
@@ -93,6 +102,249 @@ public class TestSharedMessageBuffer {
         assertEquals("Didn't check the generated number of messages", ITERATIONS, checked);
     }
 
+    /**
+     * Flushes running while a writer commits: after awaitCommitInProgress,
+     * every commit allocated before the flush started must be in the delta
+     */
+    @Test(timeout = 60000)
+    public void testFlushesDuringCommits() throws Exception {
+        final int COMMITS = 200000;
+        final SharedMessageBuffer smb = new SharedMessageBuffer();
+        final AtomicLong allocated = new AtomicLong();
+        final DecoderEmbedder<TSOMessage> decoder = new DecoderEmbedder<TSOMessage>(new TSODecoder(new Zipper()));
+        ChannelDownstreamHandler handler = new SimpleChannelDownstreamHandler();
+        EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(handler);
+        ChannelHandlerContext ctx = encoder.getPipeline().getContext(handler);
+        Channel channel = ctx.getChannel();
+        ReadingBuffer rb = smb.getReadingBuffer(ctx);
+        rb.initializeIndexes();
+
+        Thread writer = new Thread() {
+            public void run() {
+                for (int i = 1; i <= COMMITS; ++i) {
+                    smb.beginCommit();
+                    long commitTimestamp = allocated.incrementAndGet();
+                    if (i % 64 == 0) {
+                        // hold some commits open while the reader waits
+                        Thread.yield();
+                    }
+                    smb.writeCommit(commitTimestamp, commitTimestamp);
+                    smb.endCommit();
+                }
+            }
+        };
+        writer.start();
+
+        long lastCommit = 0;
+        while (lastCommit < COMMITS) {
+            long startTimestamp = allocated.get();
+            smb.awaitCommitInProgress();
+            ChannelFuture future = Channels.succeededFuture(channel);
+            ChannelBuffer buffer = rb.flush(future);
+            Channels.write(ctx, future, buffer);
+            forwardMessages(encoder, decoder);
+
+            TSOMessage msg;
+            while ((msg = decoder.poll()) != null) {
+                CommittedTransactionReport ctr = (CommittedTransactionReport) msg;
+                assertEquals("Commits out of order", lastCommit + 1, ctr.commitTimestamp);
+                lastCommit = ctr.commitTimestamp;
+            }
+            assertTrue("Commit " + startTimestamp + " missing from the flush", lastCommit >= startTimestamp);
+        }
+        writer.join();
+    }
+
+    @Test(timeout = 10000)
+    public void testAwaitIsWokenByEndCommit() throws Exception {
+        final SharedMessageBuffer smb = new SharedMessageBuffer();
+        // no commit in progress
+        smb.awaitCommitInProgress();
+
+        smb.beginCommit();
+        final CountDownLatch waiting = new CountDownLatch(1);
+        Thread flusher = new Thread() {
+            public void run() {
+                waiting.countDown();
+                smb.awaitCommitInProgress();
+            }
+        };
+        flusher.start();
+        waiting.await();
+        flusher.join(100);
+        assertTrue("Didn't wait for the commit in progress", flusher.isAlive());
+        smb.endCommit();
+        flusher.join(5000);
+        assertFalse("Not woken by endCommit", flusher.isAlive());
+    }
+
+    /**
+     * A client that stopped reading: its channel isn't writable and it holds
+     * the log, so it is dropped once too many segments are in use
+     */
+    @Test(timeout = 60000)
+    public void testNonReadingClientIsDropped() throws Exception {
+        int capacity = ReadersAwareBuffer.CAPACITY;
+        int maxBuffers = SharedMessageBuffer.MAX_BUFFERS;
+        ReadersAwareBuffer.CAPACITY = 1024;
+        SharedMessageBuffer.MAX_BUFFERS = 4;
+        try {
+            SharedMessageBuffer smb = new SharedMessageBuffer();
+            FakeClient client = new FakeClient();
+            ReadingBuffer rb = smb.getReadingBuffer(client.ctx);
+            assertTrue(rb.claimSync());
+            rb.initializeIndexes();
+            rb.setSynced();
+            rb.flush();
+
+            client.writable = false;
+            writeMessages(smb, 100000);
+            waitForResyncs(smb, 1);
+
+            assertTrue(rb.isDropped());
+            assertEquals("Dropped client still holds segments", 1, smb.getLiveBuffers());
+            assertTrue("Dropped client isn't bootstrapped again", rb.claimSync());
+        } finally {
+            ReadersAwareBuffer.CAPACITY = capacity;
+            SharedMessageBuffer.MAX_BUFFERS = maxBuffers;
+        }
+    }
+
+    /**
+     * A client that stops reading while it is bootstrapped can't be flushed,
+     * it is dropped as well, which cancels its bootstrap
+     */
+    @Test(timeout = 60000)
+    public void testBootstrappingClientIsDropped() throws Exception {
+        int capacity = ReadersAwareBuffer.CAPACITY;
+        int maxBuffers = SharedMessageBuffer.MAX_BUFFERS;
+        ReadersAwareBuffer.CAPACITY = 1024;
+        SharedMessageBuffer.MAX_BUFFERS = 4;
+        try {
+            SharedMessageBuffer smb = new SharedMessageBuffer();
+            FakeClient client = new FakeClient();
+            ReadingBuffer rb = smb.getReadingBuffer(client.ctx);
+            assertTrue(rb.claimSync());
+            rb.initializeIndexes();
+            assertFalse(rb.isDropped());
+
+            client.writable = false;
+            writeMessages(smb, 100000);
+            waitForResyncs(smb, 1);
+
+            assertTrue(rb.isDropped());
+            assertEquals("Bootstrapping client still holds segments", 1, smb.getLiveBuffers());
+            assertTrue(rb.claimSync());
+        } finally {
+            ReadersAwareBuffer.CAPACITY = capacity;
+            SharedMessageBuffer.MAX_BUFFERS = maxBuffers;
+        }
+    }
+
+    /**
+     * A client still reading its bootstrap is left alone
+     */
+    @Test(timeout = 60000)
+    public void testReadingBootstrapIsKept() throws Exception {
+        int capacity = ReadersAwareBuffer.CAPACITY;
+        int maxBuffers = SharedMessageBuffer.MAX_BUFFERS;
+        ReadersAwareBuffer.CAPACITY = 1024;
+        SharedMessageBuffer.MAX_BUFFERS = 4;
+        try {
+            SharedMessageBuffer smb = new SharedMessageBuffer();
+            FakeClient slow = new FakeClient();
+            FakeClient stalled = new FakeClient();
+            ReadingBuffer slowRb = smb.getReadingBuffer(slow.ctx);
+            ReadingBuffer stalledRb = smb.getReadingBuffer(stalled.ctx);
+            for (ReadingBuffer rb : new ReadingBuffer[] { slowRb, stalledRb }) {
+                assertTrue(rb.claimSync());
+                rb.initializeIndexes();
+            }
+
+            stalled.writable = false;
+            writeMessages(smb, 100000);
+            waitForResyncs(smb, 1);
+
+            assertTrue(stalledRb.isDropped());
+            assertFalse(slowRb.isDropped());
+            assertEquals(1, smb.getResyncs());
+
+            // once bootstrapped it gets the whole log, and releases it when the
+            // writes complete
+            slowRb.setSynced();
+            slowRb.flush();
+            assertTrue(smb.getLiveBuffers() > 1);
+            while (smb.getLiveBuffers() > 1) {
+                // a background flush may still be writing to it
+                slow.completeWrites();
+                Thread.sleep(10);
+            }
+        } finally {
+            ReadersAwareBuffer.CAPACITY = capacity;
+            SharedMessageBuffer.MAX_BUFFERS = maxBuffers;
+        }
+    }
+
+    private void writeMessages(SharedMessageBuffer smb, int count) {
+        for (int i = 0; i < count; ++i) {
+            smb.writeCommit(i, i + 1);
+        }
+    }
+
+    private void waitForResyncs(SharedMessageBuffer smb, long resyncs) throws InterruptedException {
+        while (smb.getResyncs() < resyncs) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Channel of a client that doesn't complete its writes until told to.
+     * The test decides whether it is writable.
+     */
+    private static class FakeClient implements InvocationHandler {
+        volatile boolean writable = true;
+        private final List<ChannelFuture> pending = new ArrayList<ChannelFuture>();
+        final Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[] { Channel.class }, this);
+        final ChannelHandlerContext ctx = (ChannelHandlerContext) Proxy.newProxyInstance(
+                ChannelHandlerContext.class.getClassLoader(), new Class<?>[] { ChannelHandlerContext.class }, this);
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "FakeClient";
+            } else if (name.equals("isWritable")) {
+                return writable;
+            } else if (name.equals("getChannel")) {
+                return channel;
+            } else if (name.equals("getRemoteAddress")) {
+                return null;
+            } else if (name.equals("sendDownstream")) {
+                synchronized (pending) {
+                    pending.add(((MessageEvent) args[0]).getFuture());
+                }
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        void completeWrites() {
+            List<ChannelFuture> writes;
+            synchronized (pending) {
+                writes = new ArrayList<ChannelFuture>(pending);
+                pending.clear();
+            }
+            for (ChannelFuture future : writes) {
+                future.setSuccess();
+            }
+        }
+    }
+
     private int checkExpectedMessage(DecoderEmbedder<TSOMessage> decoder, Deque<TSOMessage> expectedMessages) {
         int checked = 0;
         while (!expectedMessages.isEmpty()) {
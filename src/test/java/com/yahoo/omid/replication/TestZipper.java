@@ -1,8 +1,13 @@
 package com.yahoo.omid.replication;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.junit.Test;
@@ -53,4 +58,106 @@ public class TestZipper {
             assertThat("startDiff: " + tsDiff, ctr.startTimestamp, is(st));
         }
     }
+
+    /**
+     * Records the batches as strings, to compare them with the messages
+     */
+    private static class Recorder implements ReplicationBatch.Visitor {
+        List<String> applied = new ArrayList<String>();
+
+        @Override
+        public void committed(long startTimestamp, long commitTimestamp) {
+            applied.add("commit " + startTimestamp + " " + commitTimestamp);
+        }
+
+        @Override
+        public void halfAborted(long startTimestamp) {
+            applied.add("halfAbort " + startTimestamp);
+        }
+
+        @Override
+        public void fullAborted(long startTimestamp) {
+            applied.add("fullAbort " + startTimestamp);
+        }
+
+        @Override
+        public void largestDeletedTimestamp(long largestDeletedTimestamp) {
+            applied.add("largestDeleted " + largestDeletedTimestamp);
+        }
+    }
+
+    @Test
+    public void testBulkDecodeRoundTrip() {
+        final int MESSAGES = 100000;
+        Random rand = new Random(42);
+        Zipper encoder = new Zipper();
+        ChannelBuffer encoded = ChannelBuffers.dynamicBuffer();
+        List<String> expected = new ArrayList<String>();
+        long start = 1000, commit = 2000;
+        for (int i = 0; i < MESSAGES; ++i) {
+            // mostly small deltas, with some large jumps to get every encoding
+            long jump = rand.nextInt(10) == 0 ? rand.nextInt(1 << 20) - (1 << 19) : rand.nextInt(64) - 32;
+            switch (rand.nextInt(4)) {
+            case 0:
+                start += jump;
+                commit += rand.nextInt(3) == 0 ? 1 + rand.nextInt(40000) : 1;
+                encoder.encodeCommit(encoded, start, commit);
+                expected.add("commit " + start + " " + commit);
+                break;
+            case 1:
+                encoder.encodeHalfAbort(encoded, start + jump);
+                expected.add("halfAbort " + (start + jump));
+                break;
+            case 2:
+                encoder.encodeFullAbort(encoded, start + jump);
+                expected.add("fullAbort " + (start + jump));
+                break;
+            case 3:
+                encoder.encodeLargestIncrease(encoded, start);
+                expected.add("largestDeleted " + start);
+                break;
+            }
+        }
+
+        // feed it in random chunks, like the frames of a channel
+        Zipper decoder = new Zipper();
+        Recorder recorder = new Recorder();
+        ChannelBuffer received = ChannelBuffers.dynamicBuffer();
+        while (encoded.readable()) {
+            int chunk = Math.min(encoded.readableBytes(), 1 + rand.nextInt(100));
+            received.writeBytes(encoded, chunk);
+            ReplicationBatch batch = new ReplicationBatch(4);
+            decoder.decodeBulk(received, batch);
+            batch.apply(recorder);
+            received.discardReadBytes();
+        }
+        assertEquals("Some bytes weren't decoded", 0, received.readableBytes());
+        assertEquals(expected, recorder.applied);
+    }
+
+    @Test
+    public void testBulkDecodeStopsAtOtherMessages() {
+        Zipper encoder = new Zipper();
+        ChannelBuffer encoded = ChannelBuffers.dynamicBuffer();
+        encoder.encodeCommit(encoded, 10, 11);
+        encoder.encodeHalfAbort(encoded, 12);
+        encoded.writeByte(TSOMessage.ZipperState);
+        new ZipperState(100, 200, 300, 400).writeObject(encoded);
+        encoder.lastFullAbortedTimestamp = 400;
+        encoder.encodeFullAbort(encoded, 413);
+
+        Zipper decoder = new Zipper();
+        ReplicationBatch batch = new ReplicationBatch();
+        assertEquals(2, decoder.decodeBulk(encoded, batch));
+        assertEquals(0, decoder.decodeBulk(encoded, new ReplicationBatch()));
+
+        ZipperState state = (ZipperState) decoder.decodeMessage(encoded);
+        assertEquals(400, state.getLastFullAbortedTimestamp());
+
+        batch = new ReplicationBatch();
+        assertEquals(1, decoder.decodeBulk(encoded, batch));
+        Recorder recorder = new Recorder();
+        batch.apply(recorder);
+        assertEquals("fullAbort 413", recorder.applied.get(0));
+    }
 }
@@ -55,13 +55,15 @@ public class TSOTestBase {
    final static public RowKey r1 = new RowKey(new byte[] { 0xd, 0xe, 0xa, 0xd }, new byte[] { 0xb, 0xe, 0xe, 0xf });
    final static public RowKey r2 = new RowKey(new byte[] { 0xb, 0xa, 0xa, 0xd }, new byte[] { 0xc, 0xa, 0xf, 0xe });
 
-   public static void setupClient() throws IOException {
+   public static void setupClient(boolean bulkDecode) throws IOException {
 
       // *** Start the Netty configuration ***
       
       Configuration conf = HBaseConfiguration.create();
       conf.set("tso.host", "localhost");
       conf.setInt("tso.port", 1234);
+      // most tests check the replication reports one by one
+      conf.setBoolean("tso.replication.bulkDecode", bulkDecode);
 
       // Start client with Nb of active threads = 3 as maximum.
       channelFactory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(),
@@ -148,7 +150,9 @@ public class TSOTestBase {
         */
        Thread.sleep(500);
        
-      tso = new TSOServer(TSOServerConfig.configFactory(1234, 0, recoveryEnabled(), 4, 2, new String("localhost:2181")));
+      TSOServerConfig config = TSOServerConfig.configFactory(1234, 0, recoveryEnabled(), 4, 2, new String("localhost:2181"));
+      config.setPipelined(pipelined());
+      tso = new TSOServer(config);
       tsothread = new Thread(tso);
       
       LOG.info("Starting TSO");
@@ -160,7 +164,7 @@ public class TSOTestBase {
       
       Thread.currentThread().setName("JUnit Thread");
       
-      setupClient();
+      setupClient(bulkDecode());
    }
    
    @After
@@ -194,6 +198,18 @@ public class TSOTestBase {
       return false;
    }
 
+   protected boolean pipelined() {
+      return false;
+   }
+
+   /**
+    * The replication reports decoded in bulk don't reach the
+    * TestClientHandler message queue, only the client state
+    */
+   protected boolean bulkDecode() {
+      return false;
+   }
+
    private static void waitForSocketListening(String host, int port) throws UnknownHostException, IOException,
          InterruptedException {
       while (true) {
@@ -0,0 +1,54 @@
+package com.yahoo.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import com.yahoo.omid.tso.messages.BulkAbortedTransactionReport;
+
+public class TestBulkAbortedTransactionReport {
+
+    private static BulkAbortedTransactionReport roundTrip(BulkAbortedTransactionReport report) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        report.writeObject(new DataOutputStream(baos));
+        ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(baos.toByteArray());
+        BulkAbortedTransactionReport read = new BulkAbortedTransactionReport();
+        read.readObject(buffer);
+        assertEquals(0, buffer.readableBytes());
+        return read;
+    }
+
+    @Test
+    public void testDeltas() throws Exception {
+        long[] aborted = new long[] { 7, 8, 100, 100 + 128, 100 + 128 + 20000, 1L << 40, (1L << 40) + 1 };
+        // only the middle of the array goes in the message
+        BulkAbortedTransactionReport read = roundTrip(new BulkAbortedTransactionReport(aborted, 1, 5));
+        assertEquals(5, read.count);
+        for (int i = 0; i < 5; ++i) {
+            assertEquals(aborted[i + 1], read.startTimestamps[read.offset + i]);
+        }
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        long[] aborted = new long[1000];
+        for (int i = 0; i < aborted.length; ++i) {
+            aborted[i] = 1000000 + 3 * i;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new BulkAbortedTransactionReport(aborted, 0, aborted.length).writeObject(new DataOutputStream(baos));
+        // count, first and one byte per delta
+        assertEquals(4 + 8 + aborted.length - 1, baos.size());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        BulkAbortedTransactionReport read = roundTrip(new BulkAbortedTransactionReport(new long[0], 0, 0));
+        assertEquals(0, read.count);
+    }
+}
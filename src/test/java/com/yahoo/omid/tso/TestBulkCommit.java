@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.yahoo.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.yahoo.omid.client.TSOClient;
+import com.yahoo.omid.tso.messages.CommitRequest;
+import com.yahoo.omid.tso.messages.CommitResponse;
+import com.yahoo.omid.tso.messages.TimestampRequest;
+import com.yahoo.omid.tso.messages.TimestampResponse;
+
+/**
+ * Runs the TestCommit tests with the replication reports decoded in bulk, as
+ * the clients do by default, and checks they are applied to the client state
+ */
+public class TestBulkCommit extends TestCommit {
+
+   @Override
+   protected boolean bulkDecode() {
+      return true;
+   }
+
+   @Test
+   public void testBulkReplication() throws Exception {
+      clientHandler.setAutoFullAbort(false);
+
+      clientHandler.sendMessage(new TimestampRequest());
+      clientHandler.receiveBootstrap();
+      TimestampResponse tr1 = clientHandler.receiveMessage(TimestampResponse.class);
+      clientHandler.sendMessage(new TimestampRequest());
+      TimestampResponse tr2 = clientHandler.receiveMessage(TimestampResponse.class);
+
+      clientHandler.sendMessage(new CommitRequest(tr1.timestamp, new RowKey[] { r1 }));
+      CommitResponse cr1 = clientHandler.receiveMessage(CommitResponse.class);
+      assertTrue(cr1.committed);
+      clientHandler.sendMessage(new CommitRequest(tr2.timestamp, new RowKey[] { r1 }));
+      CommitResponse cr2 = clientHandler.receiveMessage(CommitResponse.class);
+      assertFalse(cr2.committed);
+
+      // the reports come before the next timestamp, but never reach the queue
+      clientHandler.sendMessage(new TimestampRequest());
+      TimestampResponse tr3 = clientHandler.receiveMessage(TimestampResponse.class);
+
+      assertEquals(cr1.commitTimestamp, clientHandler.getCommitted().getCommit(tr1.timestamp));
+      long asked = TSOClient.askedTSO;
+      assertTrue(clientHandler.validRead(tr1.timestamp, tr3.timestamp));
+      assertFalse(clientHandler.validRead(tr2.timestamp, tr3.timestamp));
+      assertEquals("answered locally", asked, TSOClient.askedTSO);
+
+      // the other client gets them too
+      secondClientHandler.sendMessage(new TimestampRequest());
+      secondClientHandler.receiveBootstrap();
+      secondClientHandler.receiveMessage(TimestampResponse.class);
+      assertEquals(cr1.commitTimestamp, secondClientHandler.getCommitted().getCommit(tr1.timestamp));
+   }
+}
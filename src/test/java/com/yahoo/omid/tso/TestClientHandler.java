@@ -35,16 +35,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.yahoo.omid.client.SyncAbortCompleteCallback;
+import com.yahoo.omid.client.SyncBatchCommitQueryCallback;
 import com.yahoo.omid.client.SyncCommitCallback;
 import com.yahoo.omid.client.SyncCommitQueryCallback;
 import com.yahoo.omid.client.SyncCreateCallback;
 import com.yahoo.omid.client.TSOClient;
 import com.yahoo.omid.replication.ZipperState;
 import com.yahoo.omid.tso.messages.AbortedTransactionReport;
+import com.yahoo.omid.tso.messages.BatchCommitQueryRequest;
+import com.yahoo.omid.tso.messages.BulkAbortedTransactionReport;
 import com.yahoo.omid.tso.messages.CommitQueryRequest;
 import com.yahoo.omid.tso.messages.CommitRequest;
 import com.yahoo.omid.tso.messages.CommitResponse;
 import com.yahoo.omid.tso.messages.FullAbortRequest;
+import com.yahoo.omid.tso.messages.TimestampBatchRequest;
 import com.yahoo.omid.tso.messages.TimestampRequest;
 
 /**
@@ -95,9 +99,14 @@ public class TestClientHandler extends TSOClient {
          commit(cr.startTimestamp, cr.rows, new SyncCommitCallback());
       } else if (msg instanceof TimestampRequest) {
          getNewTimestamp(new SyncCreateCallback());
+      } else if (msg instanceof TimestampBatchRequest) {
+         prefetchTimestamps(((TimestampBatchRequest) msg).count);
       } else if (msg instanceof CommitQueryRequest) {
          CommitQueryRequest cqr = (CommitQueryRequest) msg;
          isCommitted(cqr.startTimestamp, cqr.queryTimestamp, new SyncCommitQueryCallback());
+      } else if (msg instanceof BatchCommitQueryRequest) {
+         BatchCommitQueryRequest bcqr = (BatchCommitQueryRequest) msg;
+         isCommitted(bcqr.startTimestamp, bcqr.queryTimestamps, bcqr.count, new SyncBatchCommitQueryCallback());
       } else if (msg instanceof FullAbortRequest) {
          FullAbortRequest atr = (FullAbortRequest) msg;
          completeAbort(atr.startTimestamp, new SyncAbortCompleteCallback());
@@ -139,7 +148,8 @@ public class TestClientHandler extends TSOClient {
       Object msg = null;
       receiveMessage(ZipperState.class);
       // Receive all AbortedTransactionReports
-      while ( (msg = receiveMessage()) instanceof AbortedTransactionReport);
+      while ( (msg = receiveMessage()) instanceof AbortedTransactionReport
+            || msg instanceof BulkAbortedTransactionReport);
       messageQueue.add((TSOMessage) msg);
    }
 
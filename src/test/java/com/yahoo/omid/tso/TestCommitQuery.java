@@ -23,6 +23,8 @@ import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
 import com.yahoo.omid.tso.messages.AbortedTransactionReport;
+import com.yahoo.omid.tso.messages.BatchCommitQueryRequest;
+import com.yahoo.omid.tso.messages.BatchCommitQueryResponse;
 import com.yahoo.omid.tso.messages.CommitQueryRequest;
 import com.yahoo.omid.tso.messages.CommitQueryResponse;
 import com.yahoo.omid.tso.messages.CommitRequest;
@@ -109,4 +111,41 @@ public class TestCommitQuery extends TSOTestBase {
       assertTrue(cqr5.committed);
       assertFalse(cqr5.retry);
    }
+
+   @Test
+   public void testBatchCommitQuery() throws Exception {
+      clientHandler.setAutoFullAbort(false);
+
+      clientHandler.sendMessage(new TimestampRequest());
+      clientHandler.receiveBootstrap();
+      TimestampResponse tr1 = clientHandler.receiveMessage(TimestampResponse.class);
+      clientHandler.sendMessage(new TimestampRequest());
+      TimestampResponse tr2 = clientHandler.receiveMessage(TimestampResponse.class);
+
+      clientHandler.sendMessage(new CommitRequest(tr1.timestamp, new RowKey[] { r1 }));
+      CommitResponse cr1 = clientHandler.receiveMessage(CommitResponse.class);
+      assertTrue(cr1.committed);
+      clientHandler.sendMessage(new CommitRequest(tr2.timestamp, new RowKey[] { r1 }));
+      CommitResponse cr2 = clientHandler.receiveMessage(CommitResponse.class);
+      assertFalse(cr2.committed);
+
+      clientHandler.sendMessage(new TimestampRequest());
+      clientHandler.receiveMessage(CommittedTransactionReport.class);
+      clientHandler.receiveMessage(AbortedTransactionReport.class);
+      TimestampResponse tr3 = clientHandler.receiveMessage(TimestampResponse.class);
+
+      // committed and half aborted, answered in order
+      long[] queries = new long[] { tr1.timestamp, tr2.timestamp };
+      clientHandler.sendMessage(new BatchCommitQueryRequest(tr3.timestamp, queries, queries.length));
+      BatchCommitQueryResponse bcqr = clientHandler.receiveMessage(BatchCommitQueryResponse.class);
+      assertEquals(tr3.timestamp, bcqr.startTimestamp);
+      assertEquals(queries.length, bcqr.count);
+      for (int i = 0; i < queries.length; ++i) {
+         assertEquals(queries[i], bcqr.queryTimestamps[i]);
+      }
+      assertTrue(bcqr.committed[0]);
+      assertEquals(cr1.commitTimestamp, bcqr.commitTimestamps[0]);
+      assertFalse(bcqr.committed[1]);
+      assertFalse(bcqr.retry[1]);
+   }
 }
\ No newline at end of file
@@ -0,0 +1,54 @@
+package com.yahoo.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestCommitted {
+
+    @Test
+    public void testCommitAndEviction() {
+        long bucket = CommitBucket.getBucketSize();
+        Committed committed = new Committed(4);
+        committed.commit(1, 2);
+        committed.commit(bucket + 1, bucket + 2);
+        assertEquals(2, committed.getCommit(1));
+        assertEquals(bucket + 2, committed.getCommit(bucket + 1));
+        assertEquals(-1, committed.getCommit(3));
+
+        // the bucket of the raised timestamp is kept
+        committed.raiseLargestDeletedTransaction(bucket + 1);
+        assertEquals(-1, committed.getCommit(1));
+        assertEquals(bucket + 2, committed.getCommit(bucket + 1));
+
+        // late commits of deleted transactions are ignored
+        committed.commit(2, bucket + 3);
+        assertEquals(-1, committed.getCommit(2));
+        assertEquals(0, committed.getOverflowTimestamp());
+
+        assertEquals(3, committed.getHits());
+        assertEquals(3, committed.getMisses());
+    }
+
+    @Test
+    public void testWrapAroundDoesNotAlias() {
+        long bucket = CommitBucket.getBucketSize();
+        Committed committed = new Committed(4);
+        committed.commit(1, 2);
+        // same slot of the ring, four buckets later
+        committed.commit(4 * bucket + 1, 4 * bucket + 5);
+        assertEquals(-1, committed.getCommit(1));
+        assertEquals(4 * bucket + 5, committed.getCommit(4 * bucket + 1));
+        assertEquals(bucket - 1, committed.getOverflowTimestamp());
+
+        // an older transaction can't take the slot back
+        committed.commit(2, 3);
+        assertEquals(-1, committed.getCommit(2));
+        assertTrue(committed.getOverflowTimestamp() >= 2);
+
+        committed.clear();
+        assertEquals(-1, committed.getCommit(4 * bucket + 1));
+        assertEquals(0, committed.getOverflowTimestamp());
+    }
+}
@@ -0,0 +1,57 @@
+package com.yahoo.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestHalfAbortedSet {
+
+    @Test
+    public void testAddRemoveContains() {
+        HalfAbortedSet set = new HalfAbortedSet(4);
+        for (long ts = 1; ts <= 10000; ++ts) {
+            assertTrue(set.add(ts, 0));
+        }
+        assertFalse(set.add(5, 1));
+        assertEquals(10000, set.size());
+        for (long ts = 1; ts <= 10000; ts += 2) {
+            assertTrue(set.remove(ts));
+        }
+        assertFalse(set.remove(1));
+        assertEquals(5000, set.size());
+        for (long ts = 1; ts <= 10000; ++ts) {
+            assertEquals(ts % 2 == 0, set.contains(ts));
+        }
+        assertFalse(set.contains(0));
+        assertFalse(set.add(0, 0));
+    }
+
+    @Test
+    public void testRemovedSlotsAreReused() {
+        HalfAbortedSet set = new HalfAbortedSet(16);
+        // keep adding and removing, the table must not fill up with removed entries
+        for (long ts = 1; ts <= 1000000; ++ts) {
+            assertTrue(set.add(ts, 0));
+            assertTrue(set.remove(ts));
+        }
+        assertEquals(0, set.size());
+        assertTrue(set.add(42, 0));
+        assertTrue(set.contains(42));
+    }
+
+    @Test
+    public void testToArrayFiltersSnapshots() {
+        HalfAbortedSet set = new HalfAbortedSet(16);
+        set.add(10, 0);
+        set.add(20, 1);
+        set.add(30, 2);
+        long[] old = set.toArray(2);
+        Arrays.sort(old);
+        assertTrue(Arrays.equals(new long[] { 10, 20 }, old));
+        assertEquals(3, set.toArray(Long.MAX_VALUE).length);
+    }
+}
@@ -0,0 +1,34 @@
+package com.yahoo.omid.tso;
+
+import java.io.File;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Runs the persistence tests with the local WAL instead of BookKeeper
+ */
+public class TestLocalPersistence extends TestPersistence {
+   private static File walDir;
+
+   @BeforeClass
+   public static void setupLocalWAL() throws Exception {
+      walDir = File.createTempFile("omid-wal", "");
+      walDir.delete();
+      System.setProperty("WAL", "local");
+      System.setProperty("WAL_DIR", walDir.getPath());
+   }
+
+   @AfterClass
+   public static void teardownLocalWAL() {
+      System.clearProperty("WAL");
+      System.clearProperty("WAL_DIR");
+      File[] files = walDir.listFiles();
+      if (files != null) {
+         for (File f : files) {
+            f.delete();
+         }
+      }
+      walDir.delete();
+   }
+}
@@ -0,0 +1,68 @@
+package com.yahoo.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestOffHeapCommitHashMap {
+
+    @Test
+    public void testSameAsHeapTable() {
+        // without fingerprint collisions both tables must behave the same
+        HeapConflictTable heap = new HeapConflictTable(1000, 0.5f);
+        OffHeapConflictTable offHeap = new OffHeapConflictTable(1000, 0.5f);
+        byte[] table = "table".getBytes();
+        Random rand = new Random(1234);
+        long heapLargestDeleted = 0;
+        long offHeapLargestDeleted = 0;
+        for (long ts = 1; ts < 100000; ++ts) {
+            byte[] row = ("row" + rand.nextInt(2000)).getBytes();
+            int hash = new RowKey(row, table).hashCode();
+            assertEquals(heap.get(row, table, hash), offHeap.get(row, table, hash));
+            heapLargestDeleted = heap.put(row, table, ts, hash, heapLargestDeleted);
+            offHeapLargestDeleted = offHeap.put(row, table, ts, hash, offHeapLargestDeleted);
+            assertEquals(heapLargestDeleted, offHeapLargestDeleted);
+            assertEquals(ts, offHeap.get(row, table, hash));
+        }
+    }
+
+    @Test
+    public void testCommitted() {
+        CommitHashMap map = CommitHashMap.create(CommitHashMap.OFFHEAP, 100, 0.5f);
+        long largestDeleted = 0;
+        for (long start = 1; start <= 50; ++start) {
+            largestDeleted = map.setCommitted(start, start + 100, largestDeleted);
+        }
+        assertEquals(0, largestDeleted);
+        assertEquals(110, map.getCommittedTimestamp(10));
+        assertEquals(0, map.getCommittedTimestamp(60));
+        // overwrites the entry of 10
+        largestDeleted = map.setCommitted(60, 160, largestDeleted);
+        assertEquals(110, largestDeleted);
+        assertEquals(0, map.getCommittedTimestamp(10));
+        assertEquals(160, map.getCommittedTimestamp(60));
+    }
+
+    @Test
+    public void testCheckAndPut() {
+        CommitHashMap map = CommitHashMap.create(CommitHashMap.OFFHEAP, 1000, 0.5f);
+        RowKey[] rows = new RowKey[30];
+        for (int i = 0; i < rows.length; ++i) {
+            rows[i] = new RowKey(("row" + i).getBytes(), "table".getBytes());
+        }
+        assertEquals(0, map.checkAndPut(rows, 5, 10, 0));
+        for (RowKey r : rows) {
+            assertEquals(10, map.get(r.getRow(), r.getTable(), r.hashCode()));
+        }
+        // conflicts with the previous commit, nothing is installed
+        assertEquals(CommitHashMap.CONFLICT, map.checkAndPut(rows, 9, 11, 0));
+        assertEquals(10, map.get(rows[0].getRow(), rows[0].getTable(), rows[0].hashCode()));
+        assertEquals(0, map.checkAndPut(rows, 10, 12, 0));
+        // unknown row older than the largest deleted timestamp
+        RowKey[] other = new RowKey[] { new RowKey("other".getBytes(), "table".getBytes()) };
+        assertEquals(CommitHashMap.CONFLICT, map.checkAndPut(other, 10, 13, 11));
+        assertEquals(11, map.checkAndPut(other, 11, 13, 11));
+    }
+}
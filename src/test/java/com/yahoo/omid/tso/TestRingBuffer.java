@@ -0,0 +1,139 @@
+package com.yahoo.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestRingBuffer {
+
+    @Test
+    public void testCapacityIsRoundedUp() throws Exception {
+        assertEquals(1, new RingBuffer<Long>(1).capacity());
+        assertEquals(8, new RingBuffer<Long>(5).capacity());
+        assertEquals(16, new RingBuffer<Long>(16).capacity());
+    }
+
+    @Test
+    public void testFifoAndFull() throws Exception {
+        RingBuffer<Long> ring = new RingBuffer<Long>(4);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+        for (long i = 0; i < 4; ++i) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4L));
+        assertEquals(4, ring.size());
+
+        assertEquals(Long.valueOf(0), ring.poll());
+        assertTrue(ring.offer(4L));
+        for (long i = 1; i <= 4; ++i) {
+            assertEquals(Long.valueOf(i), ring.poll());
+        }
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testDrainTo() throws Exception {
+        RingBuffer<Long> ring = new RingBuffer<Long>(8);
+        for (long i = 0; i < 5; ++i) {
+            ring.put(i);
+        }
+        List<Long> window = new ArrayList<Long>();
+        assertEquals(3, ring.drainTo(window, 3));
+        assertEquals(2, ring.drainTo(window, 10));
+        assertEquals(0, ring.drainTo(window, 10));
+        for (int i = 0; i < 5; ++i) {
+            assertEquals(Long.valueOf(i), window.get(i));
+        }
+    }
+
+    @Test
+    public void testPollTimesOut() throws Exception {
+        RingBuffer<Long> ring = new RingBuffer<Long>(4);
+        long start = System.nanoTime();
+        assertNull(ring.poll(10, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test(timeout = 10000)
+    public void testParkedConsumerIsWoken() throws Exception {
+        final RingBuffer<Long> ring = new RingBuffer<Long>(4);
+        final CountDownLatch polling = new CountDownLatch(1);
+        final Long[] taken = new Long[1];
+        Thread consumer = new Thread() {
+            public void run() {
+                polling.countDown();
+                try {
+                    taken[0] = ring.poll(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    // test fails below
+                }
+            }
+        };
+        consumer.start();
+        polling.await();
+        Thread.sleep(50);
+        ring.put(42L);
+        consumer.join();
+        assertEquals(Long.valueOf(42), taken[0]);
+    }
+
+    /**
+     * Several producers publish increasing sequences through a small ring, the
+     * single consumer must see every element once and each producer's
+     * elements in order
+     */
+    @Test(timeout = 60000)
+    public void testMultipleProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 100000;
+        final RingBuffer<Long> ring = new RingBuffer<Long>(64);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final long id = p;
+            threads[p] = new Thread() {
+                public void run() {
+                    try {
+                        for (long i = 0; i < perProducer; ++i) {
+                            ring.put((id << 32) | i);
+                        }
+                    } catch (InterruptedException e) {
+                        // test fails below
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        long[] next = new long[producers];
+        List<Long> window = new ArrayList<Long>();
+        int received = 0;
+        while (received < producers * perProducer) {
+            Long first = ring.poll(1, TimeUnit.SECONDS);
+            assertTrue("Producers stalled", first != null);
+            window.add(first);
+            ring.drainTo(window, 16);
+            for (Long e : window) {
+                int id = (int) (e >>> 32);
+                assertEquals(next[id], e & 0xFFFFFFFFL);
+                next[id]++;
+            }
+            received += window.size();
+            window.clear();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(ring.poll());
+        assertEquals(0, ring.size());
+    }
+}
@@ -0,0 +1,81 @@
+package com.yahoo.omid.tso;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+public class TestRowKey {
+
+    private static RowKey[] rows(int n) {
+        RowKey[] rows = new RowKey[n];
+        for (int i = 0; i < n; ++i) {
+            rows[i] = new RowKey(("row" + i).getBytes(), ("table" + (i % 3)).getBytes());
+        }
+        return rows;
+    }
+
+    private static byte[] serialize(RowKey[] rows) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        for (RowKey r : rows) {
+            r.writeObject(out);
+        }
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void testReadSlices() throws Exception {
+        RowKey[] rows = rows(100);
+        byte[] bytes = serialize(rows);
+        ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(bytes);
+        assertEquals(bytes.length, RowKey.serializedSize(buffer, 0, rows.length));
+
+        RowKey[] read = RowKey.readObjects(buffer, rows.length, bytes.length);
+        assertEquals(0, buffer.readableBytes());
+        for (int i = 0; i < rows.length; ++i) {
+            assertEquals(rows[i], read[i]);
+            assertEquals(rows[i].hashCode(), read[i].hashCode());
+            assertArrayEquals(rows[i].getRow(), read[i].getRow());
+            assertArrayEquals(rows[i].getTable(), read[i].getTable());
+        }
+        // the slices serialize as the original rows
+        assertArrayEquals(bytes, serialize(RowKey.readObjects(ChannelBuffers.wrappedBuffer(bytes), rows.length,
+                bytes.length)));
+    }
+
+    @Test
+    public void testIncomplete() throws Exception {
+        RowKey[] rows = rows(10);
+        byte[] bytes = serialize(rows);
+        for (int length = 0; length < bytes.length; ++length) {
+            ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(bytes, 0, length);
+            assertEquals(-1, RowKey.serializedSize(buffer, 0, rows.length));
+        }
+    }
+
+    @Test
+    public void testTablesSeeSlices() throws Exception {
+        RowKey[] rows = rows(100);
+        byte[] bytes = serialize(rows);
+        RowKey[] read = RowKey.readObjects(ChannelBuffers.wrappedBuffer(bytes), rows.length, bytes.length);
+        ConflictTable heap = new HeapConflictTable(1000, 0.5f);
+        ConflictTable offHeap = new OffHeapConflictTable(1000, 0.5f);
+        for (int i = 0; i < rows.length; ++i) {
+            heap.put(read[i], i + 1, 0);
+            offHeap.put(read[i], i + 1, 0);
+        }
+        for (int i = 0; i < rows.length; ++i) {
+            RowKey r = rows[i];
+            assertEquals(i + 1, heap.get(r.getRow(), r.getTable(), r.hashCode()));
+            assertEquals(i + 1, offHeap.get(r.getRow(), r.getTable(), r.hashCode()));
+            assertEquals(i + 1, heap.get(r));
+            assertEquals(i + 1, offHeap.get(read[i]));
+        }
+    }
+}
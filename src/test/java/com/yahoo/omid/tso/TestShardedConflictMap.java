@@ -0,0 +1,65 @@
+package com.yahoo.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestShardedConflictMap {
+
+    private static RowKey row(int i) {
+        return new RowKey(("row" + i).getBytes(), "table".getBytes());
+    }
+
+    @Test
+    public void testConflicts() {
+        ShardedConflictMap map = new ShardedConflictMap(4, 1000, 0.5f);
+        RowKey[] rows = new RowKey[] { row(1), row(2), row(3) };
+        int[] shards = map.shardsOf(rows);
+        map.lock(shards);
+        try {
+            assertFalse(map.hasConflicts(rows, 10));
+            map.put(rows, 20);
+            assertTrue(map.hasConflicts(rows, 10));
+            assertFalse(map.hasConflicts(rows, 20));
+            assertFalse(map.hasConflicts(new RowKey[] { row(4) }, 10));
+        } finally {
+            map.unlock(shards);
+        }
+    }
+
+    @Test
+    public void testShardsOf() {
+        ShardedConflictMap map = new ShardedConflictMap(5, 1000, 0.5f);
+        assertEquals(8, map.getNumShards());
+        RowKey[] rows = new RowKey[100];
+        for (int i = 0; i < rows.length; ++i) {
+            rows[i] = row(i % 50);
+        }
+        int[] shards = map.shardsOf(rows);
+        for (int i = 1; i < shards.length; ++i) {
+            assertTrue(shards[i - 1] < shards[i]);
+        }
+        for (RowKey r : rows) {
+            int shard = map.shardOf(r.hashCode());
+            assertTrue(shard >= 0 && shard < map.getNumShards());
+        }
+    }
+
+    @Test
+    public void testRecycling() {
+        ShardedConflictMap map = new ShardedConflictMap(1, 16, 0.5f);
+        long largestDeleted = 0;
+        for (int i = 1; i <= 100; ++i) {
+            largestDeleted = Math.max(largestDeleted, map.put(new RowKey[] { row(i) }, i));
+        }
+        assertTrue(largestDeleted > 0);
+        assertTrue(largestDeleted < 100);
+        // recycled rows are left to the global largest deleted timestamp
+        assertFalse(map.hasConflicts(new RowKey[] { row(1000) }, 0));
+        // recent rows are still there
+        assertTrue(map.hasConflicts(new RowKey[] { row(100) }, 99));
+        assertFalse(map.hasConflicts(new RowKey[] { row(100) }, 100));
+    }
+}
@@ -0,0 +1,245 @@
+package com.yahoo.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
+import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.LoggerInitCallback;
+import com.yahoo.omid.tso.persistence.LoggerException.Code;
+import com.yahoo.omid.tso.persistence.StateLogger;
+
+public class TestTimestampOracle {
+
+    private static final long BATCH = 100000;
+
+    /**
+     * Fails the first records, then completes them or, if hold is set,
+     * keeps their callbacks until the test completes them
+     */
+    private static class HeldLogger implements StateLogger {
+        final List<AddRecordCallback> pending = new ArrayList<AddRecordCallback>();
+        final List<Long> logged = new ArrayList<Long>();
+        int failures;
+        boolean hold;
+
+        HeldLogger(int failures, boolean hold) {
+            this.failures = failures;
+            this.hold = hold;
+        }
+
+        @Override
+        public void initialize(LoggerInitCallback cb, Object ctx) {
+        }
+
+        @Override
+        public void addRecord(byte[] record, AddRecordCallback cb, Object ctx) {
+            long max = ByteBuffer.wrap(record, 1, 8).getLong();
+            int rc;
+            synchronized (this) {
+                logged.add(max);
+                if (failures > 0) {
+                    failures--;
+                    rc = Code.ADDFAILED;
+                } else if (hold) {
+                    pending.add(cb);
+                    notifyAll();
+                    return;
+                } else {
+                    rc = Code.OK;
+                }
+            }
+            cb.addRecordComplete(rc, null);
+        }
+
+        @Override
+        public void addRecord(ByteBuffer record, AddRecordCallback cb, Object ctx) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        synchronized void awaitPending() throws InterruptedException {
+            while (pending.isEmpty()) {
+                wait();
+            }
+        }
+
+        void completePending() {
+            List<AddRecordCallback> cbs;
+            synchronized (this) {
+                hold = false;
+                cbs = new ArrayList<AddRecordCallback>(pending);
+                pending.clear();
+            }
+            for (AddRecordCallback cb : cbs) {
+                cb.addRecordComplete(Code.OK, null);
+            }
+        }
+
+        synchronized int loggedCount() {
+            return logged.size();
+        }
+    }
+
+    @Test
+    public void testConsecutiveTimestamps() throws Exception {
+        TimestampOracle oracle = new TimestampOracle();
+        oracle.initialize();
+        long t1 = oracle.next();
+        long t2 = oracle.next(10);
+        long t3 = oracle.next();
+        assertEquals(t1 + 1, t2);
+        assertEquals(t2 + 10, t3);
+        assertEquals(t3, oracle.get());
+        assertTrue(oracle.getMaxTimestamp() >= t3);
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentNext() throws Exception {
+        final TimestampOracle oracle = new TimestampOracle();
+        oracle.initialize();
+        final int threads = 4;
+        final int perThread = 3 * (int) BATCH;
+        final long[][] taken = new long[threads][perThread];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            final long[] mine = taken[i];
+            workers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < mine.length; ++j) {
+                        mine[j] = oracle.next();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        Set<Long> all = new HashSet<Long>();
+        for (long[] mine : taken) {
+            for (int j = 0; j < mine.length; ++j) {
+                assertTrue(all.add(mine[j]));
+                if (j > 0) {
+                    assertTrue(mine[j] > mine[j - 1]);
+                }
+            }
+        }
+        assertEquals(threads * perThread, oracle.get());
+        assertTrue(oracle.getDurableMaxTimestamp() >= oracle.get());
+    }
+
+    @Test
+    public void testReserveAhead() throws Exception {
+        HeldLogger logger = new HeldLogger(0, true);
+        TimestampOracle oracle = new TimestampOracle();
+        oracle.setLogger(logger);
+        oracle.initialize();
+
+        // the first range is logged ahead, next() doesn't log again
+        oracle.reserve(1);
+        oracle.next();
+        assertEquals(1, logger.loggedCount());
+        long max = oracle.getMaxTimestamp();
+
+        // the range in flight is not reserved twice
+        oracle.reserve((int) BATCH);
+        assertEquals(1, logger.loggedCount());
+        logger.completePending();
+        assertEquals(max, oracle.getDurableMaxTimestamp());
+
+        // a batch getting close to the end starts the next range
+        oracle.reserve((int) (max - oracle.get()));
+        assertEquals(2, logger.loggedCount());
+        assertTrue(oracle.getDurableMaxTimestamp() > max);
+    }
+
+    /**
+     * After a recovery the first range is logged before serving timestamps,
+     * so next() doesn't wait for the WAL
+     */
+    @Test(timeout = 10000)
+    public void testRecoveryReservesFirstRange() throws Exception {
+        final HeldLogger logger = new HeldLogger(0, true);
+        final TimestampOracle oracle = new TimestampOracle();
+        long recovered = 5 * BATCH;
+        oracle.initialize(recovered);
+        oracle.setLogger(logger);
+        assertEquals(recovered + BATCH, oracle.first());
+
+        final CountDownLatch reserved = new CountDownLatch(1);
+        Thread starter = new Thread() {
+            public void run() {
+                oracle.reserveFirstRange();
+                reserved.countDown();
+            }
+        };
+        starter.start();
+        logger.awaitPending();
+        assertFalse(reserved.await(100, TimeUnit.MILLISECONDS));
+        logger.completePending();
+        assertTrue(reserved.await(10, TimeUnit.SECONDS));
+        assertTrue(oracle.getDurableMaxTimestamp() >= oracle.first() + BATCH);
+
+        // the WAL stops completing records, timestamps keep flowing
+        synchronized (logger) {
+            logger.hold = true;
+        }
+        long t = oracle.next();
+        assertEquals(oracle.first() + 1, t);
+        for (int i = 0; i < BATCH; ++i) {
+            assertTrue(oracle.next() > t);
+        }
+        logger.completePending();
+    }
+
+    @Test(timeout = 10000)
+    public void testFailedReservationIsRetried() throws Exception {
+        HeldLogger logger = new HeldLogger(3, false);
+        TimestampOracle oracle = new TimestampOracle();
+        oracle.initialize(BATCH);
+        oracle.setLogger(logger);
+        oracle.reserveFirstRange();
+        assertEquals(4, logger.loggedCount());
+        assertTrue(oracle.getDurableMaxTimestamp() >= oracle.first() + BATCH);
+        assertEquals(oracle.first() + 1, oracle.next());
+    }
+
+    /**
+     * When the WAL falls a whole range behind, next() waits for it
+     */
+    @Test(timeout = 10000)
+    public void testWaitsForLaggingWAL() throws Exception {
+        final HeldLogger logger = new HeldLogger(0, true);
+        final TimestampOracle oracle = new TimestampOracle();
+        oracle.setLogger(logger);
+        oracle.initialize();
+        final long[] last = new long[1];
+        Thread client = new Thread() {
+            public void run() {
+                last[0] = oracle.next((int) (2 * BATCH));
+            }
+        };
+        client.start();
+        logger.awaitPending();
+        client.join(100);
+        assertTrue(client.isAlive());
+        logger.completePending();
+        client.join();
+        assertEquals(1, last[0]);
+        assertTrue(oracle.getDurableMaxTimestamp() + BATCH >= oracle.get());
+    }
+}
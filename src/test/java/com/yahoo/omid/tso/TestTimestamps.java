@@ -16,10 +16,19 @@
 
 package com.yahoo.omid.tso;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.junit.Test;
 
+import com.yahoo.omid.client.SyncCommitCallback;
+import com.yahoo.omid.client.SyncCreateCallback;
+import com.yahoo.omid.client.TSOClient.Result;
+import com.yahoo.omid.tso.messages.TimestampBatchRequest;
+import com.yahoo.omid.tso.messages.TimestampBatchResponse;
 import com.yahoo.omid.tso.messages.TimestampRequest;
 import com.yahoo.omid.tso.messages.TimestampResponse;
 
@@ -35,5 +44,97 @@ public class TestTimestamps extends TSOTestBase {
       TimestampResponse tr2 = clientHandler.receiveMessage(TimestampResponse.class);
       assertTrue(tr2.timestamp > tr1.timestamp);
    }
-   
-}
\ No newline at end of file
+
+   @Test
+   public void testGetTimestampBatch() throws Exception {
+      clientHandler.sendMessage(new TimestampRequest());
+      clientHandler.receiveBootstrap();
+      TimestampResponse tr1 = clientHandler.receiveMessage(TimestampResponse.class);
+
+      clientHandler.sendMessage(new TimestampBatchRequest(10));
+      TimestampBatchResponse tbr = clientHandler.receiveMessage(TimestampBatchResponse.class);
+      assertEquals(10, tbr.count);
+      assertTrue(tbr.first > tr1.timestamp);
+
+      clientHandler.sendMessage(new TimestampRequest());
+      TimestampResponse tr2 = clientHandler.receiveMessage(TimestampResponse.class);
+      assertTrue(tr2.timestamp >= tbr.first + tbr.count);
+   }
+
+   /**
+    * Prefetched timestamps left unused are aborted and cleaned in one step
+    * once they expire, without reports to the clients
+    */
+   @Test
+   public void testUnusedPrefetchIsAborted() throws Exception {
+      clientHandler.sendMessage(new TimestampRequest());
+      clientHandler.receiveBootstrap();
+      clientHandler.receiveMessage(TimestampResponse.class);
+
+      clientHandler.sendMessage(new TimestampBatchRequest(10));
+      TimestampBatchResponse tbr = clientHandler.receiveMessage(TimestampBatchResponse.class);
+      long end = tbr.first + tbr.count;
+
+      // the default max age is 100 ms
+      for (int i = 0; i < 100 && state.uncommited.isUncommited(end - 1); ++i) {
+         Thread.sleep(50);
+      }
+      for (long t = tbr.first; t < end; ++t) {
+         assertFalse(state.uncommited.isUncommited(t));
+         assertFalse(state.hashmap.isHalfAborted(t));
+      }
+
+      clientHandler.sendMessage(new TimestampRequest());
+      Object msg = clientHandler.receiveMessage();
+      assertTrue("unexpected " + msg, msg instanceof TimestampResponse);
+      assertTrue(((TimestampResponse) msg).timestamp >= end);
+   }
+
+   /**
+    * A write commit only makes the next read-your-writes transaction skip
+    * the older prefetched timestamps, the rest keep using them
+    */
+   @Test
+   public void testReadYourWritesSkipsPrefetched() throws Exception {
+      Configuration conf = HBaseConfiguration.create();
+      conf.set("tso.host", "localhost");
+      conf.setInt("tso.port", 1234);
+      conf.setInt("tso.timestamp.batch", 10);
+      conf.setInt("tso.timestamp.batch.max_age_ms", 60000);
+      TestClientHandler client = new TestClientHandler(conf);
+      client.await();
+
+      long t1 = newTimestamp(client, true);
+      long t2 = newTimestamp(client, true);
+      assertEquals(t1 + 1, t2);
+
+      SyncCommitCallback cc = new SyncCommitCallback();
+      client.commit(t1, new RowKey[] { r1 }, cc);
+      cc.await();
+      assertEquals(Result.OK, cc.getResult());
+      long commit = cc.getCommitTimestamp();
+      assertTrue(commit > t1 + 9);
+
+      // still from the batch
+      long t3 = newTimestamp(client, false);
+      assertEquals(t2 + 1, t3);
+
+      long t4 = newTimestamp(client, true);
+      assertTrue(t4 > commit);
+      for (long t = t3 + 1; t < t1 + 10; ++t) {
+         for (int i = 0; i < 100 && state.uncommited.isUncommited(t); ++i) {
+            Thread.sleep(50);
+         }
+         assertFalse(state.uncommited.isUncommited(t));
+         assertFalse(state.hashmap.isHalfAborted(t));
+      }
+   }
+
+   private long newTimestamp(TestClientHandler client, boolean readYourWrites) throws Exception {
+      SyncCreateCallback cb = new SyncCreateCallback();
+      client.getNewTimestamp(cb, readYourWrites);
+      cb.await();
+      return cb.getStartTimestamp();
+   }
+
+}
@@ -0,0 +1,59 @@
+package com.yahoo.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestUncommited {
+
+    private static class Collector implements Uncommited.AbortVisitor {
+        List<Long> aborted = new ArrayList<Long>();
+
+        @Override
+        public void aborted(long id) {
+            aborted.add(id);
+        }
+    }
+
+    @Test
+    public void testVisitorSeesStragglers() {
+        long bucket = Bucket.getBucketSize();
+        Uncommited uncommited = new Uncommited(0);
+        // leave a few open in the first two buckets and in the third one
+        for (long ts = 1; ts < 3 * bucket; ++ts) {
+            if (ts != 5 && ts != bucket + 7 && ts != 2 * bucket + 3 && ts != 2 * bucket + 100) {
+                uncommited.commit(ts);
+            }
+        }
+
+        Collector collector = new Collector();
+        int count = uncommited.raiseLargestDeletedTransaction(2 * bucket + 50, collector);
+        assertEquals(3, count);
+        assertEquals(3, collector.aborted.size());
+        assertEquals(5L, (long) collector.aborted.get(0));
+        assertEquals(bucket + 7, (long) collector.aborted.get(1));
+        assertEquals(2 * bucket + 3, (long) collector.aborted.get(2));
+        assertFalse(uncommited.isUncommited(2 * bucket + 3));
+
+        // the one past the watermark is reported on the next raise
+        Collector rest = new Collector();
+        assertEquals(1, uncommited.raiseLargestDeletedTransaction(2 * bucket + 200, rest));
+        assertEquals(1, rest.aborted.size());
+        assertEquals(2 * bucket + 100, (long) rest.aborted.get(0));
+    }
+
+    @Test
+    public void testNothingToAbort() {
+        Uncommited uncommited = new Uncommited(0);
+        for (long ts = 1; ts < 100; ++ts) {
+            uncommited.commit(ts);
+        }
+        Collector collector = new Collector();
+        assertEquals(0, uncommited.raiseLargestDeletedTransaction(50, collector));
+        assertEquals(0, collector.aborted.size());
+    }
+}
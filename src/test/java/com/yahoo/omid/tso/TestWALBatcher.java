@@ -0,0 +1,82 @@
+package com.yahoo.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
+import com.yahoo.omid.tso.persistence.LoggerException.Code;
+
+public class TestWALBatcher {
+
+    private static final AddRecordCallback noCallback = new AddRecordCallback() {
+        @Override
+        public void addRecordComplete(int rc, Object ctx) {
+        }
+    };
+
+    @Test
+    public void testFixedBatches() throws Exception {
+        WALBatcher batcher = new WALBatcher(false);
+        int batchSize = TSOState.BATCH_SIZE;
+        TSOState.BATCH_SIZE = 100;
+        try {
+            assertFalse(batcher.shouldFlush(99));
+            assertTrue(batcher.shouldFlush(100));
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(TSOState.FLUSH_TIMEOUT), batcher.getFlushDeadline());
+        } finally {
+            TSOState.BATCH_SIZE = batchSize;
+        }
+    }
+
+    @Test
+    public void testFlushWhenIdle() throws Exception {
+        WALBatcher batcher = new WALBatcher(true);
+        final AtomicInteger idle = new AtomicInteger();
+        batcher.setIdleListener(new WALBatcher.IdleListener() {
+            @Override
+            public void idle() {
+                idle.incrementAndGet();
+            }
+        });
+        assertTrue(batcher.shouldFlush(1));
+
+        AddRecordCallback first = batcher.track(10, noCallback);
+        AddRecordCallback second = batcher.track(10, noCallback);
+        assertEquals(2, batcher.getInflight());
+        assertFalse(batcher.shouldFlush(batcher.getBatchSize() - 1));
+        assertTrue(batcher.shouldFlush(batcher.getBatchSize()));
+
+        first.addRecordComplete(Code.OK, null);
+        assertEquals(0, idle.get());
+        second.addRecordComplete(Code.OK, null);
+        assertEquals(1, idle.get());
+        assertTrue(batcher.shouldFlush(1));
+    }
+
+    @Test
+    public void testAdjustsToLatency() throws Exception {
+        WALBatcher batcher = new WALBatcher(true);
+        AddRecordCallback[] records = new AddRecordCallback[WALBatcher.WINDOW];
+        for (int i = 0; i < records.length; ++i) {
+            records[i] = batcher.track(1000, noCallback);
+        }
+        Thread.sleep(5);
+        for (AddRecordCallback r : records) {
+            r.addRecordComplete(Code.OK, null);
+        }
+        assertTrue(batcher.getP99Latency() >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertTrue(batcher.getArrivalRate() > 0);
+        // the logger latency is taken out of the target commit latency
+        long target = TimeUnit.MICROSECONDS.toNanos(WALBatcher.TARGET_LATENCY);
+        assertTrue(batcher.getFlushDeadline() <= Math.max(TimeUnit.MICROSECONDS.toNanos(WALBatcher.MIN_DEADLINE),
+                target - batcher.getP99Latency()));
+        assertTrue(batcher.getBatchSize() >= TSOState.BATCH_SIZE);
+        assertTrue(batcher.getBatchSize() <= WALBatcher.MAX_BATCH_SIZE);
+    }
+}
@@ -0,0 +1,70 @@
+package com.yahoo.omid.tso;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.yahoo.omid.tso.persistence.LoggerProtocol;
+
+public class TestWALBuffer {
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testSameEncodingAsDataOutputStream() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        WALBuffer buffer = WALBuffer.get();
+        // enough records to grow the buffer a few times
+        int records = WALBuffer.INITIAL_SIZE;
+        for (int i = 0; i < records; ++i) {
+            out.writeByte(LoggerProtocol.COMMIT);
+            out.writeLong(i);
+            out.writeLong(-i);
+            buffer.writeByte(LoggerProtocol.COMMIT);
+            buffer.writeLong(i);
+            buffer.writeLong(-i);
+        }
+        assertEquals(baos.size(), buffer.size());
+        assertArrayEquals(baos.toByteArray(), bytes(buffer.contents()));
+        // reading the contents doesn't consume them
+        assertEquals(baos.size(), buffer.contents().remaining());
+        buffer.release();
+    }
+
+    @Test
+    public void testAppendBatches() throws Exception {
+        WALBuffer batch = WALBuffer.get();
+        WALBuffer first = WALBuffer.get();
+        first.writeByte(LoggerProtocol.ABORT);
+        first.writeLong(1);
+        WALBuffer second = WALBuffer.get();
+        second.writeByte(LoggerProtocol.FULLABORT);
+        second.writeLong(1);
+        batch.write(first);
+        batch.write(second);
+        first.release();
+        second.release();
+
+        ByteBuffer contents = batch.contents();
+        assertEquals(18, contents.remaining());
+        assertEquals(LoggerProtocol.ABORT, contents.get());
+        assertEquals(1, contents.getLong());
+        assertEquals(LoggerProtocol.FULLABORT, contents.get());
+        assertEquals(1, contents.getLong());
+
+        batch.reset();
+        assertEquals(0, batch.size());
+        batch.release();
+        assertEquals(0, WALBuffer.get().size());
+    }
+}
@@ -0,0 +1,403 @@
+package com.yahoo.omid.tso.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.yahoo.omid.tso.TSOServerConfig;
+import com.yahoo.omid.tso.TimestampOracle;
+import com.yahoo.omid.tso.persistence.BookKeeperStateBuilder.Context;
+import com.yahoo.omid.tso.persistence.BookKeeperStateBuilder.EntryReader;
+import com.yahoo.omid.tso.persistence.BookKeeperStateBuilder.Recovery;
+
+public class TestBookKeeperRecovery {
+
+    /**
+     * Records the entries it applies, by the first timestamp of their first
+     * op (the SNAPSHOT id), -1 for LOGSTART, and the commits it sets
+     */
+    private static class RecordingProtocol extends LoggerProtocol {
+        final List<Long> applied = new ArrayList<Long>();
+        final Map<Long, Long> commits = new HashMap<Long, Long>();
+
+        RecordingProtocol(TimestampOracle timestampOracle) {
+            super(timestampOracle);
+        }
+
+        @Override
+        void execute(Entry entry) {
+            applied.add(entry.ops[0] == LOGSTART ? -1 : entry.first[0]);
+            super.execute(entry);
+        }
+
+        @Override
+        protected void processCommit(long startTimestamp, long commitTimestamp) {
+            commits.put(startTimestamp, commitTimestamp);
+            super.processCommit(startTimestamp, commitTimestamp);
+        }
+    }
+
+    /**
+     * Ledger whose reads are completed by a separate thread, the pending ones
+     * in random order
+     */
+    private static class ShuffledLedger implements EntryReader, Runnable {
+        final List<byte[]> entries;
+        final List<long[]> pending = new ArrayList<long[]>();
+        final Random rand = new Random();
+        Recovery recovery;
+        int reads;
+        boolean fail;
+        boolean done;
+
+        ShuffledLedger(List<byte[]> entries) {
+            this.entries = entries;
+        }
+
+        public synchronized void read(long from, long to, int range) {
+            pending.add(new long[] { from, to, range });
+            reads++;
+            notifyAll();
+        }
+
+        public void run() {
+            for (;;) {
+                List<long[]> ready;
+                synchronized (this) {
+                    while (pending.isEmpty() && !done) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (done) {
+                        return;
+                    }
+                    ready = new ArrayList<long[]>(pending);
+                    pending.clear();
+                }
+                Collections.shuffle(ready, rand);
+                for (long[] read : ready) {
+                    if (fail) {
+                        recovery.fail();
+                    } else {
+                        recovery.decode((int) read[2], entries.subList((int) read[0], (int) read[1] + 1));
+                    }
+                }
+            }
+        }
+
+        synchronized void stop() {
+            done = true;
+            notifyAll();
+        }
+    }
+
+    private BookKeeperStateBuilder builder() {
+        BookKeeperStateBuilder builder = new BookKeeperStateBuilder(TSOServerConfig.configFactory(1234, 0, true,
+                1, 1, null));
+        builder.lp = new RecordingProtocol(builder.timestampOracle);
+        builder.progress = StateBuilder.startRecovery();
+        return builder;
+    }
+
+    private Context recover(BookKeeperStateBuilder builder, ShuffledLedger ledger) throws InterruptedException {
+        Context ctx = builder.new Context();
+        ctx.setLogger(null);
+        Recovery recovery = builder.new Recovery(ledger, ledger.entries.size() - 1, ctx);
+        builder.recovery = recovery;
+        ledger.recovery = recovery;
+        Thread completer = new Thread(ledger, "Ledger Reads");
+        completer.start();
+        recovery.start();
+        synchronized (ctx) {
+            while (!ctx.isFinished()) {
+                ctx.wait();
+            }
+        }
+        ledger.stop();
+        completer.join();
+        return ctx;
+    }
+
+    private static byte[] snapshot(long id) {
+        ByteBuffer bb = ByteBuffer.allocate(9);
+        bb.put(LoggerProtocol.SNAPSHOT);
+        bb.putLong(id);
+        return bb.array();
+    }
+
+    private static byte[] commit(long startTimestamp, long commitTimestamp) {
+        ByteBuffer bb = ByteBuffer.allocate(17);
+        bb.put(LoggerProtocol.COMMIT);
+        bb.putLong(startTimestamp);
+        bb.putLong(commitTimestamp);
+        return bb.array();
+    }
+
+    private static byte[] record(byte op, long value) {
+        ByteBuffer bb = ByteBuffer.allocate(9);
+        bb.put(op);
+        bb.putLong(value);
+        return bb.array();
+    }
+
+    private static File checkpointDir() throws Exception {
+        File dir = File.createTempFile("omid-checkpoint", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void delete(File dir) {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Writes a checkpoint with the commits 10 -> 11 and 20 -> 21 and the
+     * largest deleted timestamp 7
+     */
+    private static void writeCheckpoint(File dir, long id) throws Exception {
+        Checkpoint.Writer writer = new Checkpoint.Writer(dir, id);
+        writer.writeHalfAborted(new long[0]);
+        writer.writeCommit(10, 11);
+        writer.writeCommit(20, 21);
+        writer.finish(1000, 7);
+    }
+
+    /**
+     * The replay stops at the CHECKPOINT record, whose checkpoint is merged
+     * into the state rebuilt from the newer records
+     */
+    @Test(timeout = 60000)
+    public void testCheckpointMerge() throws Exception {
+        File dir = checkpointDir();
+        try {
+            writeCheckpoint(dir, 1);
+            List<byte[]> entries = new ArrayList<byte[]>();
+            entries.add(commit(30, 31));
+            entries.add(record(LoggerProtocol.CHECKPOINT, 1));
+            // newer than the checkpoint
+            entries.add(commit(10, 50));
+            entries.add(record(LoggerProtocol.LARGESTDELETEDTIMESTAMP, 5));
+            BookKeeperStateBuilder builder = builder();
+            builder.lp.setCheckpointDir(dir);
+            Context ctx = recover(builder, new ShuffledLedger(entries));
+
+            assertSame(builder.lp, ctx.state);
+            RecordingProtocol lp = (RecordingProtocol) builder.lp;
+            assertEquals(3, lp.applied.size());
+            assertEquals(1, lp.applied.get(2).longValue());
+            // the commit set by the tail is kept
+            assertEquals(50, lp.commits.get(10L).longValue());
+            assertEquals(21, lp.commits.get(20L).longValue());
+            // older than the checkpoint
+            assertFalse(lp.commits.containsKey(30L));
+            assertEquals(7, lp.largestDeletedTimestamp);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * A newer largest deleted timestamp of the tail isn't lowered by the
+     * checkpoint
+     */
+    @Test(timeout = 60000)
+    public void testCheckpointLargestDeletedIsMerged() throws Exception {
+        File dir = checkpointDir();
+        try {
+            writeCheckpoint(dir, 1);
+            List<byte[]> entries = new ArrayList<byte[]>();
+            entries.add(record(LoggerProtocol.CHECKPOINT, 1));
+            entries.add(record(LoggerProtocol.LARGESTDELETEDTIMESTAMP, 9));
+            BookKeeperStateBuilder builder = builder();
+            builder.lp.setCheckpointDir(dir);
+            recover(builder, new ShuffledLedger(entries));
+
+            assertEquals(9, builder.lp.largestDeletedTimestamp);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * A CHECKPOINT record whose checkpoint is missing or corrupt is skipped,
+     * the replay goes on to the older records and checkpoints
+     */
+    @Test(timeout = 60000)
+    public void testBadCheckpointFallsThrough() throws Exception {
+        File dir = checkpointDir();
+        try {
+            writeCheckpoint(dir, 1);
+            writeCheckpoint(dir, 3);
+            RandomAccessFile raf = new RandomAccessFile(new File(dir, Checkpoint.fileName(3)), "rw");
+            raf.seek(30);
+            raf.write(0xff);
+            raf.close();
+
+            List<byte[]> entries = new ArrayList<byte[]>();
+            entries.add(commit(30, 31));
+            entries.add(record(LoggerProtocol.CHECKPOINT, 1));
+            entries.add(commit(40, 41));
+            // corrupt
+            entries.add(record(LoggerProtocol.CHECKPOINT, 3));
+            entries.add(commit(50, 51));
+            // missing
+            entries.add(record(LoggerProtocol.CHECKPOINT, 2));
+            entries.add(commit(10, 60));
+            BookKeeperStateBuilder builder = builder();
+            builder.lp.setCheckpointDir(dir);
+            Context ctx = recover(builder, new ShuffledLedger(entries));
+
+            assertSame(builder.lp, ctx.state);
+            RecordingProtocol lp = (RecordingProtocol) builder.lp;
+            assertEquals(6, lp.applied.size());
+            assertEquals(41, lp.commits.get(40L).longValue());
+            assertEquals(51, lp.commits.get(50L).longValue());
+            assertEquals(60, lp.commits.get(10L).longValue());
+            assertEquals(21, lp.commits.get(20L).longValue());
+            assertFalse(lp.commits.containsKey(30L));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Ranges completed out of order are still applied newest first, and the
+     * recovery stops at the start of the last incarnation without reading
+     * the rest of the ledger
+     */
+    @Test(timeout = 60000)
+    public void testOrderedApplyAndEarlyStop() throws Exception {
+        final int size = 5000;
+        final int logStart = 1234;
+        List<byte[]> entries = new ArrayList<byte[]>();
+        for (int i = 0; i < size; ++i) {
+            entries.add(i == logStart ? new byte[] { LoggerProtocol.LOGSTART } : snapshot(i));
+        }
+        BookKeeperStateBuilder builder = builder();
+        ShuffledLedger ledger = new ShuffledLedger(entries);
+        Context ctx = recover(builder, ledger);
+
+        assertSame(builder.lp, ctx.state);
+        List<Long> applied = ((RecordingProtocol) builder.lp).applied;
+        assertEquals(size - logStart, applied.size());
+        for (int i = 0; i < applied.size() - 1; ++i) {
+            assertEquals(size - 1 - i, applied.get(i).longValue());
+        }
+        assertEquals(-1, applied.get(applied.size() - 1).longValue());
+
+        // only the ranges up to the log start, and the ones read ahead
+        int ranges = (size - logStart + 49) / 50;
+        assertTrue(ledger.reads < (size + 49) / 50);
+        assertTrue(ledger.reads <= ranges + BookKeeperStateBuilder.PARALLEL_READS);
+
+        RecoveryProgress progress = builder.progress;
+        assertSame(progress, StateBuilder.getRecoveryProgress());
+        assertTrue(progress.isFinished());
+        assertEquals(size, progress.getTotalEntries());
+        assertEquals(size - logStart, progress.getEntriesApplied());
+        assertTrue(progress.getEntriesRead() >= progress.getEntriesApplied());
+    }
+
+    /**
+     * Without a log start the whole ledger is replayed
+     */
+    @Test(timeout = 60000)
+    public void testWholeLedger() throws Exception {
+        final int size = 777;
+        List<byte[]> entries = new ArrayList<byte[]>();
+        for (int i = 0; i < size; ++i) {
+            entries.add(snapshot(i));
+        }
+        BookKeeperStateBuilder builder = builder();
+        ShuffledLedger ledger = new ShuffledLedger(entries);
+        Context ctx = recover(builder, ledger);
+
+        assertSame(builder.lp, ctx.state);
+        List<Long> applied = ((RecordingProtocol) builder.lp).applied;
+        assertEquals(size, applied.size());
+        for (int i = 0; i < size; ++i) {
+            assertEquals(size - 1 - i, applied.get(i).longValue());
+        }
+        assertEquals((size + 49) / 50, ledger.reads);
+        assertEquals(size, builder.progress.getEntriesRead());
+        assertEquals(9 * size, builder.progress.getBytesRead());
+        assertEquals(size, builder.progress.getEntriesApplied());
+    }
+
+    @Test(timeout = 60000)
+    public void testEmptyLedger() throws Exception {
+        BookKeeperStateBuilder builder = builder();
+        ShuffledLedger ledger = new ShuffledLedger(new ArrayList<byte[]>());
+        Context ctx = recover(builder, ledger);
+
+        assertSame(builder.lp, ctx.state);
+        assertEquals(0, ledger.reads);
+        assertTrue(((RecordingProtocol) builder.lp).applied.isEmpty());
+        RecoveryProgress progress = builder.progress;
+        assertTrue(progress.isFinished());
+        assertEquals(0, progress.getTotalEntries());
+        assertEquals(0, progress.getEntriesApplied());
+    }
+
+    @Test(timeout = 60000)
+    public void testReadFailure() throws Exception {
+        List<byte[]> entries = new ArrayList<byte[]>();
+        for (int i = 0; i < 500; ++i) {
+            entries.add(snapshot(i));
+        }
+        BookKeeperStateBuilder builder = builder();
+        ShuffledLedger ledger = new ShuffledLedger(entries);
+        ledger.fail = true;
+        Context ctx = recover(builder, ledger);
+
+        assertNull(ctx.state);
+        assertTrue(((RecordingProtocol) builder.lp).applied.isEmpty());
+        assertFalse(builder.progress.isFinished());
+    }
+
+    @Test
+    public void testProgress() throws Exception {
+        RecoveryProgress progress = new RecoveryProgress();
+        progress.setTotalEntries(100);
+        progress.read(10, 1000);
+        progress.read(5, 500);
+        progress.applied(12);
+        assertEquals(100, progress.getTotalEntries());
+        assertEquals(15, progress.getEntriesRead());
+        assertEquals(1500, progress.getBytesRead());
+        assertEquals(12, progress.getEntriesApplied());
+        assertFalse(progress.isFinished());
+        assertFalse(progress.toString().endsWith("finished"));
+
+        progress.finished();
+        assertTrue(progress.isFinished());
+        long elapsed = progress.getElapsed();
+        Thread.sleep(10);
+        // frozen once finished
+        assertEquals(elapsed, progress.getElapsed());
+        assertEquals(12 * 1000 / Math.max(1, elapsed), progress.getEntriesPerSecond());
+        assertTrue(progress.toString().startsWith("applied 12 of 100 entries (15 read, 1500 bytes)"));
+        assertTrue(progress.toString().endsWith(", finished"));
+    }
+}
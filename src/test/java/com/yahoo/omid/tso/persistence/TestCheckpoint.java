@@ -0,0 +1,90 @@
+package com.yahoo.omid.tso.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCheckpoint {
+
+    private File dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = File.createTempFile("omid-checkpoint", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static void write(File dir, long id, int commits) throws Exception {
+        Checkpoint.Writer writer = new Checkpoint.Writer(dir, id);
+        writer.writeHalfAborted(new long[] { 3, 5 });
+        for (int i = 1; i <= commits; ++i) {
+            writer.writeCommit(i * 10, i * 10 + 1);
+        }
+        writer.finish(id + 100, 7);
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        write(dir, 42, 5000);
+        Checkpoint c = Checkpoint.read(dir, 42);
+        assertNotNull(c);
+        assertEquals(42, c.id);
+        assertEquals(142, c.maxTimestamp);
+        assertEquals(7, c.largestDeletedTimestamp);
+        assertEquals(2, c.halfAborted.length);
+        assertEquals(5, c.halfAborted[1]);
+        assertEquals(5000, c.commits);
+        assertEquals(50000, c.startTimestamps[4999]);
+        assertEquals(50001, c.commitTimestamps[4999]);
+
+        assertNull(Checkpoint.read(dir, 43));
+    }
+
+    @Test
+    public void testCorruptCheckpointIsIgnored() throws Exception {
+        write(dir, 1, 10);
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, Checkpoint.fileName(1)), "rw");
+        raf.seek(30);
+        raf.write(0xff);
+        raf.close();
+        assertNull(Checkpoint.read(dir, 1));
+
+        write(dir, 2, 10);
+        raf = new RandomAccessFile(new File(dir, Checkpoint.fileName(2)), "rw");
+        raf.setLength(raf.length() - 4);
+        raf.close();
+        assertNull(Checkpoint.read(dir, 2));
+    }
+
+    @Test
+    public void testOldCheckpointsArePruned() throws Exception {
+        new Checkpoint.Writer(dir, 1).abort();
+        // an unfinished one left by a crash
+        new Checkpoint.Writer(dir, 2);
+        for (long id = 3; id <= 6; ++id) {
+            write(dir, id, 1);
+        }
+        String[] files = dir.list();
+        assertEquals(Checkpoint.KEEP, files.length);
+        assertNotNull(Checkpoint.read(dir, 5));
+        assertNotNull(Checkpoint.read(dir, 6));
+        assertTrue(Checkpoint.parseFileName(files[0]) >= 5);
+    }
+}
@@ -0,0 +1,165 @@
+package com.yahoo.omid.tso.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yahoo.omid.tso.TSOServerConfig;
+import com.yahoo.omid.tso.TSOState;
+import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
+import com.yahoo.omid.tso.persistence.LoggerAsyncCallback.LoggerInitCallback;
+import com.yahoo.omid.tso.persistence.LoggerException.Code;
+
+public class TestLocalStateLogger {
+
+    private File dir;
+    private int segmentSize;
+
+    @Before
+    public void setup() throws Exception {
+        dir = File.createTempFile("omid-wal", "");
+        dir.delete();
+        dir.mkdirs();
+        segmentSize = LocalStateLogger.SEGMENT_SIZE;
+        LocalStateLogger.SEGMENT_SIZE = 1024;
+    }
+
+    @After
+    public void teardown() {
+        LocalStateLogger.SEGMENT_SIZE = segmentSize;
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private LocalStateLogger open(long incarnation) throws Exception {
+        FileLock lock = new RandomAccessFile(new File(dir, LocalStateLogger.LOCK), "rw").getChannel().tryLock();
+        assertNotNull(lock);
+        LocalStateLogger logger = new LocalStateLogger(dir, incarnation, lock);
+        logger.initialize(new LoggerInitCallback() {
+            public void loggerInitComplete(int rc, StateLogger sl, Object ctx) {
+                assertEquals(Code.OK, rc);
+            }
+        }, null);
+        return logger;
+    }
+
+    @Test
+    public void testRecordsSurviveAcrossSegments() throws Exception {
+        LocalStateLogger logger = open(0);
+        final int n = 100;
+        final CountDownLatch done = new CountDownLatch(n);
+        final AtomicInteger order = new AtomicInteger();
+        for (int i = 0; i < n; ++i) {
+            byte[] record = new byte[100];
+            record[0] = (byte) i;
+            logger.addRecord(record, new AddRecordCallback() {
+                public void addRecordComplete(int rc, Object ctx) {
+                    assertEquals(Code.OK, rc);
+                    // completed in order
+                    assertEquals(order.getAndIncrement(), ((Integer) ctx).intValue());
+                    done.countDown();
+                }
+            }, i);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(logger.getSyncs() <= n);
+        logger.shutdown();
+
+        final AtomicInteger rc = new AtomicInteger(Code.OK);
+        logger.addRecord(new byte[1], new AddRecordCallback() {
+            public void addRecordComplete(int code, Object ctx) {
+                rc.set(code);
+            }
+        }, null);
+        assertEquals(Code.LOGGERDISABLED, rc.get());
+
+        NavigableMap<Long, List<File>> incarnations = LocalStateBuilder.listSegments(dir);
+        assertEquals(1, incarnations.size());
+        List<File> segments = incarnations.get(0L);
+        assertTrue(segments.size() > 1);
+        int read = 0;
+        for (File segment : segments) {
+            for (ByteBuffer record : LocalStateBuilder.readSegment(segment)) {
+                assertEquals(100, record.remaining());
+                assertEquals((byte) read, record.get(0));
+                read++;
+            }
+        }
+        assertEquals(n, read);
+    }
+
+    @Test
+    public void testTornRecordEndsSegment() throws Exception {
+        LocalStateLogger logger = open(3);
+        final CountDownLatch done = new CountDownLatch(2);
+        AddRecordCallback cb = new AddRecordCallback() {
+            public void addRecordComplete(int rc, Object ctx) {
+                done.countDown();
+            }
+        };
+        logger.addRecord(new byte[] { 1, 2, 3 }, cb, null);
+        logger.addRecord(new byte[] { 4, 5, 6 }, cb, null);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        logger.shutdown();
+
+        File segment = new File(dir, LocalStateLogger.segmentName(3, 0));
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        // corrupt the last byte of the second record
+        raf.seek(LocalStateLogger.HEADER + 3 + LocalStateLogger.HEADER + 2);
+        raf.write(0);
+        raf.close();
+
+        List<ByteBuffer> records = LocalStateBuilder.readSegment(segment);
+        assertEquals(1, records.size());
+        assertEquals(3, records.get(0).remaining());
+    }
+
+    @Test
+    public void testBuilderRecoversLastIncarnationWithRecords() throws Exception {
+        LocalStateLogger logger = open(0);
+        final CountDownLatch done = new CountDownLatch(1);
+        ByteBuffer record = ByteBuffer.allocate(9);
+        record.put(LoggerProtocol.LARGESTDELETEDTIMESTAMP).putLong(42);
+        logger.addRecord(record.array(), new AddRecordCallback() {
+            public void addRecordComplete(int rc, Object ctx) {
+                done.countDown();
+            }
+        }, null);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        logger.shutdown();
+
+        System.setProperty("WAL_DIR", dir.getPath());
+        try {
+            TSOServerConfig config = TSOServerConfig.configFactory(1234, 0, true, 1, 1, null);
+            TSOState state = LocalStateBuilder.getState(config);
+            assertNotNull(state);
+            assertEquals(42, state.largestDeletedTimestamp);
+            state.getLogger().shutdown();
+
+            // the new incarnation logged nothing, the previous one is used again
+            state = LocalStateBuilder.getState(config);
+            assertNotNull(state);
+            assertEquals(42, state.largestDeletedTimestamp);
+            state.getLogger().shutdown();
+            assertEquals(3, LocalStateBuilder.listSegments(dir).size());
+        } finally {
+            System.clearProperty("WAL_DIR");
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.yahoo.omid.tso.serialization;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.Test;
+
+import com.yahoo.omid.tso.TSOMessage;
+import com.yahoo.omid.tso.messages.AbortRangeRequest;
+import com.yahoo.omid.tso.messages.BatchCommitQueryRequest;
+
+public class TestTSODecoder {
+
+    private static ChannelBuffer encode(TSOMessage msg) {
+        EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(new TSOEncoder());
+        encoder.offer(msg);
+        return encoder.poll();
+    }
+
+    /**
+     * Messages split across reads are only decoded once complete
+     */
+    @Test
+    public void testSplitFrames() {
+        ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+        buf.writeBytes(encode(new BatchCommitQueryRequest(7, new long[] { 1, 2, 3, 4 }, 3)));
+        buf.writeBytes(encode(new AbortRangeRequest(10, 20)));
+
+        DecoderEmbedder<TSOMessage> decoder = new DecoderEmbedder<TSOMessage>(new TSODecoder(null));
+        decoder.offer(buf.readBytes(20));
+        assertNull(decoder.poll());
+        decoder.offer(buf.readBytes(buf.readableBytes()));
+
+        BatchCommitQueryRequest bcqr = (BatchCommitQueryRequest) decoder.poll();
+        assertEquals(7, bcqr.startTimestamp);
+        assertEquals(3, bcqr.count);
+        assertArrayEquals(new long[] { 1, 2, 3 }, bcqr.queryTimestamps);
+        AbortRangeRequest arr = (AbortRangeRequest) decoder.poll();
+        assertEquals(10, arr.first);
+        assertEquals(20, arr.end);
+        assertNull(decoder.poll());
+    }
+
+    /**
+     * A corrupt count fails the decoding instead of waiting forever for a
+     * frame that never completes, or misframing the rest of the stream
+     */
+    @Test
+    public void testWrongBatchCount() {
+        byte[] types = { TSOMessage.BatchCommitQueryRequest, TSOMessage.BatchCommitQueryResponse };
+        // negative, too large, and wrapping to a small size
+        int[] counts = { -1, TSODecoder.MAX_BATCH_QUERY + 1, 1 << 29, Integer.MIN_VALUE };
+        for (byte type : types) {
+            for (int count : counts) {
+                ChannelBuffer buf = ChannelBuffers.buffer(1 + 8 + 4 + 8);
+                buf.writeByte(type);
+                buf.writeLong(1);
+                buf.writeInt(count);
+                buf.writeLong(2);
+                DecoderEmbedder<TSOMessage> decoder = new DecoderEmbedder<TSOMessage>(new TSODecoder(null));
+                try {
+                    decoder.offer(buf);
+                    fail("Count " + count + " accepted for type " + type);
+                } catch (CodecEmbedderException e) {
+                    // expected
+                }
+            }
+        }
+    }
+}